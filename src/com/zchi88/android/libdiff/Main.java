@@ -5,7 +5,23 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
+import com.zchi88.android.libdiff.index.LibDiffIndex;
+import com.zchi88.android.libdiff.index.LookupServer;
+import com.zchi88.android.libdiff.utilities.BytecodeCache;
+import com.zchi88.android.libdiff.utilities.ChangeFeed;
+import com.zchi88.android.libdiff.utilities.ClassSketcher;
+import com.zchi88.android.libdiff.utilities.ConcurrencyController;
+import com.zchi88.android.libdiff.utilities.DiffComputer;
+import com.zchi88.android.libdiff.utilities.DiffExporter;
+import com.zchi88.android.libdiff.utilities.IoThrottle;
+import com.zchi88.android.libdiff.utilities.LibraryQueue;
+import com.zchi88.android.libdiff.utilities.LibraryWorker;
+import com.zchi88.android.libdiff.utilities.MavenIngester;
+import com.zchi88.android.libdiff.utilities.MemberFingerprinter;
+import com.zchi88.android.libdiff.utilities.Sizes;
 import com.zchi88.android.libdiff.utilities.StartupScanner;
+import com.zchi88.android.libdiff.utilities.WhitelistJournal;
+import com.zchi88.android.libdiff.utilities.WhitelistSnapshot;
 import com.zchi88.android.librarieswhitelist.librarywatcher.LibraryWatcher;
 
 /**
@@ -16,16 +32,46 @@ import com.zchi88.android.librarieswhitelist.librarywatcher.LibraryWatcher;
  * @author Zhihao Chi
  */
 public class Main {
+	/**
+	 * How long a library must go without changes before the watcher's
+	 * changes to it are processed by default, giving copies time to finish.
+	 */
+	private static final long LIVE_SETTLE_MILLIS = 1000;
+
+	/**
+	 * The I/O limits of background mode, unless other limits are given: 20 MB
+	 * read and written per second, and 500 files opened per second.
+	 */
+	private static final long[] BACKGROUND_LIMITS = { 20L << 20, 20L << 20, 500 };
 
 	/**
 	 * Display correct usage information for this tool.
 	 */
 	private static void showHowToUse() {
 		System.err.println("Error. One argument(the path to the whitelist library) is expected.");
-		System.err.println("Usage: java -jar AndroidLibDiff.jar [path] [number of threads (optional)]");
+		System.err.println("Usage: java -jar AndroidLibDiff.jar [path] [number of threads (optional)] [options]");
+		System.err.println("Options:");
+		System.err.println("  --export          keep a columnar export of all diffs in .libdiff/diffs.ldx");
+		System.err.println("  --feed[=SEGMENTS] append each computed diff to the change feed in .libdiff/feed, keeping SEGMENTS segments (default: all)");
+		System.err.println("  --server[=PORT]   serve lookups on a loopback port (default " + LookupServer.DEFAULT_PORT + ")");
+		System.err.println("  --server-throttle let lookup clients change the I/O limits with THROTTLE");
+		System.err.println("  --max-threads=N   upper bound for the adaptive thread count (default: cores x 8)");
+		System.err.println("  --settle=MILLIS   how long new archives must settle before they are processed (default " + LIVE_SETTLE_MILLIS + ")");
+		System.err.println("  --cache-budget=SIZE  evict the bytecode of the least recently used versions beyond SIZE (e.g. 20G)");
+		System.err.println("  --sketch          write a similarity report of the modified classes of each diff");
+		System.err.println("  --members         report changed members, and treat debug-info-only changes as copies");
+		System.err.println("  --read-limit=SIZE  read at most SIZE bytes per second (e.g. 50M)");
+		System.err.println("  --write-limit=SIZE write at most SIZE bytes per second");
+		System.err.println("  --open-limit=N    open at most N files per second");
+		System.err.println("  --background      limit I/O (20M read, 20M write, 500 opens per second unless given) and threads to the core count");
+		System.err.println("  --ingest=REPO     link the JARs and AARs of a local Maven repository into the whitelist first");
+		System.err.println("  --load-snapshot=FILE  import a snapshot taken on another host before the startup scan");
+		System.err.println("  --save-snapshot=FILE  save a snapshot of the whitelist once the startup scan is complete");
+		System.err.println("If the number of threads is given, it is fixed. Otherwise it adapts to the disk's throughput.");
 		System.err.println("Examples:");
 		System.err.println("java -jar AndroidLibDiff.jar PATH/TO/LIBRARIES/DIRECTORY");
 		System.err.println("java -jar AndroidLibDiff.jar PATH/TO/LIBRARIES/DIRECTORY 8");
+		System.err.println("java -jar AndroidLibDiff.jar PATH/TO/LIBRARIES/DIRECTORY --export");
 		System.exit(-1);
 	}
 
@@ -36,11 +82,103 @@ public class Main {
 
 		String path_name = args[0];
 		
-		int numThreads = Runtime.getRuntime().availableProcessors()*4;
-		try {
-			numThreads = new Integer(args[1]);
-		} catch (Exception e) {
-			// Do nothing if args[1] is not provided, use default
+		int numThreads = -1;
+		int maxThreads = Runtime.getRuntime().availableProcessors()*8;
+		boolean export = false;
+		int feedSegments = -1;
+		int serverPort = -1;
+		boolean serverThrottle = false;
+		long settleMillis = LIVE_SETTLE_MILLIS;
+		long cacheBudget = -1;
+		String ingestRepository = null;
+		boolean background = false;
+		boolean maxThreadsGiven = false;
+		long[] ioLimits = { -1, -1, -1 };
+		String loadSnapshot = null;
+		String saveSnapshot = null;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("--export")) {
+				export = true;
+			} else if (args[i].equals("--feed")) {
+				feedSegments = 0;
+			} else if (args[i].startsWith("--feed=")) {
+				try {
+					feedSegments = new Integer(args[i].substring("--feed=".length()));
+				} catch (NumberFormatException e) {
+					showHowToUse();
+				}
+			} else if (args[i].equals("--sketch")) {
+				ClassSketcher.setEnabled(true);
+			} else if (args[i].equals("--members")) {
+				MemberFingerprinter.setEnabled(true);
+			} else if (args[i].equals("--server-throttle")) {
+				serverThrottle = true;
+			} else if (args[i].equals("--server")) {
+				serverPort = LookupServer.DEFAULT_PORT;
+			} else if (args[i].startsWith("--server=")) {
+				try {
+					serverPort = new Integer(args[i].substring("--server=".length()));
+				} catch (NumberFormatException e) {
+					showHowToUse();
+				}
+			} else if (args[i].startsWith("--settle=")) {
+				try {
+					settleMillis = new Long(args[i].substring("--settle=".length()));
+				} catch (NumberFormatException e) {
+					showHowToUse();
+				}
+			} else if (args[i].startsWith("--cache-budget=")) {
+				try {
+					cacheBudget = Sizes.parse(args[i].substring("--cache-budget=".length()));
+				} catch (NumberFormatException e) {
+					showHowToUse();
+				}
+			} else if (args[i].startsWith("--ingest=")) {
+				ingestRepository = args[i].substring("--ingest=".length());
+			} else if (args[i].startsWith("--load-snapshot=")) {
+				loadSnapshot = args[i].substring("--load-snapshot=".length());
+			} else if (args[i].startsWith("--save-snapshot=")) {
+				saveSnapshot = args[i].substring("--save-snapshot=".length());
+			} else if (args[i].startsWith("--max-threads=")) {
+				try {
+					maxThreads = new Integer(args[i].substring("--max-threads=".length()));
+					maxThreadsGiven = true;
+				} catch (NumberFormatException e) {
+					showHowToUse();
+				}
+			} else if (args[i].equals("--background")) {
+				background = true;
+			} else if (args[i].startsWith("--read-limit=")) {
+				try {
+					ioLimits[IoThrottle.Limit.READ_BYTES.ordinal()] = IoThrottle
+							.parseLimit(args[i].substring("--read-limit=".length()));
+				} catch (NumberFormatException e) {
+					showHowToUse();
+				}
+			} else if (args[i].startsWith("--write-limit=")) {
+				try {
+					ioLimits[IoThrottle.Limit.WRITE_BYTES.ordinal()] = IoThrottle
+							.parseLimit(args[i].substring("--write-limit=".length()));
+				} catch (NumberFormatException e) {
+					showHowToUse();
+				}
+			} else if (args[i].startsWith("--open-limit=")) {
+				try {
+					ioLimits[IoThrottle.Limit.FILE_OPENS.ordinal()] = IoThrottle
+							.parseLimit(args[i].substring("--open-limit=".length()));
+				} catch (NumberFormatException e) {
+					showHowToUse();
+				}
+			} else if (args[i].startsWith("--")) {
+				System.err.println("Unknown option: " + args[i]);
+				showHowToUse();
+			} else {
+				try {
+					numThreads = new Integer(args[i]);
+				} catch (NumberFormatException e) {
+					showHowToUse();
+				}
+			}
 		}
 		
 		Path libDirectory = Paths.get(path_name);
@@ -55,12 +193,106 @@ public class Main {
 
 		System.out.format("Android Library Diff tool started for library whitelist located at %s.\n", libDirectory);
 
+		// In background mode, leave most of the disk and the cores to other
+		// services on the host
+		for (IoThrottle.Limit limit : IoThrottle.Limit.values()) {
+			long perSecond = ioLimits[limit.ordinal()];
+			if (perSecond < 0 && background) {
+				perSecond = BACKGROUND_LIMITS[limit.ordinal()];
+			}
+			if (perSecond > 0) {
+				IoThrottle.setLimit(limit, perSecond);
+				System.out.format("I/O limit: %s\n", IoThrottle.describe(limit));
+			}
+		}
+		if (background && !maxThreadsGiven) {
+			maxThreads = Runtime.getRuntime().availableProcessors();
+		}
+
+		if (ingestRepository != null) {
+			// Ingest before the watcher starts, so the startup scan processes
+			// each library once instead of the watcher seeing every artifact
+			int cores = Runtime.getRuntime().availableProcessors();
+			MavenIngester.ingest(Paths.get(ingestRepository), libDirectory, numThreads > 0 ? numThreads : cores);
+			whitelistedLibraries = libDirectory.toFile().listFiles();
+		}
+
+		WhitelistJournal journal = WhitelistJournal.load(libDirectory);
+		if (loadSnapshot != null) {
+			// Import before anything reads the diffs, so that the export and
+			// the index see the imported ones
+			WhitelistSnapshot.load(new File(loadSnapshot), libDirectory, journal);
+		}
+
+		if (export) {
+			// Export the diffs that already exist, then keep the export up to
+			// date as new diffs are computed. An existing export may miss the
+			// diffs written while it was not being kept up to date.
+			DiffExporter exporter;
+			if (DiffExporter.getExportFile(libDirectory).exists()) {
+				exporter = new DiffExporter(libDirectory);
+				exporter.reconcile(libDirectory);
+			} else {
+				exporter = DiffExporter.exportAll(libDirectory);
+			}
+			DiffComputer.addDiffListener(exporter);
+		}
+
+		if (feedSegments >= 0) {
+			// Only diffs computed from now on are published, so consumers
+			// that start from an empty feed should scan the whitelist once
+			ChangeFeed feed = new ChangeFeed(libDirectory, ChangeFeed.DEFAULT_SEGMENT_BYTES, feedSegments);
+			DiffComputer.addDiffListener(feed);
+			System.out.format("Publishing computed diffs to the change feed from offset %d.\n", feed.getNextOffset());
+		}
+
+		if (serverPort >= 0) {
+			// Share one index among all clients of the lookup server
+			LibDiffIndex index = new LibDiffIndex(libDirectory);
+			DiffComputer.addDiffListener(index);
+			new LookupServer(index, serverPort, serverThrottle).start();
+		}
+
+		if (cacheBudget >= 0) {
+			BytecodeCache.configure(libDirectory, cacheBudget);
+		}
+
+		ConcurrencyController controller;
+		if (numThreads > 0) {
+			controller = ConcurrencyController.fixed(numThreads);
+		} else {
+			int cores = Runtime.getRuntime().availableProcessors();
+			controller = new ConcurrencyController(1, maxThreads, cores, 5000);
+		}
+
+		// Libraries found by the startup scan and by the watcher share one
+		// queue, which gives priority to the watcher's live arrivals.
+		final LibraryQueue queue = new LibraryQueue(settleMillis);
+		LibraryWorker.startWorkers(queue, controller, journal);
+
+		// Initialize a new library watcher before scanning, so that no changes
+		// made during the scan are missed.
+		LibraryWatcher watcher = new LibraryWatcher(libDirectory, queue);
+
 		// Scan the directory upon startup to see if there are libraries that do
 		// not have diffs computed for them, and compute them if needed.
-		StartupScanner.scan(whitelistedLibraries, numThreads);
-
-		// Initialize a new library watcher.
-		LibraryWatcher watcher = new LibraryWatcher(libDirectory);
+		final File[] librariesToScan = whitelistedLibraries;
+		final Path whitelist = libDirectory;
+		final String snapshotToSave = saveSnapshot;
+		Thread scanThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				StartupScanner.scan(librariesToScan, queue);
+				if (snapshotToSave != null) {
+					try {
+						WhitelistSnapshot.save(whitelist, new File(snapshotToSave));
+					} catch (IOException e) {
+						System.out.println("IOException saving snapshot " + snapshotToSave + ": " + e.getMessage());
+					}
+				}
+			}
+		}, "libdiff-startup-scan");
+		scanThread.start();
 
 		// Have the library watcher monitor and process changes to the library.
 		watcher.processEvents();
@@ -0,0 +1,383 @@
+package com.zchi88.android.libdiff.index;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.zchi88.android.libdiff.utilities.ExternalSorter;
+import com.zchi88.android.libdiff.utilities.FileManifest;
+import com.zchi88.android.libdiff.utilities.SafeFiles;
+import com.zchi88.android.libdiff.utilities.WhitelistState;
+
+/**
+ * Maps the MD5 hash of every class in a whitelist to where it is found, for
+ * {@link LibDiffIndex#findClass}. The index is kept on disk at
+ * ".libdiff/classes.idx" as "digest[TAB]library[TAB]version[TAB]path" lines
+ * sorted by digest, and is searched with a binary search, so its memory use
+ * does not grow with the size of the whitelist.
+ *
+ * The index is only ever built by a background thread, never by a query.
+ * Libraries whose diffs changed since the file was built are indexed again
+ * into a small in-memory overlay, which hides their entries in the file. Once
+ * the overlay holds more than {@link #MAX_OVERLAY_CLASSES} classes, the file is
+ * rebuilt and the overlay emptied. Until the first build is complete, queries
+ * are answered from the file left by the previous run, if there is one.
+ */
+class ClassDigestIndex implements Runnable {
+	static final String INDEX_FILE_NAME = "classes.idx";
+	static final int MAX_OVERLAY_CLASSES = 200000;
+
+	private static final Comparator<String> LINE_ORDER = new Comparator<String>() {
+		@Override
+		public int compare(String first, String second) {
+			return first.compareTo(second);
+		}
+	};
+
+	private final LibDiffIndex index;
+	private final File indexFile;
+
+	// Guards the file and the overlay, which queries only read
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private FileChannel channel;
+	private final HashMap<String, List<ClassLocation>> overlay = new HashMap<String, List<ClassLocation>>();
+	private final HashMap<String, List<String>> overlayDigests = new HashMap<String, List<String>>();
+	private int overlayClasses = 0;
+
+	// Guarded by itself
+	private final LinkedHashSet<String> staleLibraries = new LinkedHashSet<String>();
+	private boolean rebuildNeeded = true;
+	private Thread builder = null;
+
+	ClassDigestIndex(LibDiffIndex index) throws IOException {
+		this.index = index;
+		this.indexFile = WhitelistState.getStateFolder(index.getWhitelist()).resolve(INDEX_FILE_NAME).toFile();
+		if (indexFile.exists()) {
+			channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+		}
+	}
+
+	/**
+	 * Finds every version of every library that contains a class with the
+	 * given MD5 hash. The first call starts building the index.
+	 *
+	 * @throws IOException
+	 *             if the index has not been built yet
+	 */
+	List<ClassLocation> find(String digest) throws IOException {
+		start();
+		lock.readLock().lock();
+		try {
+			if (channel == null) {
+				throw new IOException("the class index is still being built");
+			}
+			ArrayList<ClassLocation> locations = new ArrayList<ClassLocation>();
+			for (ClassLocation location : search(digest)) {
+				if (!overlayDigests.containsKey(location.getLibrary())) {
+					locations.add(location);
+				}
+			}
+			List<ClassLocation> recent = overlay.get(digest);
+			if (recent != null) {
+				locations.addAll(recent);
+			}
+			return locations;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Queues a library to be indexed again, e.g. because one of its diffs was
+	 * written.
+	 */
+	void markStale(String library) {
+		synchronized (staleLibraries) {
+			if (builder != null) {
+				staleLibraries.add(library);
+				staleLibraries.notifyAll();
+			}
+		}
+	}
+
+	private void start() {
+		synchronized (staleLibraries) {
+			if (builder == null) {
+				builder = new Thread(this, "libdiff-class-index");
+				builder.setDaemon(true);
+				builder.start();
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			String library = null;
+			boolean rebuild;
+			synchronized (staleLibraries) {
+				while (!rebuildNeeded && staleLibraries.isEmpty()) {
+					try {
+						staleLibraries.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				rebuild = rebuildNeeded;
+				rebuildNeeded = false;
+				if (rebuild) {
+					// The rebuild reads every library. Libraries that change
+					// while it runs are queued again.
+					staleLibraries.clear();
+				} else {
+					Iterator<String> iterator = staleLibraries.iterator();
+					library = iterator.next();
+					iterator.remove();
+				}
+			}
+
+			try {
+				if (rebuild) {
+					rebuild();
+				} else {
+					reindex(library);
+				}
+			} catch (IOException | RuntimeException e) {
+				System.out.println("Error indexing classes" + (library == null ? "" : " of " + library) + ": " + e);
+			}
+
+			lock.readLock().lock();
+			try {
+				if (overlayClasses > MAX_OVERLAY_CLASSES || channel == null) {
+					synchronized (staleLibraries) {
+						rebuildNeeded = true;
+					}
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			if (channel == null) {
+				// Do not retry a failed first build in a tight loop
+				try {
+					Thread.sleep(10000);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rewrites the index file from the manifests of every library, and
+	 * empties the overlay.
+	 */
+	private void rebuild() throws IOException {
+		File partialIndex = File.createTempFile("classes", ".tmp", indexFile.getParentFile());
+		try (ExternalSorter sorter = new ExternalSorter(LINE_ORDER)) {
+			for (String library : index.listLibraries()) {
+				try {
+					for (String version : index.listVersions(library)) {
+						File manifestFile = FileManifest.findManifest(index.getWhitelist().resolve(library).resolve(version));
+						if (manifestFile == null) {
+							continue;
+						}
+						try (FileManifest.Reader reader = new FileManifest.Reader(manifestFile)) {
+							FileManifest.Entry entry;
+							while ((entry = reader.next()) != null) {
+								if (!entry.getDigest().isEmpty()) {
+									sorter.add(entry.getDigest() + "\t" + library + "\t" + version + "\t" + entry.getPath());
+								}
+							}
+						}
+					}
+				} catch (IOException e) {
+					System.out.println("IOException indexing classes of " + library + ": " + e.getMessage());
+				}
+			}
+			sorter.sortTo(partialIndex);
+
+			lock.writeLock().lock();
+			try {
+				SafeFiles.move(partialIndex.toPath(), indexFile.toPath());
+				if (channel != null) {
+					channel.close();
+				}
+				channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+				overlay.clear();
+				overlayDigests.clear();
+				overlayClasses = 0;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		} finally {
+			partialIndex.delete();
+		}
+	}
+
+	/**
+	 * Replaces the entries of a library in the overlay with its current
+	 * classes.
+	 */
+	private void reindex(String library) throws IOException {
+		HashMap<String, List<ClassLocation>> classes = new HashMap<String, List<ClassLocation>>();
+		int classCount = 0;
+		for (String version : index.listVersions(library)) {
+			File manifestFile = FileManifest.findManifest(index.getWhitelist().resolve(library).resolve(version));
+			if (manifestFile == null) {
+				continue;
+			}
+			try (FileManifest.Reader reader = new FileManifest.Reader(manifestFile)) {
+				FileManifest.Entry entry;
+				while ((entry = reader.next()) != null) {
+					List<ClassLocation> locations = classes.get(entry.getDigest());
+					if (locations == null) {
+						locations = new ArrayList<ClassLocation>(1);
+						classes.put(entry.getDigest(), locations);
+					}
+					locations.add(new ClassLocation(library, version, entry.getPath()));
+					classCount++;
+				}
+			}
+		}
+
+		lock.writeLock().lock();
+		try {
+			List<String> oldDigests = overlayDigests.remove(library);
+			if (oldDigests != null) {
+				for (String digest : oldDigests) {
+					List<ClassLocation> locations = overlay.get(digest);
+					if (locations == null) {
+						continue;
+					}
+					Iterator<ClassLocation> iterator = locations.iterator();
+					while (iterator.hasNext()) {
+						if (iterator.next().getLibrary().equals(library)) {
+							iterator.remove();
+							overlayClasses--;
+						}
+					}
+					if (locations.isEmpty()) {
+						overlay.remove(digest);
+					}
+				}
+			}
+			for (String digest : classes.keySet()) {
+				List<ClassLocation> locations = overlay.get(digest);
+				if (locations == null) {
+					locations = new ArrayList<ClassLocation>(1);
+					overlay.put(digest, locations);
+				}
+				locations.addAll(classes.get(digest));
+			}
+			// Even a library without classes hides its entries in the file
+			overlayDigests.put(library, new ArrayList<String>(classes.keySet()));
+			overlayClasses += classCount;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Finds the lines of the index file for a digest, using a binary search
+	 * over the byte offsets of the file.
+	 */
+	private List<ClassLocation> search(String digest) throws IOException {
+		long size = channel.size();
+		// Find the first line whose digest is not less than the given one
+		long low = 0;
+		long high = size;
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			long start = lineStart(middle, size);
+			if (start < size && digestOf(readLine(start, size)).compareTo(digest) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+
+		ArrayList<ClassLocation> locations = new ArrayList<ClassLocation>();
+		long position = lineStart(low, size);
+		while (position < size) {
+			byte[] line = readLine(position, size);
+			String[] fields = new String(line, StandardCharsets.UTF_8).split("\t", 4);
+			if (fields.length < 4 || !fields[0].equals(digest)) {
+				break;
+			}
+			locations.add(new ClassLocation(fields[1], fields[2], fields[3]));
+			position += line.length + 1;
+		}
+		return locations;
+	}
+
+	private static String digestOf(byte[] line) {
+		int end = 0;
+		while (end < line.length && line[end] != '\t') {
+			end++;
+		}
+		return new String(line, 0, end, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return The offset of the first line that starts at or after the given
+	 *         offset, or the size of the file if there is none
+	 */
+	private long lineStart(long offset, long size) throws IOException {
+		if (offset == 0) {
+			return 0;
+		}
+		long newline = offset - 1;
+		ByteBuffer buffer = ByteBuffer.allocate(512);
+		while (newline < size) {
+			buffer.clear();
+			int read = channel.read(buffer, newline);
+			if (read <= 0) {
+				break;
+			}
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n') {
+					return newline + i + 1;
+				}
+			}
+			newline += read;
+		}
+		return size;
+	}
+
+	/**
+	 * @return The bytes of the line that starts at the given offset, without
+	 *         its line break
+	 */
+	private byte[] readLine(long start, long size) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		ByteBuffer buffer = ByteBuffer.allocate(512);
+		long position = start;
+		while (position < size) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read <= 0) {
+				break;
+			}
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n') {
+					line.write(buffer.array(), 0, i);
+					return line.toByteArray();
+				}
+			}
+			line.write(buffer.array(), 0, read);
+			position += read;
+		}
+		return line.toByteArray();
+	}
+}
@@ -0,0 +1,36 @@
+package com.zchi88.android.libdiff.index;
+
+/**
+ * Identifies a class file within a version of a library.
+ */
+public class ClassLocation {
+	private final String library;
+	private final String version;
+	private final String path;
+
+	public ClassLocation(String library, String version, String path) {
+		this.library = library;
+		this.version = version;
+		this.path = path;
+	}
+
+	public String getLibrary() {
+		return library;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return The path of the class file relative to its version folder
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	@Override
+	public String toString() {
+		return library + " " + version + " " + path;
+	}
+}
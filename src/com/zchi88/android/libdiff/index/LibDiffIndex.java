@@ -0,0 +1,454 @@
+package com.zchi88.android.libdiff.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zchi88.android.libdiff.utilities.ChangeKind;
+import com.zchi88.android.libdiff.utilities.ClassSketcher;
+import com.zchi88.android.libdiff.utilities.DiffComputer;
+import com.zchi88.android.libdiff.utilities.DiffEvent;
+import com.zchi88.android.libdiff.utilities.DiffListener;
+import com.zchi88.android.libdiff.utilities.FileManifest;
+import com.zchi88.android.libdiff.utilities.JarComparator;
+
+/**
+ * Answers queries about the diffs of a whitelist without re-reading diff.txt
+ * files for every query. Parsed diffs, manifests, version orders and the
+ * similarity indexes of libraries are kept in a size bounded LRU cache.
+ *
+ * Registering the index with {@link DiffComputer#addDiffListener} keeps it up
+ * to date: whenever a diff of a library is written, everything cached for that
+ * library is dropped.
+ */
+public class LibDiffIndex implements DiffListener {
+	/**
+	 * The default capacity of the cache, counted in file paths.
+	 */
+	public static final long DEFAULT_CACHE_WEIGHT = 1000000;
+
+	private final Path whitelist;
+	private final LruCache<String, Object> cache;
+
+	// Bumped whenever a library is invalidated, so that a value loaded while
+	// its diffs were being rewritten is not cached
+	private final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+	// Maps the MD5 hash of every class in the whitelist to where it is found
+	private final ClassDigestIndex classIndex;
+
+	public LibDiffIndex(Path whitelist) throws IOException {
+		this(whitelist, DEFAULT_CACHE_WEIGHT);
+	}
+
+	/**
+	 * @param whitelist
+	 *            - the path to the whitelist
+	 * @param maxCacheWeight
+	 *            - how many file paths the cache may hold across all of its
+	 *            diffs, manifests and similarity indexes
+	 * @throws IOException
+	 */
+	public LibDiffIndex(Path whitelist, long maxCacheWeight) throws IOException {
+		this.whitelist = whitelist;
+		this.cache = new LruCache<String, Object>(maxCacheWeight, new LruCache.Weigher<Object>() {
+			@Override
+			public long weigh(Object value) {
+				if (value instanceof LibraryDiff) {
+					return 1 + ((LibraryDiff) value).size();
+				} else if (value instanceof Map) {
+					return 1 + ((Map<?, ?>) value).size();
+				} else if (value instanceof List) {
+					return 1 + ((List<?>) value).size();
+				} else if (value instanceof LshIndex) {
+					return 1 + ((LshIndex<?>) value).size();
+				}
+				return 1;
+			}
+		});
+		this.classIndex = new ClassDigestIndex(this);
+	}
+
+	/**
+	 * @return The path to the whitelist this index answers queries for
+	 */
+	public Path getWhitelist() {
+		return whitelist;
+	}
+
+	/**
+	 * @return The names of the libraries in the whitelist
+	 */
+	public List<String> listLibraries() {
+		ArrayList<String> libraries = new ArrayList<String>();
+		File[] files = whitelist.toFile().listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory() && !file.getName().startsWith(".")) {
+					libraries.add(file.getName());
+				}
+			}
+		}
+		Collections.sort(libraries);
+		return libraries;
+	}
+
+	/**
+	 * Lists the versions of a library in release order.
+	 *
+	 * @param library
+	 *            - the name of the library
+	 * @return The names of the versions, most recent first
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public List<String> listVersions(String library) throws IOException {
+		String key = library + "/";
+		List<String> versions = (List<String>) cache.get(key);
+		if (versions == null) {
+			long generation = generationOf(library);
+			versions = new ArrayList<String>();
+			Path libraryPath = resolve(library, null);
+			if (libraryPath.toFile().isDirectory()) {
+				LinkedList<File> versionOrder = JarComparator.getVersionOrder(libraryPath);
+				for (File jar : versionOrder) {
+					versions.add(jar.getName().replace(".jar", ""));
+				}
+			}
+			versions = Collections.unmodifiableList(versions);
+			cacheIfCurrent(library, generation, key, versions);
+		}
+		return versions;
+	}
+
+	/**
+	 * Gets the diff of a version of a library.
+	 *
+	 * @param library
+	 *            - the name of the library
+	 * @param version
+	 *            - the name of the version
+	 * @return The diff, or null if the version does not have a valid diff
+	 * @throws IOException
+	 */
+	public LibraryDiff getDiff(String library, String version) throws IOException {
+		String key = library + "/" + version + "/diff";
+		LibraryDiff diff = (LibraryDiff) cache.get(key);
+		if (diff == null) {
+			long generation = generationOf(library);
+			File diffFile = resolve(library, version).resolve("diff.txt").toFile();
+			if (!diffFile.exists()) {
+				return null;
+			}
+			diff = LibraryDiff.parse(diffFile);
+			if (diff != null) {
+				cacheIfCurrent(library, generation, key, diff);
+			}
+		}
+		return diff;
+	}
+
+	/**
+	 * Gets the MD5 hashes of all files of a version of a library.
+	 *
+	 * @param library
+	 *            - the name of the library
+	 * @param version
+	 *            - the name of the version
+	 * @return A map from each file's path to its hash, or null if the
+	 *         manifest of the version has not been computed yet
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, String> getManifest(String library, String version) throws IOException {
+		String key = library + "/" + version + "/manifest";
+		Map<String, String> manifest = (Map<String, String>) cache.get(key);
+		if (manifest == null) {
+			long generation = generationOf(library);
+			File manifestFile = FileManifest.findManifest(resolve(library, version));
+			if (manifestFile == null) {
+				return null;
+			}
+			manifest = new HashMap<String, String>();
+			try (FileManifest.Reader reader = new FileManifest.Reader(manifestFile)) {
+				FileManifest.Entry entry;
+				while ((entry = reader.next()) != null) {
+					manifest.put(entry.getPath(), entry.getDigest());
+				}
+			}
+			manifest = Collections.unmodifiableMap(manifest);
+			cacheIfCurrent(library, generation, key, manifest);
+		}
+		return manifest;
+	}
+
+	/**
+	 * Finds the versions of a library in which a class changed in the given
+	 * way.
+	 *
+	 * @param library
+	 *            - the name of the library
+	 * @param classPath
+	 *            - the path of the class file relative to its version folder,
+	 *            e.g. "com/example/Foo.class"
+	 * @param kind
+	 *            - how the class changed
+	 * @return The matching versions, most recent first
+	 * @throws IOException
+	 */
+	public List<String> findVersions(String library, String classPath, ChangeKind kind) throws IOException {
+		ArrayList<String> matches = new ArrayList<String>();
+		for (String version : listVersions(library)) {
+			LibraryDiff diff = getDiff(library, version);
+			if (diff != null && diff.contains(kind, classPath)) {
+				matches.add(version);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Gets the classes that are unique to a version of a library, i.e. the
+	 * files that are new or modified in that version.
+	 *
+	 * @param library
+	 *            - the name of the library
+	 * @param version
+	 *            - the name of the version
+	 * @return The paths of the unique classes in sorted order, or an empty
+	 *         list if the version does not have a valid diff
+	 * @throws IOException
+	 */
+	public List<String> getUniqueClasses(String library, String version) throws IOException {
+		LibraryDiff diff = getDiff(library, version);
+		if (diff == null) {
+			return Collections.emptyList();
+		}
+		ArrayList<String> uniqueClasses = new ArrayList<String>(diff.getFiles(ChangeKind.NEW));
+		uniqueClasses.addAll(diff.getFiles(ChangeKind.MODIFIED));
+		Collections.sort(uniqueClasses);
+		return uniqueClasses;
+	}
+
+	/**
+	 * Finds every version of every library that contains a class with the
+	 * given MD5 hash. The first call starts indexing the manifests of the
+	 * whole whitelist in the background (see {@link ClassDigestIndex}), and
+	 * fails until an index is available.
+	 *
+	 * @param digest
+	 *            - the MD5 hash of the class file, as a hexadecimal string
+	 * @return Where the class is found, or an empty list if it is not in the
+	 *         whitelist
+	 * @throws IOException
+	 *             if the index is still being built
+	 */
+	public List<ClassLocation> findClass(String digest) throws IOException {
+		return classIndex.find(digest.toLowerCase());
+	}
+
+	/**
+	 * Gets the estimated similarity of each modified class of a version to
+	 * the same class in the previous version. Similarity reports are only
+	 * written along with diffs when sketching is enabled, never by a query.
+	 *
+	 * @param library
+	 *            - the name of the library
+	 * @param version
+	 *            - the name of the version
+	 * @return A map from the path of each modified class to its similarity,
+	 *         between 0 and 1, or null if the version does not have a valid
+	 *         diff or a similarity report
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, Double> getSimilarity(String library, String version) throws IOException {
+		String key = library + "/" + version + "/similarity";
+		Map<String, Double> similarity = (Map<String, Double>) cache.get(key);
+		if (similarity == null) {
+			long generation = generationOf(library);
+			if (getDiff(library, version) == null) {
+				return null;
+			}
+			File reportFile = resolve(library, version).resolve(ClassSketcher.SIMILARITY_FILE_NAME).toFile();
+			if (!reportFile.exists()) {
+				return null;
+			}
+
+			similarity = ClassSketcher.readSimilarityReport(reportFile);
+			similarity = Collections.unmodifiableMap(similarity);
+			cacheIfCurrent(library, generation, key, similarity);
+		}
+		return similarity;
+	}
+
+	/**
+	 * Finds the classes of a library, in any of its versions, that are
+	 * similar to a given class. The first query for a library indexes the
+	 * sketches of all of its versions; later queries only compare against the
+	 * classes that share a bucket with the given class. Sketches are only
+	 * computed along with diffs when sketching is enabled, never by a query,
+	 * so versions that have not been sketched yet are left out.
+	 *
+	 * @param library
+	 *            - the name of the library
+	 * @param version
+	 *            - the name of the version the class is in
+	 * @param classPath
+	 *            - the path of the class file relative to its version folder
+	 * @param minSimilarity
+	 *            - the lowest estimated similarity to report, between 0 and 1
+	 * @return The similar classes, most similar first, not including the
+	 *         given class itself
+	 * @throws IOException
+	 *             if the class does not exist or its version has not been
+	 *             sketched
+	 */
+	@SuppressWarnings("unchecked")
+	public List<LshIndex.Match<ClassLocation>> findSimilarClasses(String library, String version,
+			String classPath, double minSimilarity) throws IOException {
+		int[] signature = null;
+		File sketchFile = ClassSketcher.findSketches(resolve(library, version));
+		if (sketchFile == null) {
+			throw new IOException("no sketches for " + library + " " + version);
+		}
+		try (ClassSketcher.Reader reader = new ClassSketcher.Reader(sketchFile)) {
+			ClassSketcher.Sketch sketch;
+			while ((sketch = reader.next()) != null) {
+				if (sketch.getPath().equals(classPath)) {
+					signature = sketch.getSignature();
+					break;
+				}
+			}
+		}
+		if (signature == null) {
+			throw new IOException("no class " + classPath + " in " + library + " " + version);
+		}
+
+		String key = library + "/sketches";
+		LshIndex<ClassLocation> sketches = (LshIndex<ClassLocation>) cache.get(key);
+		if (sketches == null) {
+			// Built without holding a lock, so queries for other libraries
+			// are not held up. The index is never changed once cached.
+			long generation = generationOf(library);
+			sketches = new LshIndex<ClassLocation>();
+			for (String otherVersion : listVersions(library)) {
+				File otherSketches = ClassSketcher.findSketches(whitelist.resolve(library).resolve(otherVersion));
+				if (otherSketches == null) {
+					continue;
+				}
+				try (ClassSketcher.Reader reader = new ClassSketcher.Reader(otherSketches)) {
+					ClassSketcher.Sketch sketch;
+					while ((sketch = reader.next()) != null) {
+						sketches.add(new ClassLocation(library, otherVersion, sketch.getPath()), sketch.getSignature());
+					}
+				}
+			}
+			cacheIfCurrent(library, generation, key, sketches);
+		}
+
+		List<LshIndex.Match<ClassLocation>> matches = sketches.query(signature, minSimilarity);
+		Iterator<LshIndex.Match<ClassLocation>> iterator = matches.iterator();
+		while (iterator.hasNext()) {
+			ClassLocation location = iterator.next().getValue();
+			if (location.getVersion().equals(version) && location.getPath().equals(classPath)) {
+				iterator.remove();
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Drops everything cached for a library.
+	 *
+	 * @param library
+	 *            - the name of the library
+	 */
+	public void invalidate(String library) {
+		getGeneration(library).incrementAndGet();
+		classIndex.markStale(library);
+		final String prefix = library + "/";
+		cache.removeIf(new LruCache.KeyFilter<String>() {
+			@Override
+			public boolean matches(String key) {
+				return key.startsWith(prefix);
+			}
+		});
+	}
+
+	/**
+	 * Resolves the folder of a library, or of one of its versions, from names
+	 * given by a client. Names that could point outside of the whitelist, or
+	 * at its state folder, are rejected.
+	 *
+	 * @param library
+	 *            - the name of the library
+	 * @param version
+	 *            - the name of the version, or null for the library itself
+	 * @throws IOException
+	 *             if a name is not valid
+	 */
+	private Path resolve(String library, String version) throws IOException {
+		checkName(library);
+		if (library.startsWith(".")) {
+			throw new IOException("invalid library name: " + library);
+		}
+		Path folder = whitelist.resolve(library);
+		if (version != null) {
+			checkName(version);
+			folder = folder.resolve(version);
+		}
+		if (!folder.normalize().startsWith(whitelist.normalize())) {
+			throw new IOException("invalid name: " + library + (version == null ? "" : " " + version));
+		}
+		return folder;
+	}
+
+	private static void checkName(String name) throws IOException {
+		if (name.isEmpty() || name.contains("..") || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0
+				|| name.indexOf(File.separatorChar) >= 0 || name.indexOf('\0') >= 0) {
+			throw new IOException("invalid name: " + name);
+		}
+	}
+
+	private AtomicLong getGeneration(String library) {
+		AtomicLong generation = generations.get(library);
+		if (generation == null) {
+			generations.putIfAbsent(library, new AtomicLong());
+			generation = generations.get(library);
+		}
+		return generation;
+	}
+
+	private long generationOf(String library) {
+		return getGeneration(library).get();
+	}
+
+	private void cacheIfCurrent(String library, long generation, String key, Object value) {
+		if (generationOf(library) == generation) {
+			cache.put(key, value);
+		}
+	}
+
+	@Override
+	public void diffWritten(DiffEvent event) {
+		invalidate(event.getLibrary().getFileName().toString());
+	}
+
+	/**
+	 * @return The cache used by this index, which holds its hit and miss
+	 *         counts
+	 */
+	public LruCache<String, Object> getCache() {
+		return cache;
+	}
+}
@@ -0,0 +1,127 @@
+package com.zchi88.android.libdiff.index;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+
+import com.zchi88.android.libdiff.utilities.ChangeKind;
+
+/**
+ * The parsed contents of a diff.txt file.
+ */
+public class LibraryDiff {
+	private final String version;
+	private final int versionAge;
+	private final String previousVersion;
+	private final EnumMap<ChangeKind, List<String>> files;
+
+	LibraryDiff(String version, int versionAge, String previousVersion, EnumMap<ChangeKind, List<String>> files) {
+		this.version = version;
+		this.versionAge = versionAge;
+		this.previousVersion = previousVersion;
+		this.files = files;
+	}
+
+	/**
+	 * Parses a diff.txt file written by the DiffComputer.
+	 *
+	 * @param diffFile
+	 *            - the diff.txt file
+	 * @return The parsed diff, or null if the diff is incomplete
+	 * @throws IOException
+	 */
+	public static LibraryDiff parse(File diffFile) throws IOException {
+		String version = null;
+		int versionAge = -1;
+		String previousVersion = null;
+		EnumMap<ChangeKind, List<String>> files = new EnumMap<ChangeKind, List<String>>(ChangeKind.class);
+		for (ChangeKind kind : ChangeKind.values()) {
+			files.put(kind, new ArrayList<String>());
+		}
+
+		try (BufferedReader reader = Files.newBufferedReader(diffFile.toPath(), StandardCharsets.UTF_8)) {
+			List<String> section = null;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.equals("=====END OF DIFF=====")) {
+					for (ChangeKind kind : ChangeKind.values()) {
+						files.put(kind, Collections.unmodifiableList(files.get(kind)));
+					}
+					return new LibraryDiff(version, versionAge, previousVersion, files);
+				} else if (line.startsWith("Showing Diffs For: ")) {
+					version = line.substring("Showing Diffs For: ".length());
+				} else if (line.startsWith("Version Age: ")) {
+					versionAge = Integer.parseInt(line.substring("Version Age: ".length()).trim());
+				} else if (line.startsWith("Previous Version Was: ")) {
+					previousVersion = line.substring("Previous Version Was: ".length());
+					if (previousVersion.equals("N/A")) {
+						previousVersion = null;
+					}
+				} else if (line.isEmpty()) {
+					section = null;
+				} else if (line.equals("====================")) {
+					continue;
+				} else if (section != null) {
+					section.add(line);
+				} else {
+					for (ChangeKind kind : ChangeKind.values()) {
+						if (line.startsWith(kind.getSectionTitle() + ": ")) {
+							section = files.get(kind);
+						}
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return The age of the version, where 0 is the most recent version
+	 */
+	public int getVersionAge() {
+		return versionAge;
+	}
+
+	/**
+	 * @return The name of the previous version, or null if this is the
+	 *         oldest version
+	 */
+	public String getPreviousVersion() {
+		return previousVersion;
+	}
+
+	/**
+	 * @return The paths of the files of the given kind, in sorted order
+	 */
+	public List<String> getFiles(ChangeKind kind) {
+		return files.get(kind);
+	}
+
+	/**
+	 * @return True if the given file changed in the given way in this version
+	 */
+	public boolean contains(ChangeKind kind, String path) {
+		return Collections.binarySearch(files.get(kind), path) >= 0;
+	}
+
+	/**
+	 * @return The total number of files listed in the diff
+	 */
+	public int size() {
+		int size = 0;
+		for (List<String> paths : files.values()) {
+			size += paths.size();
+		}
+		return size;
+	}
+}
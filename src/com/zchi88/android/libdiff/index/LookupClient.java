@@ -0,0 +1,176 @@
+package com.zchi88.android.libdiff.index;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A client for the {@link LookupServer}. Requests can be sent one at a time
+ * with {@link #query}, or pipelined in batches with {@link #queryAll}.
+ *
+ * Running this class on its own load tests a local server:
+ *
+ * <pre>
+ * java -cp LibDiff.jar com.zchi88.android.libdiff.index.LookupClient PORT CLIENTS BATCHES BATCH_SIZE REQUEST...
+ * </pre>
+ *
+ * Each of the CLIENTS connections sends BATCHES pipelined batches of
+ * BATCH_SIZE requests, cycling through the given requests, and the overall
+ * throughput and batch latencies are printed at the end.
+ */
+public class LookupClient implements Closeable {
+	/**
+	 * The most requests sent ahead of their responses.
+	 */
+	public static final int MAX_IN_FLIGHT = 256;
+
+	private final Socket socket;
+	private final BufferedReader reader;
+	private final BufferedWriter writer;
+
+	/**
+	 * Connects to a lookup server on this host.
+	 *
+	 * @param port
+	 *            - the port the server listens on
+	 * @throws IOException
+	 */
+	public LookupClient(int port) throws IOException {
+		this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		this.socket.setTcpNoDelay(true);
+		this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Sends a single request and waits for its response.
+	 *
+	 * @return The result lines of the response
+	 * @throws IOException
+	 *             if the server answered with an error
+	 */
+	public List<String> query(String request) throws IOException {
+		return queryAll(Arrays.asList(request)).get(0);
+	}
+
+	/**
+	 * Sends requests without waiting for their responses, and reads the
+	 * responses in order. At most {@link #MAX_IN_FLIGHT} requests are
+	 * unanswered at any time: the server stops reading while its responses are
+	 * not being read, so sending a large batch all at once could leave both
+	 * sides blocked on full socket buffers.
+	 *
+	 * @return The result lines of each response
+	 * @throws IOException
+	 *             if the server answered any request with an error
+	 */
+	public List<List<String>> queryAll(List<String> requests) throws IOException {
+		ArrayList<List<String>> responses = new ArrayList<List<String>>(requests.size());
+		IOException error = null;
+		int sent = 0;
+		for (int i = 0; i < requests.size(); i++) {
+			// Top the window up once half of it has been answered, so
+			// requests still go out in batches
+			if (sent < requests.size() && sent - i <= MAX_IN_FLIGHT / 2) {
+				while (sent < requests.size() && sent - i < MAX_IN_FLIGHT) {
+					writer.write(requests.get(sent++));
+					writer.write('\n');
+				}
+				writer.flush();
+			}
+
+			String status = reader.readLine();
+			if (status == null) {
+				throw new IOException("The lookup server closed the connection.");
+			}
+			ArrayList<String> results = new ArrayList<String>();
+			if (status.startsWith("OK ")) {
+				int count = Integer.parseInt(status.substring(3));
+				for (int j = 0; j < count; j++) {
+					results.add(reader.readLine());
+				}
+			} else if (error == null) {
+				// Keep reading so the connection stays usable
+				error = new IOException(requests.get(i) + ": " + status);
+			}
+			responses.add(results);
+		}
+		if (error != null) {
+			throw error;
+		}
+		return responses;
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 5) {
+			System.err.println("Usage: LookupClient PORT CLIENTS BATCHES BATCH_SIZE REQUEST...");
+			System.exit(-1);
+		}
+
+		final int port = Integer.parseInt(args[0]);
+		int numClients = Integer.parseInt(args[1]);
+		final int numBatches = Integer.parseInt(args[2]);
+		final int batchSize = Integer.parseInt(args[3]);
+		final List<String> requests = Arrays.asList(args).subList(4, args.length);
+
+		ExecutorService clientThreads = Executors.newFixedThreadPool(numClients);
+		ArrayList<Future<long[]>> results = new ArrayList<Future<long[]>>();
+		long start = System.nanoTime();
+		for (int c = 0; c < numClients; c++) {
+			results.add(clientThreads.submit(new Callable<long[]>() {
+				@Override
+				public long[] call() throws IOException {
+					long[] batchLatencies = new long[numBatches];
+					ArrayList<String> batch = new ArrayList<String>(batchSize);
+					for (int i = 0; i < batchSize; i++) {
+						batch.add(requests.get(i % requests.size()));
+					}
+					try (LookupClient client = new LookupClient(port)) {
+						for (int b = 0; b < numBatches; b++) {
+							long batchStart = System.nanoTime();
+							client.queryAll(batch);
+							batchLatencies[b] = System.nanoTime() - batchStart;
+						}
+					}
+					return batchLatencies;
+				}
+			}));
+		}
+
+		ArrayList<Long> latencies = new ArrayList<Long>();
+		for (Future<long[]> result : results) {
+			for (long latency : result.get()) {
+				latencies.add(latency);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		clientThreads.shutdown();
+
+		Collections.sort(latencies);
+		long totalRequests = (long) numClients * numBatches * batchSize;
+		System.out.format("%d requests in %.2f s (%.0f requests/s)\n", totalRequests, elapsed / 1e9,
+				totalRequests / (elapsed / 1e9));
+		System.out.format("Batch latency: p50 %.2f ms, p99 %.2f ms, max %.2f ms\n",
+				latencies.get(latencies.size() / 2) / 1e6, latencies.get((int) (latencies.size() * 0.99)) / 1e6,
+				latencies.get(latencies.size() - 1) / 1e6);
+	}
+}
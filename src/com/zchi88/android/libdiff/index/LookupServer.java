@@ -0,0 +1,271 @@
+package com.zchi88.android.libdiff.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zchi88.android.libdiff.utilities.ChangeKind;
+import com.zchi88.android.libdiff.utilities.IoThrottle;
+
+/**
+ * Serves lookups against a shared {@link LibDiffIndex} to other processes on
+ * the same host. The server only listens on the loopback interface.
+ *
+ * The protocol is line based. Each request is a single line, and each
+ * response starts with either "OK n" followed by n result lines, or "ERR"
+ * followed by a message. Requests may be pipelined: a client can send many
+ * requests without waiting, and the responses come back in the same order.
+ * Responses are flushed once all requests received so far have been answered,
+ * so a pipelined batch is answered with as few writes as possible.
+ *
+ * Supported requests:
+ * <ul>
+ * <li>CLASS md5 - the library, version and path of every class with that
+ * hash</li>
+ * <li>VERSIONS library - the versions of a library, most recent first</li>
+ * <li>SUMMARY library version - the age, previous version and number of files
+ * of each kind in the diff of a version</li>
+ * <li>SIMILARITY library version - the path and estimated similarity of each
+ * modified class in the diff of a version, if the version was sketched</li>
+ * <li>SIMILAR library version path [min] - the library, version, path and
+ * estimated similarity of every class of the sketched versions of the library
+ * that is at least min (default 0.5) similar to the given class</li>
+ * <li>LIBRARIES - the names of all libraries</li>
+ * <li>STATS - request counts, cache statistics and I/O throttling</li>
+ * <li>THROTTLE [read|write|opens limit] - the I/O limits and how much each has
+ * throttled the tool, after changing one of them if given. A limit of 0 or
+ * "unlimited" removes it. Any local user can connect to the server, so limits
+ * can only be changed if the server was created to allow it</li>
+ * <li>PING - replies with no results</li>
+ * </ul>
+ */
+public class LookupServer implements Runnable {
+	public static final int DEFAULT_PORT = 7865;
+	public static final double DEFAULT_MIN_SIMILARITY = 0.5;
+
+	private final LibDiffIndex index;
+	private final ServerSocket serverSocket;
+	private final ExecutorService clientThreads;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong clients = new AtomicLong();
+	private final boolean allowThrottle;
+
+	/**
+	 * Binds a read-only server to a port on the loopback interface.
+	 *
+	 * @param index
+	 *            - the index shared by all clients
+	 * @param port
+	 *            - the port to listen on, or 0 for any free port
+	 * @throws IOException
+	 */
+	public LookupServer(LibDiffIndex index, int port) throws IOException {
+		this(index, port, false);
+	}
+
+	/**
+	 * Binds the server to a port on the loopback interface.
+	 *
+	 * @param index
+	 *            - the index shared by all clients
+	 * @param port
+	 *            - the port to listen on, or 0 for any free port
+	 * @param allowThrottle
+	 *            - whether clients may change the I/O limits with THROTTLE
+	 * @throws IOException
+	 */
+	public LookupServer(LibDiffIndex index, int port, boolean allowThrottle) throws IOException {
+		this.index = index;
+		this.allowThrottle = allowThrottle;
+		this.serverSocket = new ServerSocket();
+		this.serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		this.clientThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "libdiff-lookup-client");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts accepting clients on a background daemon thread.
+	 */
+	public void start() {
+		Thread thread = new Thread(this, "libdiff-lookup-server");
+		thread.setDaemon(true);
+		thread.start();
+		System.out.format("Lookup server is listening on %s.\n", serverSocket.getLocalSocketAddress());
+	}
+
+	/**
+	 * @return The port the server is listening on
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	@Override
+	public void run() {
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket client = serverSocket.accept();
+				clients.incrementAndGet();
+				clientThreads.execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(client);
+					}
+				});
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					System.err.println("Lookup server failed to accept a client: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting clients and disconnects the connected ones.
+	 */
+	public void close() throws IOException {
+		serverSocket.close();
+		clientThreads.shutdownNow();
+	}
+
+	private void serve(Socket client) {
+		try (Socket socket = client) {
+			socket.setTcpNoDelay(true);
+			BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+			BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+			BufferedWriter writer = new BufferedWriter(
+					new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 64 * 1024);
+
+			String request;
+			while ((request = reader.readLine()) != null) {
+				requests.incrementAndGet();
+				respond(request.trim(), writer);
+
+				// Only flush once every pipelined request has been answered
+				if (!reader.ready()) {
+					writer.flush();
+				}
+			}
+			writer.flush();
+		} catch (IOException e) {
+			// The client went away
+		}
+	}
+
+	private void respond(String request, BufferedWriter writer) throws IOException {
+		String[] words = request.split("\\s+");
+		List<String> results;
+		try {
+			results = answer(words);
+		} catch (IOException | RuntimeException e) {
+			writeLine(writer, "ERR " + e.getMessage());
+			return;
+		}
+
+		if (results == null) {
+			writeLine(writer, "ERR unknown request: " + request);
+			return;
+		}
+		writeLine(writer, "OK " + results.size());
+		for (String result : results) {
+			writeLine(writer, result);
+		}
+	}
+
+	private List<String> answer(String[] words) throws IOException {
+		String command = words[0].toUpperCase();
+		ArrayList<String> results = new ArrayList<String>();
+
+		if (command.equals("CLASS") && words.length == 2) {
+			for (ClassLocation location : index.findClass(words[1])) {
+				results.add(location.toString());
+			}
+		} else if (command.equals("VERSIONS") && words.length == 2) {
+			results.addAll(index.listVersions(words[1]));
+		} else if (command.equals("SUMMARY") && words.length == 3) {
+			LibraryDiff diff = index.getDiff(words[1], words[2]);
+			if (diff == null) {
+				throw new IOException("no diff for " + words[1] + " " + words[2]);
+			}
+			results.add("age " + diff.getVersionAge());
+			results.add("previous " + (diff.getPreviousVersion() == null ? "N/A" : diff.getPreviousVersion()));
+			for (ChangeKind kind : ChangeKind.values()) {
+				results.add(kind.name().toLowerCase() + " " + diff.getFiles(kind).size());
+			}
+		} else if (command.equals("SIMILARITY") && words.length == 3) {
+			Map<String, Double> similarity = index.getSimilarity(words[1], words[2]);
+			if (similarity == null) {
+				throw new IOException("no similarity report for " + words[1] + " " + words[2]);
+			}
+			for (Map.Entry<String, Double> entry : new TreeMap<String, Double>(similarity).entrySet()) {
+				results.add(entry.getKey() + " " + formatSimilarity(entry.getValue()));
+			}
+		} else if (command.equals("SIMILAR") && (words.length == 4 || words.length == 5)) {
+			double minSimilarity = words.length == 5 ? Double.parseDouble(words[4]) : DEFAULT_MIN_SIMILARITY;
+			for (LshIndex.Match<ClassLocation> match : index.findSimilarClasses(words[1], words[2], words[3],
+					minSimilarity)) {
+				results.add(match.getValue() + " " + formatSimilarity(match.getSimilarity()));
+			}
+		} else if (command.equals("LIBRARIES") && words.length == 1) {
+			results.addAll(index.listLibraries());
+		} else if (command.equals("STATS") && words.length == 1) {
+			results.add("clients " + clients.get());
+			results.add("requests " + requests.get());
+			results.add("cache " + index.getCache());
+			for (IoThrottle.Limit limit : IoThrottle.Limit.values()) {
+				results.add("throttle " + IoThrottle.describe(limit));
+			}
+		} else if (command.equals("THROTTLE") && (words.length == 1 || words.length == 3)) {
+			if (words.length == 3) {
+				if (!allowThrottle) {
+					throw new IOException("changing limits is not allowed by this server");
+				}
+				IoThrottle.Limit limit = IoThrottle.Limit.forName(words[1]);
+				if (limit == null) {
+					throw new IOException("unknown limit: " + words[1]);
+				}
+				IoThrottle.setLimit(limit, IoThrottle.parseLimit(words[2]));
+			}
+			for (IoThrottle.Limit limit : IoThrottle.Limit.values()) {
+				results.add(IoThrottle.describe(limit));
+			}
+		} else if (command.equals("PING") && words.length == 1) {
+			// Nothing to return
+		} else {
+			return null;
+		}
+		return results;
+	}
+
+	private static String formatSimilarity(double similarity) {
+		return String.format(Locale.ROOT, "%.3f", similarity);
+	}
+
+	private static void writeLine(BufferedWriter writer, String line) throws IOException {
+		writer.write(line);
+		writer.write('\n');
+	}
+}
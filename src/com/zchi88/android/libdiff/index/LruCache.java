@@ -0,0 +1,127 @@
+package com.zchi88.android.libdiff.index;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread safe cache that holds values up to a total weight, evicting the
+ * least recently used values first. Hits, misses and evictions are counted so
+ * the cache can be tuned.
+ */
+public class LruCache<K, V> {
+	/**
+	 * Computes how much of the cache's capacity a value takes up.
+	 */
+	public interface Weigher<V> {
+		long weigh(V value);
+	}
+
+	private final LinkedHashMap<K, V> entries = new LinkedHashMap<K, V>(16, 0.75f, true);
+	private final long maxWeight;
+	private final Weigher<V> weigher;
+	private long weight = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public LruCache(long maxWeight, Weigher<V> weigher) {
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+	}
+
+	/**
+	 * @return The cached value for the key, or null if it is not cached
+	 */
+	public synchronized V get(K key) {
+		V value = entries.get(key);
+		if (value == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return value;
+	}
+
+	/**
+	 * Caches a value, evicting the least recently used values if the cache
+	 * is over its capacity. A value heavier than the whole cache is not
+	 * cached.
+	 */
+	public synchronized void put(K key, V value) {
+		long valueWeight = weigher.weigh(value);
+		remove(key);
+		if (valueWeight > maxWeight) {
+			return;
+		}
+		entries.put(key, value);
+		weight += valueWeight;
+
+		Iterator<Map.Entry<K, V>> eldest = entries.entrySet().iterator();
+		while (weight > maxWeight && eldest.hasNext()) {
+			Map.Entry<K, V> entry = eldest.next();
+			weight -= weigher.weigh(entry.getValue());
+			eldest.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Removes a value from the cache.
+	 */
+	public synchronized void remove(K key) {
+		V value = entries.remove(key);
+		if (value != null) {
+			weight -= weigher.weigh(value);
+		}
+	}
+
+	/**
+	 * Removes every value whose key matches the filter.
+	 */
+	public synchronized void removeIf(KeyFilter<K> filter) {
+		Iterator<Map.Entry<K, V>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<K, V> entry = iterator.next();
+			if (filter.matches(entry.getKey())) {
+				weight -= weigher.weigh(entry.getValue());
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Selects keys to remove from the cache.
+	 */
+	public interface KeyFilter<K> {
+		boolean matches(K key);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d entries, weight %d/%d, %d hits, %d misses, %d evictions", size(), getWeight(),
+				maxWeight, getHits(), getMisses(), getEvictions());
+	}
+}
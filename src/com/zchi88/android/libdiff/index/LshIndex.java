@@ -0,0 +1,159 @@
+package com.zchi88.android.libdiff.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import com.zchi88.android.libdiff.utilities.ClassSketcher;
+
+/**
+ * Finds items with similar MinHash signatures without comparing against every
+ * item (locality sensitive hashing).
+ *
+ * Each signature is split into bands of consecutive values, and each item is
+ * put in one bucket per band, keyed by the values of that band. Two items end
+ * up sharing a bucket if any of their bands are identical, which is likely for
+ * similar items and unlikely for dissimilar ones. A query only compares the
+ * signatures of the items that share a bucket with it. With the default 16
+ * bands of 4 values, items that are 50% similar are found about 2 times out of
+ * 3, and items that are 80% similar almost always.
+ *
+ * @param <T>
+ *            - the type of the items
+ */
+public class LshIndex<T> {
+	public static final int DEFAULT_BANDS = 16;
+
+	private final int bands;
+	private final int rows;
+	private final HashMap<Long, List<Item<T>>> buckets = new HashMap<Long, List<Item<T>>>();
+	private int size = 0;
+
+	public LshIndex() {
+		this(DEFAULT_BANDS);
+	}
+
+	/**
+	 * @param bands
+	 *            - how many bands to split each signature into. Must divide
+	 *            {@link ClassSketcher#SIGNATURE_SIZE}. More bands find less
+	 *            similar items, at the cost of more comparisons.
+	 */
+	public LshIndex(int bands) {
+		if (bands <= 0 || ClassSketcher.SIGNATURE_SIZE % bands != 0) {
+			throw new IllegalArgumentException("The number of bands must divide " + ClassSketcher.SIGNATURE_SIZE);
+		}
+		this.bands = bands;
+		this.rows = ClassSketcher.SIGNATURE_SIZE / bands;
+	}
+
+	/**
+	 * Adds an item to the index.
+	 *
+	 * @param value
+	 *            - the item
+	 * @param signature
+	 *            - its MinHash signature
+	 */
+	public void add(T value, int[] signature) {
+		Item<T> item = new Item<T>(value, signature);
+		for (int band = 0; band < bands; band++) {
+			Long key = bucketOf(signature, band);
+			List<Item<T>> bucket = buckets.get(key);
+			if (bucket == null) {
+				bucket = new ArrayList<Item<T>>(1);
+				buckets.put(key, bucket);
+			}
+			bucket.add(item);
+		}
+		size++;
+	}
+
+	/**
+	 * Finds the items whose signatures are similar to the given one.
+	 *
+	 * @param signature
+	 *            - the signature to compare against
+	 * @param minSimilarity
+	 *            - the lowest estimated similarity to report, between 0 and 1
+	 * @return The matching items, most similar first
+	 */
+	public List<Match<T>> query(int[] signature, double minSimilarity) {
+		IdentityHashMap<Item<T>, Boolean> candidates = new IdentityHashMap<Item<T>, Boolean>();
+		ArrayList<Match<T>> matches = new ArrayList<Match<T>>();
+		for (int band = 0; band < bands; band++) {
+			List<Item<T>> bucket = buckets.get(bucketOf(signature, band));
+			if (bucket == null) {
+				continue;
+			}
+			for (Item<T> item : bucket) {
+				if (candidates.put(item, Boolean.TRUE) != null) {
+					continue;
+				}
+				double similarity = ClassSketcher.similarity(signature, item.signature);
+				if (similarity >= minSimilarity) {
+					matches.add(new Match<T>(item.value, similarity));
+				}
+			}
+		}
+		Collections.sort(matches, new Comparator<Match<T>>() {
+			@Override
+			public int compare(Match<T> first, Match<T> second) {
+				return Double.compare(second.similarity, first.similarity);
+			}
+		});
+		return matches;
+	}
+
+	/**
+	 * @return The number of items in the index
+	 */
+	public int size() {
+		return size;
+	}
+
+	private Long bucketOf(int[] signature, int band) {
+		long key = band;
+		for (int i = band * rows; i < (band + 1) * rows; i++) {
+			key = key * 0x100000001B3L + signature[i];
+		}
+		return key;
+	}
+
+	private static class Item<T> {
+		private final T value;
+		private final int[] signature;
+
+		private Item(T value, int[] signature) {
+			this.value = value;
+			this.signature = signature;
+		}
+	}
+
+	/**
+	 * An item found by a query, along with its estimated similarity.
+	 */
+	public static class Match<T> {
+		private final T value;
+		private final double similarity;
+
+		private Match(T value, double similarity) {
+			this.value = value;
+			this.similarity = similarity;
+		}
+
+		public T getValue() {
+			return value;
+		}
+
+		/**
+		 * @return The estimated similarity to the query, between 0 and 1
+		 */
+		public double getSimilarity() {
+			return similarity;
+		}
+	}
+}
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Enumeration;
@@ -36,6 +37,9 @@ public class AarToJar {
 	 * Note that although this uses the java JarFile class, it works for
 	 * unzipping AAR files as well.
 	 * 
+	 * The AAR is only deleted once the JAR has been completely written, so an
+	 * interrupted conversion is simply done again.
+	 * 
 	 * @param aarPath
 	 *            - the String representation of the file path to the AAR
 	 * @throws IOException
@@ -45,6 +49,7 @@ public class AarToJar {
 		String nameOfAar = pathToAar.getName();
 		JarFile aar = new JarFile(aarPath);
 		Enumeration<JarEntry> filesInAar = aar.entries();
+		File jarFile = new File(pathToAar.getParent() + java.io.File.separator + nameOfAar.replace(".aar", ".jar"));
 
 		System.out.format("AAR file found. Attempting to extract classes.jar from %s...\n", pathToAar);
 
@@ -61,7 +66,9 @@ public class AarToJar {
 				String nameOfJar;
 				nameOfJar = nameOfAar.replace(".aar", ".jar");
 
-				File newFile = new File(pathToAar.getParent() + java.io.File.separator + nameOfJar);
+				// Write to a temporary file first, so that a partly written
+				// JAR is never mistaken for a complete one
+				File newFile = new File(pathToAar.getParent() + java.io.File.separator + nameOfJar + ".part");
 
 				if (fileSize > sizeTracker) {
 					sizeTracker = fileSize;
@@ -70,11 +77,14 @@ public class AarToJar {
 					}
 				}
 
+				IoThrottle.acquireRead(Math.max(0, file.getCompressedSize()));
+				IoThrottle.acquireOpen();
 				InputStream is = aar.getInputStream(file);
-				FileOutputStream os = new FileOutputStream(newFile);
-				while (is.available() > 0) { // Write contents of InputStream to
-												// FileOutputStream
-					os.write(is.read());
+				OutputStream os = IoThrottle.throttle(new FileOutputStream(newFile));
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = is.read(buffer)) != -1) {
+					os.write(buffer, 0, read);
 				}
 				os.close();
 				is.close();
@@ -83,6 +93,13 @@ public class AarToJar {
 
 		aar.close();
 
+		File partialJar = new File(jarFile + ".part");
+		if (partialJar.exists()) {
+			SafeFiles.move(partialJar.toPath(), jarFile.toPath());
+			CheckpointJournal.record(new File(jarFile.toString().replace(".jar", "")),
+					CheckpointJournal.Stage.CONVERTED, "");
+		}
+
 		System.out.println("JAR extraction completed!");
 		deleteAar(aarPath);
 	}
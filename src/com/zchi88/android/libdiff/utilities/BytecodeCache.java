@@ -0,0 +1,453 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Manages the extracted bytecode of a whitelist as a cache with a disk
+ * budget. Once the bytecode of all versions takes up more than the budget,
+ * the bytecode of the least recently used versions is evicted.
+ *
+ * Evicting a version only deletes its class files. Its folder, along with its
+ * diff, manifest and other txt files, is kept, so the version still counts as
+ * extracted and its diffs can still be computed from its manifest. An
+ * EVICTED checkpoint remembers that the bytecode is gone, and the bytecode is
+ * extracted again from the JAR by {@link #ensureExtracted} when it is
+ * actually needed, e.g. to sketch or fingerprint its classes.
+ *
+ * A version is only evicted once its manifest and diff have been written,
+ * never while its library is being processed or its bytecode is being read,
+ * and never within a minute of being restored. Without a budget, nothing is
+ * ever evicted.
+ *
+ * Bytecode is restored and deleted without holding the cache's lock, so
+ * other versions can be used meanwhile. A version being restored or evicted
+ * is marked as busy, and anything that needs it waits for that to finish.
+ */
+public class BytecodeCache {
+	/**
+	 * How long a version is protected from eviction after its bytecode is
+	 * restored, so that it is not evicted again before it is read.
+	 */
+	private static final long PROTECTION_MILLIS = 60000;
+
+	private static final Object lock = new Object();
+
+	private static long budgetBytes = -1;
+	private static long cachedBytes = 0;
+	private static long evictions = 0;
+	private static long restores = 0;
+
+	// The size and last use of the bytecode of every version that is not
+	// evicted
+	private static final HashMap<File, CachedVersion> versions = new HashMap<File, CachedVersion>();
+
+	// Libraries being processed, and how many threads are processing each
+	private static final HashMap<File, Integer> librariesInUse = new HashMap<File, Integer>();
+
+	// Versions whose bytecode is being read, and how many threads are reading
+	// each
+	private static final HashMap<File, Integer> versionsInUse = new HashMap<File, Integer>();
+
+	// Versions whose bytecode is being restored or evicted
+	private static final HashSet<File> busyVersions = new HashSet<File>();
+
+	private static class CachedVersion {
+		private final long bytes;
+		private long lastUsed;
+		private long protectedUntil = 0;
+
+		private CachedVersion(long bytes, long lastUsed) {
+			this.bytes = bytes;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	/**
+	 * Sets the disk budget of a whitelist's extracted bytecode, and finds the
+	 * versions that are already extracted. Versions are considered to have
+	 * been used when their folder was last modified.
+	 *
+	 * @param whitelist
+	 *            - the path to the whitelist
+	 * @param maxBytes
+	 *            - the budget in bytes
+	 * @throws IOException
+	 */
+	public static void configure(Path whitelist, long maxBytes) throws IOException {
+		File[] libraries = whitelist.toFile().listFiles();
+		synchronized (lock) {
+			budgetBytes = maxBytes;
+			if (libraries == null) {
+				return;
+			}
+			for (File library : libraries) {
+				if (!library.isDirectory() || WhitelistState.isStateFolder(library)) {
+					continue;
+				}
+				CheckpointJournal checkpoints = CheckpointJournal.forLibrary(library.toPath());
+				File[] files = library.listFiles();
+				if (files == null) {
+					continue;
+				}
+				for (File file : files) {
+					File versionFolder = new File(file.toString().replace(".jar", ""));
+					String version = versionFolder.getName();
+					if (!file.getName().endsWith(".jar") || !versionFolder.isDirectory()
+							|| !checkpoints.has(version, CheckpointJournal.Stage.EXTRACTED)
+							|| checkpoints.has(version, CheckpointJournal.Stage.EVICTED)) {
+						continue;
+					}
+					long bytes = parseSize(checkpoints.getDetail(version, CheckpointJournal.Stage.EXTRACTED));
+					if (bytes < 0) {
+						// Extracted before sizes were recorded
+						bytes = sizeOf(versionFolder.toPath());
+						checkpoints.record(version, CheckpointJournal.Stage.EXTRACTED, String.valueOf(bytes));
+					}
+					add(versionFolder, bytes, versionFolder.lastModified());
+				}
+			}
+		}
+		System.out.format("Extracted bytecode takes up %.1f MB of its %.1f MB budget.\n", cachedBytes / 1e6,
+				maxBytes / 1e6);
+		evictIfOverBudget();
+	}
+
+	/**
+	 * Records that the bytecode of a version was just extracted, and evicts
+	 * other versions if the budget is now exceeded.
+	 *
+	 * @param versionFolder
+	 *            - the folder the bytecode was extracted to
+	 * @param bytes
+	 *            - the size of the extracted bytecode
+	 * @throws IOException
+	 */
+	public static void recordExtracted(File versionFolder, long bytes) throws IOException {
+		synchronized (lock) {
+			if (budgetBytes < 0) {
+				return;
+			}
+			add(versionFolder, bytes, System.currentTimeMillis());
+		}
+		evictIfOverBudget();
+	}
+
+	/**
+	 * Makes sure the bytecode of a version is on disk, extracting it from its
+	 * JAR again if it was evicted, and keeps it from being evicted until
+	 * {@link #releaseExtracted} is called. This must be called before reading
+	 * any of the version's class files.
+	 *
+	 * @param versionFolder
+	 *            - the folder of the version
+	 * @throws IOException
+	 *             if the bytecode was evicted and the JAR no longer exists
+	 */
+	public static void ensureExtracted(File versionFolder) throws IOException {
+		CheckpointJournal checkpoints = CheckpointJournal.forLibrary(versionFolder.getParentFile().toPath());
+		String version = versionFolder.getName();
+		File key = versionFolder.getAbsoluteFile();
+		synchronized (lock) {
+			awaitIdle(key);
+			Integer users = versionsInUse.get(key);
+			versionsInUse.put(key, users == null ? 1 : users + 1);
+			CachedVersion cached = versions.get(key);
+			if (cached != null) {
+				cached.lastUsed = System.currentTimeMillis();
+			}
+			if (!checkpoints.has(version, CheckpointJournal.Stage.EVICTED)) {
+				return;
+			}
+			busyVersions.add(key);
+		}
+
+		boolean restored = false;
+		try {
+			long bytes = restore(versionFolder);
+			checkpoints.clear(version, CheckpointJournal.Stage.EVICTED);
+			restored = true;
+			synchronized (lock) {
+				restores++;
+				if (budgetBytes >= 0) {
+					long now = System.currentTimeMillis();
+					add(versionFolder, bytes, now).protectedUntil = now + PROTECTION_MILLIS;
+				}
+			}
+		} finally {
+			synchronized (lock) {
+				busyVersions.remove(key);
+				lock.notifyAll();
+			}
+			if (!restored) {
+				releaseExtracted(versionFolder);
+			}
+		}
+	}
+
+	/**
+	 * Allows the bytecode of a version to be evicted again once every
+	 * {@link #ensureExtracted} call for it has been released.
+	 *
+	 * @param versionFolder
+	 *            - the folder of the version
+	 * @throws IOException
+	 */
+	public static void releaseExtracted(File versionFolder) throws IOException {
+		File key = versionFolder.getAbsoluteFile();
+		synchronized (lock) {
+			removeUser(versionsInUse, key);
+		}
+		evictIfOverBudget();
+	}
+
+	/**
+	 * Extracts the bytecode of an evicted version from its JAR again.
+	 *
+	 * @return The size of the bytecode
+	 */
+	private static long restore(File versionFolder) throws IOException {
+		File jarFile = new File(versionFolder + ".jar");
+		if (!jarFile.exists()) {
+			throw new IOException("The bytecode of " + versionFolder + " was evicted and " + jarFile
+					+ " no longer exists.");
+		}
+		System.out.format("Restoring the evicted bytecode of %s...\n", versionFolder);
+
+		// Extract the JAR next to the version folder, then move its class
+		// files in. If this is interrupted, the version is still marked as
+		// evicted and is restored again the next time.
+		final Path restored = Paths.get(versionFolder + JarExtractor.PARTIAL_SUFFIX);
+		long bytes = JarExtractor.extractTo(jarFile.toPath(), restored);
+		final Path target = versionFolder.toPath();
+		Files.walkFileTree(restored, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Path destination = target.resolve(restored.relativize(file).toString());
+				Files.createDirectories(destination.getParent());
+				Files.move(file, destination, StandardCopyOption.REPLACE_EXISTING);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		SafeFiles.deleteRecursively(restored);
+		return bytes;
+	}
+
+	/**
+	 * Waits until a version is neither being restored nor evicted. Must be
+	 * called while holding the lock.
+	 */
+	private static void awaitIdle(File versionFolder) throws IOException {
+		while (busyVersions.contains(versionFolder)) {
+			try {
+				lock.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for " + versionFolder);
+			}
+		}
+	}
+
+	/**
+	 * Prevents the versions of a library from being evicted while it is being
+	 * processed. Must be followed by a call to {@link #release}.
+	 */
+	public static void retain(File library) throws IOException {
+		File key = library.getAbsoluteFile();
+		synchronized (lock) {
+			Integer users = librariesInUse.get(key);
+			librariesInUse.put(key, users == null ? 1 : users + 1);
+			// Let evictions already under way in the library finish
+			boolean evicting = true;
+			while (evicting) {
+				evicting = false;
+				for (File busy : busyVersions) {
+					evicting |= key.equals(busy.getParentFile());
+				}
+				if (evicting) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						removeUser(librariesInUse, key);
+						throw new IOException("Interrupted while waiting for " + library);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Allows the versions of a library to be evicted again.
+	 */
+	public static void release(File library) throws IOException {
+		synchronized (lock) {
+			removeUser(librariesInUse, library.getAbsoluteFile());
+		}
+		evictIfOverBudget();
+	}
+
+	/**
+	 * Evicts the least recently used versions until the bytecode fits in the
+	 * budget, or no more versions can be evicted.
+	 */
+	private static void evictIfOverBudget() throws IOException {
+		while (true) {
+			File coldest = null;
+			CachedVersion coldestVersion = null;
+			synchronized (lock) {
+				if (budgetBytes < 0 || cachedBytes <= budgetBytes) {
+					return;
+				}
+				for (Map.Entry<File, CachedVersion> entry : versions.entrySet()) {
+					CachedVersion candidate = entry.getValue();
+					if ((coldestVersion == null || candidate.lastUsed < coldestVersion.lastUsed)
+							&& isEvictable(entry.getKey(), candidate)) {
+						coldest = entry.getKey();
+						coldestVersion = candidate;
+					}
+				}
+				if (coldest == null) {
+					return;
+				}
+				// Counted as evicted right away, so other threads do not
+				// evict more than needed meanwhile
+				versions.remove(coldest);
+				cachedBytes -= coldestVersion.bytes;
+				busyVersions.add(coldest);
+			}
+
+			boolean evicted = false;
+			try {
+				evict(coldest);
+				evicted = true;
+			} finally {
+				synchronized (lock) {
+					if (!evicted && !CheckpointJournal.forLibrary(coldest.getParentFile().toPath())
+							.has(coldest.getName(), CheckpointJournal.Stage.EVICTED)) {
+						// Nothing was deleted, so keep tracking the version
+						add(coldest, coldestVersion.bytes, coldestVersion.lastUsed);
+					}
+					busyVersions.remove(coldest);
+					lock.notifyAll();
+				}
+			}
+			synchronized (lock) {
+				evictions++;
+			}
+			System.out.format("Evicted the bytecode of %s (%.1f MB).\n", coldest, coldestVersion.bytes / 1e6);
+		}
+	}
+
+	private static boolean isEvictable(File versionFolder, CachedVersion cached) {
+		return cached.protectedUntil < System.currentTimeMillis()
+				&& !librariesInUse.containsKey(versionFolder.getParentFile())
+				&& !versionsInUse.containsKey(versionFolder) && !busyVersions.contains(versionFolder)
+				&& new File(versionFolder, FileManifest.MANIFEST_FILE_NAME).exists()
+				&& new File(versionFolder, "diff.txt").exists();
+	}
+
+	/**
+	 * Deletes the class files of a version, keeping its txt files.
+	 */
+	private static void evict(File versionFolder) throws IOException {
+		// Record the eviction first, so an interrupted eviction is restored
+		// rather than trusted
+		CheckpointJournal.record(versionFolder, CheckpointJournal.Stage.EVICTED, "");
+		final Path root = versionFolder.toPath();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (!file.getFileName().toString().endsWith(".txt")) {
+					Files.delete(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				if (!dir.equals(root)) {
+					String[] remaining = dir.toFile().list();
+					if (remaining != null && remaining.length == 0) {
+						Files.delete(dir);
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private static void removeUser(HashMap<File, Integer> usersByFile, File file) {
+		Integer users = usersByFile.remove(file);
+		if (users != null && users > 1) {
+			usersByFile.put(file, users - 1);
+		}
+	}
+
+	private static CachedVersion add(File versionFolder, long bytes, long lastUsed) {
+		CachedVersion added = new CachedVersion(bytes, lastUsed);
+		CachedVersion previous = versions.put(versionFolder.getAbsoluteFile(), added);
+		if (previous != null) {
+			cachedBytes -= previous.bytes;
+		}
+		cachedBytes += bytes;
+		return added;
+	}
+
+	private static long parseSize(String detail) {
+		try {
+			return Long.parseLong(detail);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return The total size of the files of a folder, ignoring txt files
+	 */
+	private static long sizeOf(Path folder) throws IOException {
+		final long[] bytes = new long[1];
+		Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (!file.getFileName().toString().endsWith(".txt")) {
+					bytes[0] += attrs.size();
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return bytes[0];
+	}
+
+	/**
+	 * @return The size of the bytecode that is currently extracted, as
+	 *         tracked by the cache
+	 */
+	public static long getCachedBytes() {
+		synchronized (lock) {
+			return cachedBytes;
+		}
+	}
+
+	public static long getEvictions() {
+		synchronized (lock) {
+			return evictions;
+		}
+	}
+
+	public static long getRestores() {
+		synchronized (lock) {
+			return restores;
+		}
+	}
+}
@@ -0,0 +1,353 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * An append-only log of the diffs written by {@link DiffComputer}, so that
+ * downstream systems can follow new results with a {@link ChangeFeedReader}
+ * instead of scanning the whitelist for fresh diff.txt files.
+ *
+ * The feed is kept in ".libdiff/feed" as a sequence of segment files. Each
+ * segment is named after the offset of its first record, zero padded to 20
+ * digits, with a ".log" extension. Once a segment grows past a size limit, a
+ * new one is started, and the oldest segments are deleted if there are more
+ * than a given number of them.
+ *
+ * Each record is one line of tab separated fields: its offset (starting at 0
+ * and increasing by one per record), the time it was written in milliseconds,
+ * "written" or "replaced", the library, the version, the version age, the
+ * previous version (or N/A), the number of new, modified, deleted and copied
+ * files separated by commas, and the path of the version's manifest relative
+ * to the whitelist. A record is complete once its line ends; a last line that
+ * was only partly written (e.g. because the tool was killed) is discarded the
+ * next time the feed is opened, and a record that failed to be written is cut
+ * off right away.
+ *
+ * Failing to append a record is reported to {@link DiffComputer} by throwing
+ * an exception, so that the diff is not checkpointed and is published again
+ * when its library is next processed.
+ */
+public class ChangeFeed implements DiffListener {
+	public static final String FEED_FOLDER_NAME = "feed";
+	public static final String SEGMENT_SUFFIX = ".log";
+	public static final long DEFAULT_SEGMENT_BYTES = 16L << 20;
+
+	private final Path whitelist;
+	private final File folder;
+	private final long segmentBytes;
+	private final int maxSegments;
+	private FileOutputStream segment;
+	private long segmentSize;
+	private long nextOffset;
+
+	/**
+	 * A single record of the feed.
+	 */
+	public static class Record {
+		private final long offset;
+		private final long timeMillis;
+		private final boolean replacement;
+		private final String library;
+		private final String version;
+		private final int versionAge;
+		private final String previousVersion;
+		private final int[] counts;
+		private final String manifest;
+
+		private Record(long offset, long timeMillis, boolean replacement, String library, String version,
+				int versionAge, String previousVersion, int[] counts, String manifest) {
+			this.offset = offset;
+			this.timeMillis = timeMillis;
+			this.replacement = replacement;
+			this.library = library;
+			this.version = version;
+			this.versionAge = versionAge;
+			this.previousVersion = previousVersion;
+			this.counts = counts;
+			this.manifest = manifest;
+		}
+
+		/**
+		 * Parses a line of a segment.
+		 *
+		 * @throws IOException
+		 *             if the line is not a valid record
+		 */
+		static Record parse(String line) throws IOException {
+			String[] fields = line.split("\t");
+			if (fields.length != 9) {
+				throw new IOException("Malformed change feed record: " + line);
+			}
+			try {
+				String[] countFields = fields[7].split(",");
+				int[] counts = new int[ChangeKind.values().length];
+				for (int i = 0; i < counts.length && i < countFields.length; i++) {
+					counts[i] = Integer.parseInt(countFields[i]);
+				}
+				return new Record(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+						fields[2].equals("replaced"), fields[3], fields[4], Integer.parseInt(fields[5]),
+						fields[6].equals("N/A") ? null : fields[6], counts, fields[8]);
+			} catch (NumberFormatException e) {
+				throw new IOException("Malformed change feed record: " + line, e);
+			}
+		}
+
+		String format() {
+			StringBuilder countList = new StringBuilder();
+			for (int i = 0; i < counts.length; i++) {
+				countList.append(i == 0 ? "" : ",").append(counts[i]);
+			}
+			return String.format(Locale.ROOT, "%d\t%d\t%s\t%s\t%s\t%d\t%s\t%s\t%s", offset, timeMillis,
+					replacement ? "replaced" : "written", library, version, versionAge,
+					previousVersion == null ? "N/A" : previousVersion, countList, manifest);
+		}
+
+		/**
+		 * @return The position of the record in the feed. The next record has
+		 *         the next offset.
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * @return When the diff was written, in milliseconds since the epoch
+		 */
+		public long getTimeMillis() {
+			return timeMillis;
+		}
+
+		/**
+		 * @return True if the diff replaced an earlier diff of the same
+		 *         version
+		 */
+		public boolean isReplacement() {
+			return replacement;
+		}
+
+		public String getLibrary() {
+			return library;
+		}
+
+		public String getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return The age of the version, where 0 is the most recent version
+		 */
+		public int getVersionAge() {
+			return versionAge;
+		}
+
+		/**
+		 * @return The previous version, or null if this is the oldest version
+		 */
+		public String getPreviousVersion() {
+			return previousVersion;
+		}
+
+		/**
+		 * @return The number of files of the given kind in the diff
+		 */
+		public int getCount(ChangeKind kind) {
+			return counts[kind.ordinal()];
+		}
+
+		/**
+		 * @return The path of the version's manifest, relative to the
+		 *         whitelist
+		 */
+		public String getManifest() {
+			return manifest;
+		}
+
+		@Override
+		public String toString() {
+			return format();
+		}
+	}
+
+	/**
+	 * Opens the change feed of a whitelist for appending, creating it if it
+	 * does not exist.
+	 *
+	 * @param whitelist
+	 *            - the path to the whitelist
+	 * @param segmentBytes
+	 *            - the size past which a new segment is started
+	 * @param maxSegments
+	 *            - how many segments to keep, or 0 to keep them all
+	 * @throws IOException
+	 */
+	public ChangeFeed(Path whitelist, long segmentBytes, int maxSegments) throws IOException {
+		this.whitelist = whitelist;
+		this.folder = getFeedFolder(whitelist);
+		this.segmentBytes = segmentBytes;
+		this.maxSegments = maxSegments;
+		folder.mkdirs();
+		open();
+	}
+
+	/**
+	 * @return The folder the change feed of a whitelist is kept in
+	 * @throws IOException
+	 */
+	public static File getFeedFolder(Path whitelist) throws IOException {
+		return WhitelistState.getStateFolder(whitelist).resolve(FEED_FOLDER_NAME).toFile();
+	}
+
+	/**
+	 * @return The segments of a feed, oldest first
+	 */
+	static File[] listSegments(File folder) {
+		File[] segments = folder.listFiles();
+		if (segments == null) {
+			return new File[0];
+		}
+		ArrayList<File> logs = new ArrayList<File>();
+		for (File segment : segments) {
+			if (segment.getName().endsWith(SEGMENT_SUFFIX)) {
+				logs.add(segment);
+			}
+		}
+		File[] sorted = logs.toArray(new File[logs.size()]);
+		// Names are zero padded, so they sort by offset
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * @return The offset of the first record of a segment
+	 */
+	static long baseOffsetOf(File segment) {
+		String name = segment.getName();
+		return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	static String segmentName(long baseOffset) {
+		return String.format(Locale.ROOT, "%020d%s", baseOffset, SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Finds the offset of the next record from the last segment, cutting off
+	 * a last line that was only partly written.
+	 */
+	private void open() throws IOException {
+		File[] segments = listSegments(folder);
+		if (segments.length == 0) {
+			nextOffset = 0;
+			startSegment();
+			return;
+		}
+
+		File last = segments[segments.length - 1];
+		long records = 0;
+		long endOfLastRecord = 0;
+		try (RandomAccessFile file = new RandomAccessFile(last, "rw")) {
+			byte[] buffer = new byte[65536];
+			long position = 0;
+			int read;
+			while ((read = file.read(buffer)) > 0) {
+				for (int i = 0; i < read; i++) {
+					if (buffer[i] == '\n') {
+						records++;
+						endOfLastRecord = position + i + 1;
+					}
+				}
+				position += read;
+			}
+			if (endOfLastRecord < file.length()) {
+				file.setLength(endOfLastRecord);
+			}
+		}
+		nextOffset = baseOffsetOf(last) + records;
+		segment = new FileOutputStream(last, true);
+		segmentSize = endOfLastRecord;
+	}
+
+	private void startSegment() throws IOException {
+		if (segment != null) {
+			segment.close();
+		}
+		segment = new FileOutputStream(new File(folder, segmentName(nextOffset)), true);
+		segmentSize = 0;
+
+		if (maxSegments > 0) {
+			File[] segments = listSegments(folder);
+			for (int i = 0; i < segments.length - maxSegments; i++) {
+				segments[i].delete();
+			}
+		}
+	}
+
+	@Override
+	public synchronized void diffWritten(DiffEvent event) {
+		int[] counts = new int[ChangeKind.values().length];
+		for (ChangeKind kind : ChangeKind.values()) {
+			counts[kind.ordinal()] = event.getCount(kind);
+		}
+		String library = event.getLibrary().getFileName().toString();
+		String version = event.getVersion().getName();
+		Record record = new Record(nextOffset, System.currentTimeMillis(), event.isReplacement(), library, version,
+				event.getVersionAge(),
+				event.getPreviousVersion() == null ? null : event.getPreviousVersion().getName(), counts,
+				library + "/" + version + "/" + FileManifest.MANIFEST_FILE_NAME);
+		try {
+			if (segment == null) {
+				open();
+			}
+			if (segmentSize >= segmentBytes) {
+				startSegment();
+			}
+			// A single write per record, so readers never see a record
+			// interleaved with another
+			byte[] line = (record.format() + "\n").getBytes(StandardCharsets.UTF_8);
+			try {
+				segment.write(line);
+			} catch (IOException e) {
+				cutOff();
+				throw e;
+			}
+			segmentSize += line.length;
+			nextOffset++;
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to append to the change feed of " + whitelist + ": " + e.getMessage(),
+					e);
+		}
+	}
+
+	/**
+	 * Cuts off the part of a record that was written before a write failed,
+	 * so the next record does not end up on the same line. If even that
+	 * fails, the segment is closed, and the partial line is cut off when it
+	 * is opened again.
+	 */
+	private void cutOff() {
+		try {
+			segment.getChannel().truncate(segmentSize);
+		} catch (IOException e) {
+			try {
+				segment.close();
+			} catch (IOException ignored) {
+				// The segment is dropped either way
+			}
+			segment = null;
+		}
+	}
+
+	/**
+	 * @return The offset the next record will be written at
+	 */
+	public synchronized long getNextOffset() {
+		return nextOffset;
+	}
+}
@@ -0,0 +1,225 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * Follows the change feed of a whitelist from a given offset. A consumer that
+ * stores the offset returned by {@link #getNextOffset()} along with what it
+ * has processed can resume from that offset after a restart, without missing
+ * or repeating records, as long as the segment holding the offset has not
+ * been deleted.
+ *
+ * The reader only ever returns complete records, so it can run in another
+ * process while the tool is appending to the feed.
+ */
+public class ChangeFeedReader implements AutoCloseable {
+	private static final long POLL_MILLIS = 200;
+
+	private final File folder;
+	private RandomAccessFile segment;
+	private long segmentBase;
+	private long position;
+	private long nextOffset;
+
+	// Bytes read ahead from the current segment. buffer[bufferStart] is the
+	// byte at position, and the bytes up to bufferEnd follow it.
+	private byte[] buffer = new byte[65536];
+	private int bufferStart = 0;
+	private int bufferEnd = 0;
+
+	/**
+	 * Opens the change feed of a whitelist for reading.
+	 *
+	 * @param whitelist
+	 *            - the path to the whitelist
+	 * @param offset
+	 *            - the offset of the first record to read, or 0 to read the
+	 *            feed from its start
+	 * @throws IOException
+	 *             if the record at the offset has been deleted
+	 */
+	public ChangeFeedReader(Path whitelist, long offset) throws IOException {
+		this.folder = ChangeFeed.getFeedFolder(whitelist);
+		File[] segments = ChangeFeed.listSegments(folder);
+		if (segments.length == 0) {
+			// Nothing was written yet; wait for the first segment
+			nextOffset = offset;
+			return;
+		}
+
+		File first = null;
+		for (File candidate : segments) {
+			if (ChangeFeed.baseOffsetOf(candidate) <= offset) {
+				first = candidate;
+			}
+		}
+		if (first == null) {
+			long oldest = ChangeFeed.baseOffsetOf(segments[0]);
+			if (offset > 0) {
+				throw new IOException("Change feed offset " + offset + " was deleted; the oldest is " + oldest);
+			}
+			first = segments[0];
+			offset = oldest;
+		}
+
+		openSegment(first);
+		nextOffset = segmentBase;
+		// Skip the records before the offset
+		while (nextOffset < offset) {
+			if (readLine() == null) {
+				break;
+			}
+			nextOffset++;
+		}
+	}
+
+	private void openSegment(File file) throws IOException {
+		// Open the new segment first, so the current one is kept if there is
+		// no new one yet
+		RandomAccessFile opened = new RandomAccessFile(file, "r");
+		if (segment != null) {
+			segment.close();
+		}
+		segment = opened;
+		segmentBase = ChangeFeed.baseOffsetOf(file);
+		position = 0;
+		bufferStart = 0;
+		bufferEnd = 0;
+	}
+
+	/**
+	 * Reads the next complete line of the current segment. Lines are taken
+	 * from a buffer that is refilled with as many bytes as are available, so
+	 * a batch of records costs a few reads rather than one per record.
+	 *
+	 * @return The line, or null if there is no complete line yet
+	 */
+	private String readLine() throws IOException {
+		int scanned = bufferStart;
+		while (true) {
+			for (int i = scanned; i < bufferEnd; i++) {
+				if (buffer[i] == '\n') {
+					String line = new String(buffer, bufferStart, i - bufferStart, StandardCharsets.UTF_8);
+					position += i + 1 - bufferStart;
+					bufferStart = i + 1;
+					return line;
+				}
+			}
+			scanned = bufferEnd;
+
+			// Make room after the partial line, growing the buffer if the
+			// line fills all of it
+			int partial = bufferEnd - bufferStart;
+			if (bufferStart > 0) {
+				System.arraycopy(buffer, bufferStart, buffer, 0, partial);
+				scanned -= bufferStart;
+				bufferStart = 0;
+				bufferEnd = partial;
+			}
+			if (bufferEnd == buffer.length) {
+				byte[] grown = new byte[buffer.length * 2];
+				System.arraycopy(buffer, 0, grown, 0, bufferEnd);
+				buffer = grown;
+			}
+			segment.seek(position + partial);
+			int read = segment.read(buffer, bufferEnd, buffer.length - bufferEnd);
+			if (read <= 0) {
+				// The end of the segment may be a record that is still being
+				// written, or that the writer cuts off after a failed write,
+				// so read it again next time
+				bufferEnd = bufferStart;
+				return null;
+			}
+			bufferEnd += read;
+		}
+	}
+
+	/**
+	 * Moves on to the segment that starts at the next offset, if the feed has
+	 * been rotated.
+	 *
+	 * @return True if there is a next segment
+	 */
+	private boolean nextSegment() throws IOException {
+		File next = new File(folder, ChangeFeed.segmentName(nextOffset));
+		if (segment != null && next.getName().equals(ChangeFeed.segmentName(segmentBase))) {
+			return false;
+		}
+		try {
+			openSegment(next);
+			return true;
+		} catch (FileNotFoundException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the records that are available without waiting.
+	 *
+	 * @param max
+	 *            - the most records to return
+	 * @return The records, which may be none
+	 * @throws IOException
+	 */
+	public ArrayList<ChangeFeed.Record> poll(int max) throws IOException {
+		ArrayList<ChangeFeed.Record> records = new ArrayList<ChangeFeed.Record>();
+		if (segment == null && !nextSegment()) {
+			return records;
+		}
+		while (records.size() < max) {
+			String line = readLine();
+			if (line == null) {
+				// A segment is only complete once the next one exists
+				if (nextSegment()) {
+					continue;
+				}
+				break;
+			}
+			records.add(ChangeFeed.Record.parse(line));
+			nextOffset++;
+		}
+		return records;
+	}
+
+	/**
+	 * Waits for records to become available.
+	 *
+	 * @param max
+	 *            - the most records to return
+	 * @param timeoutMillis
+	 *            - how long to wait for at least one record
+	 * @return The records, or none if the timeout passed first
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public ArrayList<ChangeFeed.Record> take(int max, long timeoutMillis) throws IOException, InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		ArrayList<ChangeFeed.Record> records = poll(max);
+		while (records.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(Math.min(POLL_MILLIS, Math.max(1, deadline - System.currentTimeMillis())));
+			records = poll(max);
+		}
+		return records;
+	}
+
+	/**
+	 * @return The offset of the next record to be read, which a consumer can
+	 *         resume from
+	 */
+	public long getNextOffset() {
+		return nextOffset;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (segment != null) {
+			segment.close();
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package com.zchi88.android.libdiff.utilities;
+
+/**
+ * The ways a file can change between two consecutive versions of a library.
+ * Each kind corresponds to a section of a diff.txt file.
+ */
+public enum ChangeKind {
+	NEW("New Files"), MODIFIED("Modified Files"), DELETED("Deleted Files"), COPIED("Copied Files");
+
+	private final String sectionTitle;
+
+	private ChangeKind(String sectionTitle) {
+		this.sectionTitle = sectionTitle;
+	}
+
+	/**
+	 * @return The title of the diff.txt section listing files of this kind
+	 */
+	public String getSectionTitle() {
+		return sectionTitle;
+	}
+}
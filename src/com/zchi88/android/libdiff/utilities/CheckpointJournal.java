@@ -0,0 +1,253 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records which processing stages have been completed for each version of a
+ * library, so that a scan interrupted by a crash resumes where it stopped
+ * instead of starting over or trusting output that was only partly written.
+ *
+ * Each library has its own journal at ".libdiff/checkpoints/LIBRARY.txt",
+ * with one "version[TAB]stage[TAB]detail" line per completed stage, and one
+ * "version[TAB]stage" line per stage that was cleared. Each update is
+ * appended, and the latest line for a stage wins. The journal is compacted to
+ * one line per completed stage when it is loaded and whenever it has grown to
+ * several times that size, by rewriting it to a temporary file that is
+ * renamed into place. A line left half-written by a crash is ignored.
+ */
+public class CheckpointJournal {
+	public static final String CHECKPOINTS_FOLDER_NAME = "checkpoints";
+
+	/**
+	 * The stages a version of a library goes through.
+	 */
+	public enum Stage {
+		/** The JAR was extracted from its AAR. */
+		CONVERTED,
+		/** All of the JAR's bytecode was extracted. Its detail is the size of the bytecode. */
+		EXTRACTED,
+		/** The manifest of the extracted bytecode was written. */
+		FINGERPRINTED,
+		/**
+		 * The diff was written. Its detail is the version age and the previous
+		 * version, followed by "members" if debug-only changes were
+		 * reclassified as copies.
+		 */
+		DIFFED,
+		/** The bytecode was evicted from the cache, leaving only the txt files. */
+		EVICTED
+	}
+
+	private static final ConcurrentHashMap<Path, CheckpointJournal> journals = new ConcurrentHashMap<Path, CheckpointJournal>();
+
+	private final File journalFile;
+	private final LinkedHashMap<String, String> checkpoints = new LinkedHashMap<String, String>();
+	// How many lines the journal file holds
+	private int lines = 0;
+
+	private CheckpointJournal(File journalFile) throws IOException {
+		this.journalFile = journalFile;
+		if (journalFile.exists()) {
+			boolean complete = endsWithNewline(journalFile);
+			try (BufferedReader reader = ExternalSorter.openReader(journalFile)) {
+				String line = reader.readLine();
+				while (line != null) {
+					String next = reader.readLine();
+					if (next == null && !complete) {
+						break;
+					}
+					lines++;
+					String[] fields = line.split("\t", 3);
+					if (fields.length == 3) {
+						checkpoints.remove(fields[0] + "\t" + fields[1]);
+						checkpoints.put(fields[0] + "\t" + fields[1], fields[2]);
+					} else if (fields.length == 2) {
+						checkpoints.remove(fields[0] + "\t" + fields[1]);
+					}
+					line = next;
+				}
+			}
+			if (!complete || lines > checkpoints.size()) {
+				compact();
+			}
+		}
+	}
+
+	private static boolean endsWithNewline(File file) throws IOException {
+		try (RandomAccessFile contents = new RandomAccessFile(file, "r")) {
+			if (contents.length() == 0) {
+				return true;
+			}
+			contents.seek(contents.length() - 1);
+			return contents.read() == '\n';
+		}
+	}
+
+	/**
+	 * Gets the journal of a library, loading it if needed.
+	 *
+	 * @param libraryPath
+	 *            - the path to the library
+	 * @throws IOException
+	 */
+	public static CheckpointJournal forLibrary(Path libraryPath) throws IOException {
+		Path key = libraryPath.toAbsolutePath().normalize();
+		CheckpointJournal journal = journals.get(key);
+		if (journal == null) {
+			Path folder = WhitelistState.getStateFolder(key.getParent()).resolve(CHECKPOINTS_FOLDER_NAME);
+			folder.toFile().mkdirs();
+			journals.putIfAbsent(key, new CheckpointJournal(folder.resolve(key.getFileName() + ".txt").toFile()));
+			journal = journals.get(key);
+		}
+		return journal;
+	}
+
+	/**
+	 * Records that a stage was completed for a version folder.
+	 *
+	 * @param versionFolder
+	 *            - the folder a version of a library is extracted to
+	 * @param stage
+	 *            - the stage that was completed
+	 * @param detail
+	 *            - anything the stage needs to remember, or an empty string
+	 * @throws IOException
+	 */
+	public static void record(File versionFolder, Stage stage, String detail) throws IOException {
+		forLibrary(versionFolder.getParentFile().toPath()).record(versionFolder.getName(), stage, detail);
+	}
+
+	/**
+	 * @return True if the stage was completed for the version
+	 */
+	public synchronized boolean has(String version, Stage stage) {
+		return checkpoints.containsKey(version + "\t" + stage);
+	}
+
+	/**
+	 * @return The detail recorded with the stage, or null if the stage was not
+	 *         completed for the version
+	 */
+	public synchronized String getDetail(String version, Stage stage) {
+		return checkpoints.get(version + "\t" + stage);
+	}
+
+	/**
+	 * @return The versions the stage was completed for, along with the detail
+	 *         recorded with it
+	 */
+	public synchronized LinkedHashMap<String, String> getDetails(Stage stage) {
+		LinkedHashMap<String, String> details = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, String> checkpoint : checkpoints.entrySet()) {
+			String[] key = checkpoint.getKey().split("\t");
+			if (key[1].equals(stage.name())) {
+				details.put(key[0], checkpoint.getValue());
+			}
+		}
+		return details;
+	}
+
+	/**
+	 * @return True if any stage was completed for the version
+	 */
+	public synchronized boolean hasAny(String version) {
+		for (String key : checkpoints.keySet()) {
+			if (key.startsWith(version + "\t")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records that a stage was completed for a version.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void record(String version, Stage stage, String detail) throws IOException {
+		String key = version + "\t" + stage;
+		if (detail.equals(checkpoints.get(key))) {
+			return;
+		}
+		checkpoints.remove(key);
+		checkpoints.put(key, detail);
+		ArrayList<String> update = new ArrayList<String>(1);
+		update.add(key + "\t" + detail);
+		append(update);
+	}
+
+	/**
+	 * Forgets the given stage and every later stage of a version, e.g. because
+	 * its output is about to be recreated.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void clear(String version, Stage from) throws IOException {
+		ArrayList<String> update = new ArrayList<String>();
+		Iterator<Map.Entry<String, String>> iterator = checkpoints.entrySet().iterator();
+		while (iterator.hasNext()) {
+			String key = iterator.next().getKey();
+			String[] fields = key.split("\t");
+			if (fields[0].equals(version) && Stage.valueOf(fields[1]).compareTo(from) >= 0) {
+				iterator.remove();
+				update.add(key);
+			}
+		}
+		if (!update.isEmpty()) {
+			append(update);
+		}
+	}
+
+	/**
+	 * Appends lines to the journal, or compacts it instead once most of its
+	 * lines are out of date. The file is only held open while it is written,
+	 * since a whitelist can have more libraries than a process can open
+	 * files.
+	 */
+	private void append(ArrayList<String> update) throws IOException {
+		if (lines + update.size() > 4 * checkpoints.size() + 64) {
+			compact();
+			return;
+		}
+		try (BufferedWriter appender = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(journalFile, true), StandardCharsets.UTF_8))) {
+			for (String line : update) {
+				appender.write(line);
+				appender.newLine();
+			}
+		}
+		lines += update.size();
+	}
+
+	/**
+	 * Rewrites the journal with one line per completed stage.
+	 */
+	private void compact() throws IOException {
+		File partialJournal = File.createTempFile("checkpoints", ".tmp", journalFile.getParentFile());
+		try {
+			try (BufferedWriter writer = ExternalSorter.openWriter(partialJournal)) {
+				for (Map.Entry<String, String> checkpoint : checkpoints.entrySet()) {
+					writer.write(checkpoint.getKey() + "\t" + checkpoint.getValue());
+					writer.newLine();
+				}
+			}
+			SafeFiles.move(partialJournal.toPath(), journalFile.toPath());
+			lines = checkpoints.size();
+		} finally {
+			partialJournal.delete();
+		}
+	}
+}
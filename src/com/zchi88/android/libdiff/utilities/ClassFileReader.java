@@ -0,0 +1,542 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A minimal parser for the structure of Java class files: the constant pool,
+ * fields, methods and attributes. Attributes are kept as raw bytes, except for
+ * Code attributes which can be parsed further with {@link #readCode}.
+ *
+ * Class files come from untrusted JARs, so every length is checked against
+ * the bytes that are left and every constant pool reference against the
+ * kind of entry it must point to. Malformed class files are rejected with an
+ * IOException rather than running out of memory or stack.
+ */
+public class ClassFileReader {
+	private static final int MAGIC = 0xCAFEBABE;
+
+	/**
+	 * Parses a class file.
+	 *
+	 * @param bytes
+	 *            - the contents of the class file
+	 * @return The parsed class file
+	 * @throws IOException
+	 *             if the bytes are not a valid class file
+	 */
+	public static ClassFile read(byte[] bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a class file.");
+		}
+		in.readUnsignedShort(); // minor version
+		in.readUnsignedShort(); // major version
+
+		ClassFile classFile = new ClassFile();
+		int constantCount = in.readUnsignedShort();
+		classFile.tags = new int[constantCount];
+		classFile.values = new Object[constantCount];
+		for (int i = 1; i < constantCount; i++) {
+			int tag = in.readUnsignedByte();
+			classFile.tags[i] = tag;
+			switch (tag) {
+			case 1: // Utf8
+				classFile.values[i] = in.readUTF();
+				break;
+			case 3: // Integer
+				classFile.values[i] = in.readInt();
+				break;
+			case 4: // Float
+				classFile.values[i] = in.readFloat();
+				break;
+			case 5: // Long
+				classFile.values[i] = in.readLong();
+				i++;
+				break;
+			case 6: // Double
+				classFile.values[i] = in.readDouble();
+				i++;
+				break;
+			case 7: // Class
+			case 8: // String
+			case 16: // MethodType
+			case 19: // Module
+			case 20: // Package
+				classFile.values[i] = new int[] { in.readUnsignedShort() };
+				break;
+			case 9: // Fieldref
+			case 10: // Methodref
+			case 11: // InterfaceMethodref
+			case 12: // NameAndType
+			case 17: // Dynamic
+			case 18: // InvokeDynamic
+				classFile.values[i] = new int[] { in.readUnsignedShort(), in.readUnsignedShort() };
+				break;
+			case 15: // MethodHandle
+				classFile.values[i] = new int[] { in.readUnsignedByte(), in.readUnsignedShort() };
+				break;
+			default:
+				throw new IOException("Unknown constant pool tag " + tag + ".");
+			}
+		}
+		checkReferences(classFile);
+
+		classFile.accessFlags = in.readUnsignedShort();
+		classFile.name = classFile.getConstant(in.readUnsignedShort());
+		classFile.superName = classFile.getConstant(in.readUnsignedShort());
+		int interfaceCount = in.readUnsignedShort();
+		for (int i = 0; i < interfaceCount; i++) {
+			classFile.interfaces.add(classFile.getConstant(in.readUnsignedShort()));
+		}
+		readMembers(in, classFile, classFile.fields);
+		readMembers(in, classFile, classFile.methods);
+		classFile.attributes.addAll(readAttributes(in, classFile));
+		return classFile;
+	}
+
+	/**
+	 * Parses the contents of a Code attribute.
+	 *
+	 * @param classFile
+	 *            - the class file the attribute belongs to
+	 * @param codeAttribute
+	 *            - the Code attribute of a method
+	 * @throws IOException
+	 *             if the attribute is malformed
+	 */
+	public static Code readCode(ClassFile classFile, Attribute codeAttribute) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(codeAttribute.getInfo()));
+		Code code = new Code();
+		code.maxStack = in.readUnsignedShort();
+		code.maxLocals = in.readUnsignedShort();
+		code.bytecode = readBytes(in, in.readInt());
+		code.exceptionTable = readBytes(in, in.readUnsignedShort() * 8);
+		code.attributes = readAttributes(in, classFile);
+		return code;
+	}
+
+	/**
+	 * Walks the instructions of a method's bytecode.
+	 *
+	 * @param bytecode
+	 *            - the bytecode of a Code attribute
+	 * @param visitor
+	 *            - receives each instruction
+	 * @throws IOException
+	 *             if the bytecode is malformed
+	 */
+	public static void forEachInstruction(byte[] bytecode, InstructionVisitor visitor) throws IOException {
+		int offset = 0;
+		while (offset < bytecode.length) {
+			int opcode = bytecode[offset] & 0xff;
+			long length;
+			int constantIndex = -1;
+
+			if (opcode == 0xaa) { // tableswitch
+				int operands = (offset + 4) & ~3;
+				int low = readInt(bytecode, operands + 4);
+				int high = readInt(bytecode, operands + 8);
+				length = operands - offset + 12 + ((long) high - low + 1) * 4;
+			} else if (opcode == 0xab) { // lookupswitch
+				int operands = (offset + 4) & ~3;
+				int pairs = readInt(bytecode, operands + 4);
+				length = operands - offset + 8 + pairs * 8L;
+			} else if (opcode == 0xc4) { // wide
+				if (offset + 1 >= bytecode.length) {
+					throw new IOException("Malformed bytecode.");
+				}
+				length = (bytecode[offset + 1] & 0xff) == 0x84 ? 6 : 4;
+			} else {
+				length = 1 + OPERAND_SIZES[opcode];
+			}
+
+			// Switch lengths come from the bytecode, and may be negative or
+			// larger than the bytecode
+			if (length <= 0 || length > bytecode.length - offset) {
+				throw new IOException("Malformed bytecode.");
+			}
+			if (opcode == 0x12) { // ldc
+				constantIndex = bytecode[offset + 1] & 0xff;
+			} else if (REFERENCES_CONSTANT[opcode]) {
+				constantIndex = ((bytecode[offset + 1] & 0xff) << 8) | (bytecode[offset + 2] & 0xff);
+			}
+			visitor.visit(opcode, offset, (int) length, constantIndex);
+			offset += (int) length;
+		}
+	}
+
+	/**
+	 * Receives the instructions of a method's bytecode.
+	 */
+	public interface InstructionVisitor {
+		/**
+		 * @param opcode
+		 *            - the instruction's opcode
+		 * @param offset
+		 *            - where the instruction starts in the bytecode
+		 * @param length
+		 *            - the length of the instruction, including its operands
+		 * @param constantIndex
+		 *            - the constant pool entry the instruction refers to, or
+		 *            -1 if it does not refer to one
+		 * @throws IOException
+		 */
+		void visit(int opcode, int offset, int length, int constantIndex) throws IOException;
+	}
+
+	private static void readMembers(DataInputStream in, ClassFile classFile, List<Member> members)
+			throws IOException {
+		int count = in.readUnsignedShort();
+		for (int i = 0; i < count; i++) {
+			Member member = new Member();
+			member.accessFlags = in.readUnsignedShort();
+			member.name = classFile.getConstant(in.readUnsignedShort());
+			member.descriptor = classFile.getConstant(in.readUnsignedShort());
+			member.attributes = readAttributes(in, classFile);
+			members.add(member);
+		}
+	}
+
+	private static List<Attribute> readAttributes(DataInputStream in, ClassFile classFile) throws IOException {
+		int count = in.readUnsignedShort();
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>(count);
+		for (int i = 0; i < count; i++) {
+			Attribute attribute = new Attribute();
+			attribute.name = classFile.getConstant(in.readUnsignedShort());
+			attribute.info = readBytes(in, in.readInt());
+			attributes.add(attribute);
+		}
+		return attributes;
+	}
+
+	/**
+	 * Reads a block of bytes whose length was read from the class file, after
+	 * checking that that many bytes are left.
+	 */
+	private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+		// The stream reads from a byte array, so available() is exact
+		if (length < 0 || length > in.available()) {
+			throw new IOException("Malformed class file: a length of " + length + " exceeds the bytes left.");
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Checks that every reference between constant pool entries points to an
+	 * entry of a kind it may point to. References then only ever lead from
+	 * e.g. a Methodref to a Class to a Utf8, so resolving them with
+	 * {@link ClassFile#getConstant} cannot loop.
+	 */
+	private static void checkReferences(ClassFile classFile) throws IOException {
+		for (int i = 1; i < classFile.tags.length; i++) {
+			if (!(classFile.values[i] instanceof int[])) {
+				continue;
+			}
+			int[] refs = (int[]) classFile.values[i];
+			switch (classFile.tags[i]) {
+			case 7: // Class
+			case 8: // String
+			case 16: // MethodType
+			case 19: // Module
+			case 20: // Package
+				checkReference(classFile, refs[0], 1);
+				break;
+			case 9: // Fieldref
+			case 10: // Methodref
+			case 11: // InterfaceMethodref
+				checkReference(classFile, refs[0], 7);
+				checkReference(classFile, refs[1], 12);
+				break;
+			case 12: // NameAndType
+				checkReference(classFile, refs[0], 1);
+				checkReference(classFile, refs[1], 1);
+				break;
+			case 15: // MethodHandle
+				checkReference(classFile, refs[1], 9, 10, 11);
+				break;
+			case 17: // Dynamic
+			case 18: // InvokeDynamic
+				checkReference(classFile, refs[1], 12);
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	private static void checkReference(ClassFile classFile, int index, int... allowedTags) throws IOException {
+		int tag = classFile.getConstantTag(index);
+		for (int allowedTag : allowedTags) {
+			if (tag == allowedTag && classFile.values[index] != null) {
+				return;
+			}
+		}
+		throw new IOException("Malformed constant pool: invalid reference to entry " + index + ".");
+	}
+
+	private static int readInt(byte[] bytes, int offset) throws IOException {
+		if (offset < 0 || offset > bytes.length - 4) {
+			throw new IOException("Malformed bytecode.");
+		}
+		return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8)
+				| (bytes[offset + 3] & 0xff);
+	}
+
+	/**
+	 * The number of operand bytes of each opcode, apart from tableswitch,
+	 * lookupswitch and wide whose length varies.
+	 */
+	private static final int[] OPERAND_SIZES = new int[256];
+
+	/**
+	 * Whether each opcode's first two operand bytes are a constant pool index.
+	 */
+	private static final boolean[] REFERENCES_CONSTANT = new boolean[256];
+
+	static {
+		OPERAND_SIZES[0x10] = 1; // bipush
+		OPERAND_SIZES[0x11] = 2; // sipush
+		OPERAND_SIZES[0x12] = 1; // ldc
+		OPERAND_SIZES[0x13] = 2; // ldc_w
+		OPERAND_SIZES[0x14] = 2; // ldc2_w
+		for (int opcode = 0x15; opcode <= 0x19; opcode++) {
+			OPERAND_SIZES[opcode] = 1; // loads
+		}
+		for (int opcode = 0x36; opcode <= 0x3a; opcode++) {
+			OPERAND_SIZES[opcode] = 1; // stores
+		}
+		OPERAND_SIZES[0x84] = 2; // iinc
+		for (int opcode = 0x99; opcode <= 0xa8; opcode++) {
+			OPERAND_SIZES[opcode] = 2; // conditional branches, goto, jsr
+		}
+		OPERAND_SIZES[0xa9] = 1; // ret
+		for (int opcode = 0xb2; opcode <= 0xb8; opcode++) {
+			OPERAND_SIZES[opcode] = 2; // field access and invocations
+		}
+		OPERAND_SIZES[0xb9] = 4; // invokeinterface
+		OPERAND_SIZES[0xba] = 4; // invokedynamic
+		OPERAND_SIZES[0xbb] = 2; // new
+		OPERAND_SIZES[0xbc] = 1; // newarray
+		OPERAND_SIZES[0xbd] = 2; // anewarray
+		OPERAND_SIZES[0xc0] = 2; // checkcast
+		OPERAND_SIZES[0xc1] = 2; // instanceof
+		OPERAND_SIZES[0xc5] = 3; // multianewarray
+		OPERAND_SIZES[0xc6] = 2; // ifnull
+		OPERAND_SIZES[0xc7] = 2; // ifnonnull
+		OPERAND_SIZES[0xc8] = 4; // goto_w
+		OPERAND_SIZES[0xc9] = 4; // jsr_w
+
+		int[] constantOpcodes = { 0x13, 0x14, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xbb, 0xbd, 0xc0,
+				0xc1, 0xc5 };
+		for (int opcode : constantOpcodes) {
+			REFERENCES_CONSTANT[opcode] = true;
+		}
+	}
+
+	/**
+	 * A parsed class file.
+	 */
+	public static class ClassFile {
+		private int[] tags;
+		private Object[] values;
+		private int accessFlags;
+		private String name;
+		private String superName;
+		private final List<String> interfaces = new ArrayList<String>();
+		private final List<Member> fields = new ArrayList<Member>();
+		private final List<Member> methods = new ArrayList<Member>();
+		private final List<Attribute> attributes = new ArrayList<Attribute>();
+
+		public int getAccessFlags() {
+			return accessFlags;
+		}
+
+		/**
+		 * @return The internal name of the class, e.g. "com/example/Foo"
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return The internal name of the super class, or null for
+		 *         java/lang/Object
+		 */
+		public String getSuperName() {
+			return superName;
+		}
+
+		public List<String> getInterfaces() {
+			return Collections.unmodifiableList(interfaces);
+		}
+
+		public List<Member> getFields() {
+			return Collections.unmodifiableList(fields);
+		}
+
+		public List<Member> getMethods() {
+			return Collections.unmodifiableList(methods);
+		}
+
+		public List<Attribute> getAttributes() {
+			return Collections.unmodifiableList(attributes);
+		}
+
+		/**
+		 * @return The number of entries in the constant pool, including the
+		 *         unused entry 0
+		 */
+		public int getConstantCount() {
+			return tags.length;
+		}
+
+		/**
+		 * Describes a constant pool entry by its value rather than its index,
+		 * so that the description does not change when unrelated constants
+		 * are added or removed. References to other entries are resolved
+		 * recursively.
+		 *
+		 * @param index
+		 *            - the index of the entry
+		 * @return A description of the entry, or null for index 0 or an unused
+		 *         index
+		 */
+		public String getConstant(int index) {
+			if (index <= 0 || index >= tags.length || values[index] == null) {
+				return null;
+			}
+			Object value = values[index];
+			if (!(value instanceof int[])) {
+				return value.toString();
+			}
+			int[] refs = (int[]) value;
+			switch (tags[index]) {
+			case 7:
+			case 19:
+			case 20:
+				return getConstant(refs[0]);
+			case 8:
+				return "\"" + getConstant(refs[0]) + "\"";
+			case 16:
+				return getConstant(refs[0]);
+			case 9:
+			case 10:
+			case 11:
+				return getConstant(refs[0]) + "." + getConstant(refs[1]);
+			case 12:
+				return getConstant(refs[0]) + ":" + getConstant(refs[1]);
+			case 15:
+				return "handle" + refs[0] + " " + getConstant(refs[1]);
+			case 17:
+			case 18:
+				// The first reference is an index into the BootstrapMethods
+				// attribute rather than the constant pool
+				return "indy" + refs[0] + " " + getConstant(refs[1]);
+			default:
+				return null;
+			}
+		}
+
+		/**
+		 * @return The tag of a constant pool entry, or 0 for an unused entry
+		 */
+		public int getConstantTag(int index) {
+			return index <= 0 || index >= tags.length ? 0 : tags[index];
+		}
+	}
+
+	/**
+	 * A field or method of a class.
+	 */
+	public static class Member {
+		private int accessFlags;
+		private String name;
+		private String descriptor;
+		private List<Attribute> attributes;
+
+		public int getAccessFlags() {
+			return accessFlags;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getDescriptor() {
+			return descriptor;
+		}
+
+		public List<Attribute> getAttributes() {
+			return Collections.unmodifiableList(attributes);
+		}
+
+		/**
+		 * @return The attribute with the given name, or null if there is none
+		 */
+		public Attribute getAttribute(String attributeName) {
+			for (Attribute attribute : attributes) {
+				if (attributeName.equals(attribute.getName())) {
+					return attribute;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * An attribute of a class, field, method or Code attribute.
+	 */
+	public static class Attribute {
+		private String name;
+		private byte[] info;
+
+		public String getName() {
+			return name;
+		}
+
+		public byte[] getInfo() {
+			return info;
+		}
+	}
+
+	/**
+	 * The contents of a Code attribute.
+	 */
+	public static class Code {
+		private int maxStack;
+		private int maxLocals;
+		private byte[] bytecode;
+		private byte[] exceptionTable;
+		private List<Attribute> attributes;
+
+		public int getMaxStack() {
+			return maxStack;
+		}
+
+		public int getMaxLocals() {
+			return maxLocals;
+		}
+
+		public byte[] getBytecode() {
+			return bytecode;
+		}
+
+		/**
+		 * @return The raw exception table, 8 bytes per entry
+		 */
+		public byte[] getExceptionTable() {
+			return exceptionTable;
+		}
+
+		public List<Attribute> getAttributes() {
+			return Collections.unmodifiableList(attributes);
+		}
+	}
+}
@@ -0,0 +1,412 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Computes MinHash signatures ("sketches") of class files, so that the
+ * similarity of two classes can be estimated by comparing their signatures
+ * instead of their bytes.
+ *
+ * A class is broken into shingles: every run of four consecutive opcodes of
+ * each method, every constant referenced by its bytecode, and the names and
+ * types of its super class, interfaces, fields and methods. Constants are
+ * described by value rather than by their index in the constant pool, so
+ * unrelated changes elsewhere in the class do not change them. The fraction
+ * of equal values in two signatures estimates the Jaccard similarity of the
+ * two classes' shingles. Files that cannot be parsed as class files are
+ * shingled by their raw bytes instead.
+ *
+ * The sketches of a version are stored in its extracted folder as
+ * "sketches.txt", one "path[TAB]hash[TAB]signature" line per file in the same
+ * order as its manifest. When sketching is enabled, each diff is followed by a
+ * "similarity.txt" file giving the estimated similarity of every modified
+ * class to its previous version, one "path[TAB]similarity" line per class.
+ */
+public class ClassSketcher {
+	public static final String SKETCH_FILE_NAME = "sketches.txt";
+	public static final String SIMILARITY_FILE_NAME = "similarity.txt";
+
+	/**
+	 * The number of values in a signature.
+	 */
+	public static final int SIGNATURE_SIZE = 64;
+
+	private static final int OPCODE_SHINGLE_LENGTH = 4;
+	private static final int BYTE_SHINGLE_LENGTH = 8;
+
+	private static final long[] SEEDS = new long[SIGNATURE_SIZE];
+
+	static {
+		long seed = 0x5DEECE66DL;
+		for (int i = 0; i < SIGNATURE_SIZE; i++) {
+			seed = mix(seed + 0x9E3779B97F4A7C15L);
+			SEEDS[i] = seed;
+		}
+	}
+
+	private static volatile boolean enabled = false;
+
+	/**
+	 * Turns the sketching stage on or off. When it is on, a similarity report
+	 * is written along with each diff.
+	 */
+	public static void setEnabled(boolean isEnabled) {
+		enabled = isEnabled;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Computes the signature of a class file.
+	 *
+	 * @param classBytes
+	 *            - the contents of the class file
+	 * @return The signature, {@link #SIGNATURE_SIZE} values long
+	 */
+	public static int[] sketch(byte[] classBytes) {
+		final int[] signature = new int[SIGNATURE_SIZE];
+		Arrays.fill(signature, Integer.MAX_VALUE);
+
+		try {
+			final ClassFileReader.ClassFile classFile = ClassFileReader.read(classBytes);
+			add(signature, "super " + classFile.getSuperName());
+			for (String name : classFile.getInterfaces()) {
+				add(signature, "implements " + name);
+			}
+			for (ClassFileReader.Member field : classFile.getFields()) {
+				add(signature, "field " + field.getName() + " " + field.getDescriptor());
+			}
+			for (ClassFileReader.Member method : classFile.getMethods()) {
+				add(signature, "method " + method.getName() + " " + method.getDescriptor());
+				ClassFileReader.Attribute codeAttribute = method.getAttribute("Code");
+				if (codeAttribute == null) {
+					continue;
+				}
+				ClassFileReader.Code code = ClassFileReader.readCode(classFile, codeAttribute);
+				final int[] window = new int[1];
+				final int[] count = new int[1];
+				ClassFileReader.forEachInstruction(code.getBytecode(), new ClassFileReader.InstructionVisitor() {
+					@Override
+					public void visit(int opcode, int offset, int length, int constantIndex) {
+						window[0] = (window[0] << 8) | opcode;
+						if (++count[0] >= OPCODE_SHINGLE_LENGTH) {
+							add(signature, window[0]);
+						}
+						if (constantIndex > 0) {
+							add(signature, "constant " + classFile.getConstant(constantIndex));
+						}
+					}
+				});
+			}
+		} catch (IOException | RuntimeException e) {
+			// Not a class file we understand, so compare its raw bytes
+			Arrays.fill(signature, Integer.MAX_VALUE);
+			if (classBytes.length < BYTE_SHINGLE_LENGTH) {
+				add(signature, Arrays.hashCode(classBytes));
+			}
+			long window = 0;
+			for (int i = 0; i < classBytes.length; i++) {
+				window = (window << 8) | (classBytes[i] & 0xff);
+				if (i + 1 >= BYTE_SHINGLE_LENGTH) {
+					add(signature, (int) (window ^ (window >>> 32)));
+				}
+			}
+		}
+		return signature;
+	}
+
+	/**
+	 * Estimates the similarity of two classes from their signatures.
+	 *
+	 * @return The estimated Jaccard similarity of the two classes, between 0
+	 *         and 1
+	 */
+	public static double similarity(int[] first, int[] second) {
+		int equal = 0;
+		for (int i = 0; i < SIGNATURE_SIZE; i++) {
+			if (first[i] == second[i]) {
+				equal++;
+			}
+		}
+		return (double) equal / SIGNATURE_SIZE;
+	}
+
+	/**
+	 * Returns the sketches of an extracted library version, computing them
+	 * first if they do not exist yet.
+	 *
+	 * @param versionFolder
+	 *            - the folder a JAR's bytecode was extracted to
+	 * @return The sketch file
+	 * @throws IOException
+	 */
+	public static File getSketches(Path versionFolder) throws IOException {
+		File sketchFile = versionFolder.resolve(SKETCH_FILE_NAME).toFile();
+		if (!sketchFile.exists()) {
+			build(versionFolder, sketchFile);
+		}
+		return sketchFile;
+	}
+
+	/**
+	 * Returns the sketches of an extracted library version without computing
+	 * them, e.g. for queries that must not write to the whitelist.
+	 *
+	 * @param versionFolder
+	 *            - the folder a JAR's bytecode was extracted to
+	 * @return The sketch file, or null if it has not been computed yet
+	 */
+	public static File findSketches(Path versionFolder) {
+		File sketchFile = versionFolder.resolve(SKETCH_FILE_NAME).toFile();
+		return sketchFile.exists() ? sketchFile : null;
+	}
+
+	/**
+	 * Sketches every file listed in the manifest of a version. The manifest
+	 * is already sorted, so the sketches are too.
+	 */
+	private static void build(Path versionFolder, File sketchFile) throws IOException {
+		File manifestFile = FileManifest.getManifest(versionFolder);
+		BytecodeCache.ensureExtracted(versionFolder.toFile());
+		File partialSketches = null;
+		try {
+			partialSketches = File.createTempFile("sketches", ".tmp", sketchFile.getParentFile());
+			try (FileManifest.Reader entries = new FileManifest.Reader(manifestFile);
+					BufferedWriter writer = ExternalSorter.openWriter(partialSketches)) {
+				FileManifest.Entry entry;
+				while ((entry = entries.next()) != null) {
+					IoThrottle.acquireOpen();
+					byte[] bytes = Files.readAllBytes(versionFolder.resolve(entry.getPath()));
+					IoMetrics.addBytesRead(bytes.length);
+					IoThrottle.acquireRead(bytes.length);
+					writer.write(entry.getPath() + "\t" + entry.getDigest() + "\t" + encode(sketch(bytes)));
+					writer.newLine();
+				}
+			}
+			SafeFiles.move(partialSketches.toPath(), sketchFile.toPath());
+		} finally {
+			if (partialSketches != null) {
+				partialSketches.delete();
+			}
+			BytecodeCache.releaseExtracted(versionFolder.toFile());
+		}
+	}
+
+	/**
+	 * Writes the similarity report of a version, giving the estimated
+	 * similarity of each of its modified classes to the same class in the
+	 * previous version. The two versions' sketches are merged in a single
+	 * pass, like their manifests are when computing a diff.
+	 *
+	 * @param previousVersion
+	 *            - the folder of the previous version, or null if this is the
+	 *            oldest version
+	 * @param currentVersion
+	 *            - the folder of the version to write the report for
+	 * @return The similarity report
+	 * @throws IOException
+	 */
+	public static File writeSimilarityReport(File previousVersion, File currentVersion) throws IOException {
+		File reportFile = new File(currentVersion, SIMILARITY_FILE_NAME);
+		File previousSketches = previousVersion == null ? null : getSketches(previousVersion.toPath());
+		File currentSketches = getSketches(currentVersion.toPath());
+
+		File partialReport = File.createTempFile("similarity", ".tmp", currentVersion);
+		try {
+			try (Reader previous = new Reader(previousSketches);
+					Reader current = new Reader(currentSketches);
+					BufferedWriter writer = ExternalSorter.openWriter(partialReport)) {
+				Sketch previousSketch = previous.next();
+				Sketch currentSketch = current.next();
+				while (previousSketch != null && currentSketch != null) {
+					int order = previousSketch.getPath().compareTo(currentSketch.getPath());
+					if (order < 0) {
+						previousSketch = previous.next();
+					} else if (order > 0) {
+						currentSketch = current.next();
+					} else {
+						if (!previousSketch.getDigest().equals(currentSketch.getDigest())
+								&& !isDebugOnlyChange(previousVersion, previousSketch, currentVersion, currentSketch)) {
+							double score = similarity(previousSketch.getSignature(), currentSketch.getSignature());
+							writer.write(currentSketch.getPath() + "\t" + String.format(Locale.ROOT, "%.3f", score));
+							writer.newLine();
+						}
+						previousSketch = previous.next();
+						currentSketch = current.next();
+					}
+				}
+			}
+			SafeFiles.move(partialReport.toPath(), reportFile.toPath());
+		} finally {
+			partialReport.delete();
+		}
+		return reportFile;
+	}
+
+	/**
+	 * @return True if a class is not reported as modified because it only
+	 *         differs in debug information
+	 */
+	private static boolean isDebugOnlyChange(File previousVersion, Sketch previousSketch, File currentVersion,
+			Sketch currentSketch) throws IOException {
+		return MemberFingerprinter.isEnabled() && MemberFingerprinter.isDebugOnlyChange(previousVersion,
+				new FileManifest.Entry(previousSketch.getPath(), previousSketch.getDigest()), currentVersion,
+				new FileManifest.Entry(currentSketch.getPath(), currentSketch.getDigest()));
+	}
+
+	/**
+	 * Reads a similarity report written by {@link #writeSimilarityReport}.
+	 *
+	 * @return A map from the path of each modified class to its estimated
+	 *         similarity
+	 * @throws IOException
+	 */
+	public static Map<String, Double> readSimilarityReport(File reportFile) throws IOException {
+		HashMap<String, Double> similarity = new HashMap<String, Double>();
+		try (BufferedReader reader = ExternalSorter.openReader(reportFile)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int separator = line.indexOf('\t');
+				if (separator > 0) {
+					similarity.put(line.substring(0, separator), Double.valueOf(line.substring(separator + 1)));
+				}
+			}
+		}
+		return similarity;
+	}
+
+	/**
+	 * @return A signature as a hexadecimal string, 8 digits per value
+	 */
+	public static String encode(int[] signature) {
+		StringBuilder hex = new StringBuilder(signature.length * 8);
+		for (int value : signature) {
+			String digits = Integer.toHexString(value);
+			for (int i = digits.length(); i < 8; i++) {
+				hex.append('0');
+			}
+			hex.append(digits);
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Parses a signature written by {@link #encode}.
+	 */
+	public static int[] decode(String hex) {
+		int[] signature = new int[hex.length() / 8];
+		for (int i = 0; i < signature.length; i++) {
+			signature[i] = (int) Long.parseLong(hex.substring(i * 8, i * 8 + 8), 16);
+		}
+		return signature;
+	}
+
+	private static void add(int[] signature, String token) {
+		add(signature, token.hashCode());
+	}
+
+	/**
+	 * Adds a shingle to a signature. Each value of the signature is the
+	 * minimum of a different hash function over all shingles.
+	 */
+	private static void add(int[] signature, int shingle) {
+		for (int i = 0; i < SIGNATURE_SIZE; i++) {
+			int hash = (int) (mix(shingle ^ SEEDS[i]) >>> 32);
+			if (hash < signature[i]) {
+				signature[i] = hash;
+			}
+		}
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * A single line of a sketch file.
+	 */
+	public static class Sketch {
+		private final String path;
+		private final String digest;
+		private final int[] signature;
+
+		public Sketch(String path, String digest, int[] signature) {
+			this.path = path;
+			this.digest = digest;
+			this.signature = signature;
+		}
+
+		/**
+		 * @return The path of the file relative to its version folder
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * @return The MD5 hash of the file
+		 */
+		public String getDigest() {
+			return digest;
+		}
+
+		public int[] getSignature() {
+			return signature;
+		}
+	}
+
+	/**
+	 * Reads the sketches of a version one at a time, in sorted order.
+	 */
+	public static class Reader implements Closeable {
+		private final BufferedReader reader;
+
+		/**
+		 * @param sketchFile
+		 *            - the sketch file to read, or null to read no sketches
+		 * @throws IOException
+		 */
+		public Reader(File sketchFile) throws IOException {
+			this.reader = sketchFile == null ? null : ExternalSorter.openReader(sketchFile);
+		}
+
+		/**
+		 * @return The next sketch, or null if there are no more sketches
+		 * @throws IOException
+		 */
+		public Sketch next() throws IOException {
+			if (reader == null) {
+				return null;
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length == 3) {
+					return new Sketch(fields[0], fields[1], decode(fields[2]));
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (reader != null) {
+				reader.close();
+			}
+		}
+	}
+}
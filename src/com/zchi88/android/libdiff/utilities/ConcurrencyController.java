@@ -0,0 +1,254 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits how many libraries are processed at once, and adjusts that limit
+ * while the tool runs to get the most throughput out of the disk.
+ *
+ * Every interval, the controller measures the throughput (bytes read and
+ * written per second) since the last interval and hill climbs: it keeps
+ * changing the limit in the same direction as long as throughput improves, and
+ * turns around when it gets worse. When throughput stays flat while the CPUs
+ * spend much of their time waiting on I/O, the disk is saturated and the limit
+ * is lowered. Every decision is logged so the bounds can be tuned.
+ *
+ * A controller whose minimum and maximum are equal never changes its limit.
+ */
+public class ConcurrencyController implements Runnable {
+	/**
+	 * How much throughput must change between intervals to count as better
+	 * or worse rather than flat.
+	 */
+	private static final double SIGNIFICANT_CHANGE = 0.05;
+
+	/**
+	 * The share of CPU time spent waiting on I/O above which the disk is
+	 * considered saturated.
+	 */
+	private static final double HIGH_IO_WAIT = 0.3;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final long intervalMillis;
+	private final AdjustableSemaphore permits;
+	private volatile int limit;
+	private volatile boolean running = true;
+
+	private int direction = 1;
+	private double lastThroughput = -1;
+
+	/**
+	 * @param minLimit
+	 *            - the least number of libraries to process at once
+	 * @param maxLimit
+	 *            - the most number of libraries to process at once
+	 * @param initialLimit
+	 *            - the number of libraries to process at once to begin with
+	 * @param intervalMillis
+	 *            - how often to measure throughput and adjust the limit
+	 */
+	public ConcurrencyController(int minLimit, int maxLimit, int initialLimit, long intervalMillis) {
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+		this.intervalMillis = intervalMillis;
+		this.permits = new AdjustableSemaphore(this.limit);
+	}
+
+	/**
+	 * Creates a controller that always allows the given number of libraries
+	 * to be processed at once.
+	 */
+	public static ConcurrencyController fixed(int limit) {
+		return new ConcurrencyController(limit, limit, limit, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @return The most number of libraries that may ever be processed at
+	 *         once, i.e. how many worker threads are needed
+	 */
+	public int getMaxLimit() {
+		return maxLimit;
+	}
+
+	/**
+	 * @return The number of libraries currently allowed to be processed at
+	 *         once
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Blocks until another library may be processed.
+	 */
+	public void acquire() throws InterruptedException {
+		permits.acquire();
+	}
+
+	/**
+	 * Signals that a library has finished processing.
+	 */
+	public void release() {
+		permits.release();
+	}
+
+	/**
+	 * Starts adjusting the limit on a background daemon thread, unless the
+	 * limit is fixed.
+	 */
+	public void start() {
+		if (minLimit == maxLimit) {
+			return;
+		}
+		System.out.format("Adaptive concurrency enabled: %d to %d libraries at once, starting at %d.\n", minLimit,
+				maxLimit, limit);
+		Thread thread = new Thread(this, "libdiff-concurrency-controller");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops adjusting the limit.
+	 */
+	public void stop() {
+		running = false;
+	}
+
+	@Override
+	public void run() {
+		long lastTime = System.nanoTime();
+		long lastBytes = IoMetrics.getBytesRead() + IoMetrics.getBytesWritten();
+		long lastClasses = IoMetrics.getClassesProcessed();
+		long lastLibraries = IoMetrics.getLibrariesProcessed();
+		long lastLibraryNanos = IoMetrics.getLibraryNanos();
+		long[] lastCpuTimes = readCpuTimes();
+
+		while (running) {
+			try {
+				Thread.sleep(intervalMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			long time = System.nanoTime();
+			long bytes = IoMetrics.getBytesRead() + IoMetrics.getBytesWritten();
+			long classes = IoMetrics.getClassesProcessed();
+			long libraries = IoMetrics.getLibrariesProcessed();
+			long libraryNanos = IoMetrics.getLibraryNanos();
+			long[] cpuTimes = readCpuTimes();
+
+			double seconds = (time - lastTime) / 1e9;
+			double throughput = (bytes - lastBytes) / seconds;
+			double classRate = (classes - lastClasses) / seconds;
+			double latency = libraries == lastLibraries ? 0
+					: (libraryNanos - lastLibraryNanos) / 1e9 / (libraries - lastLibraries);
+			double ioWait = ioWaitBetween(lastCpuTimes, cpuTimes);
+
+			if (bytes != lastBytes) {
+				adjust(throughput, classRate, latency, ioWait);
+			}
+
+			lastTime = time;
+			lastBytes = bytes;
+			lastClasses = classes;
+			lastLibraries = libraries;
+			lastLibraryNanos = libraryNanos;
+			lastCpuTimes = cpuTimes;
+		}
+	}
+
+	/**
+	 * Takes one hill climbing step based on the latest measurements.
+	 */
+	private void adjust(double throughput, double classRate, double latency, double ioWait) {
+		String reason;
+		if (lastThroughput < 0) {
+			reason = "probing";
+		} else if (throughput > lastThroughput * (1 + SIGNIFICANT_CHANGE)) {
+			reason = "throughput improved";
+		} else if (throughput < lastThroughput * (1 - SIGNIFICANT_CHANGE)) {
+			direction = -direction;
+			reason = "throughput dropped";
+		} else if (ioWait > HIGH_IO_WAIT) {
+			direction = -1;
+			reason = "throughput flat with high I/O wait";
+		} else {
+			reason = "throughput flat";
+		}
+
+		int step = Math.max(1, limit / 8);
+		int newLimit = Math.min(maxLimit, Math.max(minLimit, limit + direction * step));
+		if (newLimit == limit) {
+			// Reached a bound, so probe the other way next time
+			direction = -direction;
+		}
+
+		System.out.format(
+				"Concurrency %d -> %d (%s: %.1f MB/s, %.0f classes/s, %.2f s per library, I/O wait %s)\n",
+				limit, newLimit, reason, throughput / (1024 * 1024), classRate, latency,
+				ioWait < 0 ? "unknown" : String.format("%.0f%%", ioWait * 100));
+
+		setLimit(newLimit);
+		lastThroughput = throughput;
+	}
+
+	private synchronized void setLimit(int newLimit) {
+		if (newLimit > limit) {
+			permits.release(newLimit - limit);
+		} else if (newLimit < limit) {
+			permits.reducePermits(limit - newLimit);
+		}
+		limit = newLimit;
+	}
+
+	/**
+	 * Reads the cumulative CPU times from /proc/stat, where available.
+	 *
+	 * @return The total and I/O wait times, or null if they are unavailable
+	 */
+	private static long[] readCpuTimes() {
+		File stat = new File("/proc/stat");
+		if (!stat.exists()) {
+			return null;
+		}
+		try (BufferedReader reader = new BufferedReader(new FileReader(stat))) {
+			String[] fields = reader.readLine().trim().split("\\s+");
+			long total = 0;
+			for (int i = 1; i < fields.length; i++) {
+				total += Long.parseLong(fields[i]);
+			}
+			return new long[] { total, Long.parseLong(fields[5]) };
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static double ioWaitBetween(long[] before, long[] after) {
+		if (before == null || after == null || after[0] == before[0]) {
+			return -1;
+		}
+		return (double) (after[1] - before[1]) / (after[0] - before[0]);
+	}
+
+	/**
+	 * A semaphore whose number of permits can also be lowered.
+	 */
+	private static class AdjustableSemaphore extends Semaphore {
+		private static final long serialVersionUID = 1L;
+
+		private AdjustableSemaphore(int permits) {
+			super(permits);
+		}
+
+		@Override
+		protected void reducePermits(int reduction) {
+			super.reducePermits(reduction);
+		}
+	}
+}
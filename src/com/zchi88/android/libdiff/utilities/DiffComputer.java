@@ -1,23 +1,38 @@
 package com.zchi88.android.libdiff.utilities;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Scanner;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The purpose of this class to to compute diffs between successive versions of
  * a software library.
  */
 public class DiffComputer {
+	private static final CopyOnWriteArrayList<DiffListener> listeners = new CopyOnWriteArrayList<DiffListener>();
+
+	/**
+	 * Receives the files of a diff as two manifests are compared.
+	 */
+	public interface ChangeVisitor {
+		/**
+		 * @param kind
+		 *            - how the file changed
+		 * @param entry
+		 *            - the manifest entry of the file. For deleted files this
+		 *            is the entry from the previous version, otherwise it is
+		 *            the entry from the current version.
+		 * @throws IOException
+		 */
+		void visit(ChangeKind kind, FileManifest.Entry entry) throws IOException;
+	}
+
 	/**
 	 * Checks to see if all versions of a library have diffs computed for them.
 	 * 
@@ -39,6 +54,16 @@ public class DiffComputer {
 				if (!isDiffValid(diffFile)) {
 					return true;
 				}
+
+				if (ClassSketcher.isEnabled()
+						&& !new File(diffFile.getParentFile(), ClassSketcher.SIMILARITY_FILE_NAME).exists()) {
+					return true;
+				}
+
+				if (MemberFingerprinter.isEnabled()
+						&& !new File(diffFile.getParentFile(), MemberFingerprinter.MEMBER_REPORT_FILE_NAME).exists()) {
+					return true;
+				}
 			}
 		}
 		return false;
@@ -52,158 +77,276 @@ public class DiffComputer {
 	 * @throws IOException
 	 */
 	private static void computeDiffs(LinkedList<File> versionOrder) throws IOException {
+		if (versionOrder.isEmpty()) {
+			return;
+		}
+		CheckpointJournal checkpoints = CheckpointJournal.forLibrary(versionOrder.getFirst().getParentFile().toPath());
+
 		// Iterate through the list of versions in order, so that
 		// the most recent versions that are missing diffs are found first
 		// and re-calculated if missing.
+		File currentManifest = null;
 		for (int versionAge = 0; versionAge < versionOrder.size(); versionAge++) {
 			// If the diff.txt file for the file in the sorted versions list
 			// is missing, create it.
 			File currentVersion = versionOrder.get(versionAge);
 			File currentDiffFolder = new File(currentVersion.toString().replace(".jar", ""));
 			File previousDiffFolder;
+			File previousManifest;
 			if ((versionAge + 1) >= versionOrder.size()) {
 				previousDiffFolder = null;
+				previousManifest = null;
 			} else {
 				previousDiffFolder = new File(versionOrder.get(versionAge + 1).toString().replace(".jar", ""));
+				previousManifest = FileManifest.getManifest(previousDiffFolder.toPath());
 			}
 
-			constructDiff(previousDiffFolder, currentDiffFolder, versionAge);
+			// The previous version's manifest becomes the current one on the
+			// next iteration, so each version is only read once
+			if (currentManifest == null) {
+				currentManifest = FileManifest.getManifest(currentDiffFolder.toPath());
+			}
+
+			// Skip diffs that were already written against the same previous
+			// version, e.g. before the tool was interrupted
+			String detail = diffDetail(previousDiffFolder, versionAge);
+			boolean isDiffed = detail.equals(checkpoints.getDetail(currentDiffFolder.getName(),
+					CheckpointJournal.Stage.DIFFED)) && new File(currentDiffFolder, "diff.txt").exists();
+			if (!isDiffed) {
+				constructDiff(previousDiffFolder, currentDiffFolder, versionAge, previousManifest, currentManifest);
+			} else {
+				// The diff may have been written before these stages were
+				// enabled
+				if (ClassSketcher.isEnabled()
+						&& !new File(currentDiffFolder, ClassSketcher.SIMILARITY_FILE_NAME).exists()) {
+					ClassSketcher.writeSimilarityReport(previousDiffFolder, currentDiffFolder);
+				}
+				if (MemberFingerprinter.isEnabled()
+						&& !new File(currentDiffFolder, MemberFingerprinter.MEMBER_REPORT_FILE_NAME).exists()) {
+					MemberFingerprinter.writeMemberReport(previousDiffFolder, currentDiffFolder);
+				}
+			}
+			currentManifest = previousManifest;
+		}
+	}
+
+	/**
+	 * Compares the manifests of two consecutive versions of a library, and
+	 * reports every file to the visitor along with how it changed. Both
+	 * manifests are sorted by path, so they are merged in a single pass
+	 * without holding either of them in memory. Files of each kind are
+	 * reported in sorted order. When member fingerprinting is enabled,
+	 * classes that only differ in debug information are reported as copied.
+	 * 
+	 * @param previousManifest
+	 *            The manifest of the previous version, or null if there is no
+	 *            previous version
+	 * @param currentManifest
+	 *            The manifest of the current version
+	 * @param visitor
+	 *            Receives each file of the diff
+	 * @throws IOException
+	 */
+	public static void compareManifests(File previousManifest, File currentManifest, ChangeVisitor visitor)
+			throws IOException {
+		try (FileManifest.Reader previousEntries = new FileManifest.Reader(previousManifest);
+				FileManifest.Reader currentEntries = new FileManifest.Reader(currentManifest)) {
+			FileManifest.Entry previousEntry = previousEntries.next();
+			FileManifest.Entry currentEntry = currentEntries.next();
+
+			while (previousEntry != null || currentEntry != null) {
+				int order;
+				if (previousEntry == null) {
+					order = 1;
+				} else if (currentEntry == null) {
+					order = -1;
+				} else {
+					order = previousEntry.getPath().compareTo(currentEntry.getPath());
+				}
+
+				if (order < 0) {
+					// The file only exists in the previous version, so it must
+					// have been deleted
+					visitor.visit(ChangeKind.DELETED, previousEntry);
+					previousEntry = previousEntries.next();
+				} else if (order > 0) {
+					// The file only exists in the current version, so it must
+					// be new to the current version
+					visitor.visit(ChangeKind.NEW, currentEntry);
+					currentEntry = currentEntries.next();
+				} else {
+					if (currentEntry.getDigest().equals(previousEntry.getDigest())) {
+						// If their hash values are the same, the files are
+						// copies
+						visitor.visit(ChangeKind.COPIED, currentEntry);
+					} else if (MemberFingerprinter.isEnabled()
+							&& MemberFingerprinter.isDebugOnlyChange(previousManifest.getParentFile(), previousEntry,
+									currentManifest.getParentFile(), currentEntry)) {
+						// Classes that were only recompiled with different
+						// debug information are copies too
+						visitor.visit(ChangeKind.COPIED, currentEntry);
+					} else {
+						// If their hash values exist and are different, they
+						// are modified versions of each other
+						visitor.visit(ChangeKind.MODIFIED, currentEntry);
+					}
+					previousEntry = previousEntries.next();
+					currentEntry = currentEntries.next();
+				}
+			}
 		}
 	}
 
 	/**
 	 * Constructs the diffs for a the current version of a library given its
-	 * previous version
+	 * previous version.
+	 * 
+	 * Each file found by {@link #compareManifests} is streamed to a temporary
+	 * file for its section, so memory use does not depend on the size of the
+	 * library.
 	 * 
-	 * @param prevVersion
-	 *            The String of the file path of the previous version of the
-	 *            library
-	 * @param targetVersion
-	 *            The String of the file path the diff must be computed for
+	 * @param previousVersion
+	 *            The folder of the previous version of the library, or null if
+	 *            this is the oldest version
+	 * @param currentVersion
+	 *            The folder of the version the diff must be computed for
+	 * @param previousManifest
+	 *            The manifest of the previous version, or null if this is the
+	 *            oldest version
+	 * @param currentManifest
+	 *            The manifest of the current version
 	 * @throws IOException
 	 * @throws FileNotFoundException
 	 */
-	private static void constructDiff(File previousVersion, File currentVersion, int versionAge) throws IOException {
-		Path currentVersionPath = Paths.get(currentVersion.toString().replace(".jar", ""));
-		HashMap<File, String> currentFilesMap = FileMapper.getFileMap(currentVersionPath);
-		ArrayList<File> prevFileList = new ArrayList<File>();
-
-		if (previousVersion != null) {
-			Path previousVersionPath = Paths.get(previousVersion.toString().replace(".jar", ""));
-			prevFileList = FileMapper.getFileList(previousVersionPath);
-		}
+	private static void constructDiff(File previousVersion, File currentVersion, int versionAge,
+			File previousManifest, File currentManifest) throws IOException {
+		final DiffSection[] sections = new DiffSection[ChangeKind.values().length];
+		boolean replacement;
+		try {
+			for (ChangeKind kind : ChangeKind.values()) {
+				sections[kind.ordinal()] = new DiffSection(kind);
+			}
 
-		ArrayList<File> newFiles = new ArrayList<File>();
-		ArrayList<File> modifiedFiles = new ArrayList<File>();
-		ArrayList<File> deletedFiles = new ArrayList<File>();
-		ArrayList<File> copiedFiles = new ArrayList<File>();
+			compareManifests(previousManifest, currentManifest, new ChangeVisitor() {
+				@Override
+				public void visit(ChangeKind kind, FileManifest.Entry entry) throws IOException {
+					sections[kind.ordinal()].add(entry.getPath());
+				}
+			});
 
-		for (File file : prevFileList) {
-			File relativeFilePath = previousVersion.toPath().relativize(file.toPath()).toFile();
+			File libDiffFilePath = new File(currentVersion + java.io.File.separator + "diff.txt");
+			replacement = libDiffFilePath.exists();
 
-			// Check if a hash value exists for the file in the targetFilesMap.
-			// If
-			// it does not exist, then the file must have been deleted.
-			String currentHash = currentFilesMap.get(relativeFilePath);
+			// Write the results to a temporary file which replaces diff.txt
+			// once complete, so diff.txt is never half-written
+			File partialDiffFile = File.createTempFile("diff", ".tmp", currentVersion);
+			try {
+				try (BufferedWriter writer = ExternalSorter.openWriter(partialDiffFile)) {
+					writer.write("Showing Diffs For: " + currentVersion.getName());
+					writer.newLine();
+					writer.write("Version Age: " + versionAge);
+					writer.newLine();
+					if (previousVersion == null) {
+						writer.write("Previous Version Was: N/A");
+					} else {
+						writer.write("Previous Version Was: " + previousVersion.getName());
+					}
+					writer.newLine();
+					writer.newLine();
+					writer.newLine();
 
-			if (currentHash == null) {
-				// If the file does not exist in the current version, it returns
-				// null when we try to find it in the hash map
-				deletedFiles.add(relativeFilePath);
-			} else {
-				String previousHash = FileMapper.hashFile(file, "MD5");
-				// If the checksum exists and is different, then the files have
-				// been modified
-				if (currentHash.equals(previousHash)) {
-					// If their hash values are the same, the files are copies
-					copiedFiles.add(relativeFilePath);
-				} else {
-					// If their hash values exist and are different, they are
-					// modified versions of each other
-					modifiedFiles.add(relativeFilePath);
+					for (DiffSection section : sections) {
+						section.writeTo(writer);
+						writer.newLine();
+						writer.newLine();
+					}
+
+					writer.write("=====END OF DIFF=====");
+				}
+				SafeFiles.move(partialDiffFile.toPath(), libDiffFilePath.toPath());
+			} catch (IOException | RuntimeException e) {
+				System.out.println("Failed to write the diff of " + currentVersion + ": " + e);
+				throw new IOException("Failed to write the diff of " + currentVersion, e);
+			} finally {
+				partialDiffFile.delete();
+			}
+		} finally {
+			for (DiffSection section : sections) {
+				if (section != null) {
+					section.delete();
 				}
-				// Remove the file from the current file map
-				currentFilesMap.remove(relativeFilePath);
 			}
 		}
 
-		// Any files still left in the target directory's map must be files new
-		// to the current version
-		for (File key : currentFilesMap.keySet()) {
-			newFiles.add(key);
+		// Reports of an older diff would no longer match
+		if (ClassSketcher.isEnabled()) {
+			ClassSketcher.writeSimilarityReport(previousVersion, currentVersion);
+		} else {
+			new File(currentVersion, ClassSketcher.SIMILARITY_FILE_NAME).delete();
+		}
+		if (MemberFingerprinter.isEnabled()) {
+			MemberFingerprinter.writeMemberReport(previousVersion, currentVersion);
+		} else {
+			new File(currentVersion, MemberFingerprinter.MEMBER_REPORT_FILE_NAME).delete();
 		}
 
-		File libDiffFilePath = new File(currentVersion + java.io.File.separator + "diff.txt");
-
-		// Sort the list of files
-		Collections.sort(newFiles);
-		Collections.sort(deletedFiles);
-		Collections.sort(modifiedFiles);
-		Collections.sort(copiedFiles);
-
-		// Write the results to diff.txt
-		try (BufferedWriter writer = new BufferedWriter(new FileWriter(libDiffFilePath));) {
-			writer.write("Showing Diffs For: " + currentVersion.getName());
-			writer.newLine();
-			writer.write("Version Age: " + versionAge);
-			writer.newLine();
-			if (previousVersion == null) {
-				writer.write("Previous Version Was: N/A");
-			} else {
-				writer.write("Previous Version Was: " + previousVersion.getName());
-			}
-			writer.newLine();
-			writer.newLine();
-			writer.newLine();
+		int[] counts = new int[sections.length];
+		for (int i = 0; i < sections.length; i++) {
+			counts[i] = sections[i].size;
+		}
+		// The diff is only checkpointed once every listener has it, e.g. once
+		// it is in the change feed. If a listener fails, the diff is computed
+		// and published again the next time its library is processed.
+		if (!notifyListeners(new DiffEvent(currentVersion, versionAge, previousVersion, counts, replacement))) {
+			throw new IOException("Failed to publish the diff of " + currentVersion);
+		}
+		CheckpointJournal.record(currentVersion, CheckpointJournal.Stage.DIFFED,
+				diffDetail(previousVersion, versionAge));
+	}
 
-			writer.write("New Files: " + newFiles.size() + " files");
-			writer.newLine();
-			writer.write("====================");
-			writer.newLine();
-			for (File file : newFiles) {
-				writer.write(file.toString());
-				writer.newLine();
-			}
+	/**
+	 * @return What a diff depends on besides the bytecode of its versions,
+	 *         i.e. the detail of its DIFFED checkpoint
+	 */
+	private static String diffDetail(File previousVersion, int versionAge) {
+		String detail = versionAge + "\t" + (previousVersion == null ? "N/A" : previousVersion.getName());
+		// Reclassifying debug-only changes turns MODIFIED classes into copies,
+		// so diffs must be recomputed when it is turned on or off. It is left
+		// out when off, so diffs recorded before it existed stay valid.
+		if (MemberFingerprinter.isEnabled()) {
+			detail += "\tmembers";
+		}
+		return detail;
+	}
 
-			writer.newLine();
-			writer.newLine();
-			writer.write("Modified Files: " + modifiedFiles.size() + " files");
-			writer.newLine();
-			writer.write("====================");
-			writer.newLine();
-			for (File file : modifiedFiles) {
-				writer.write(file.toString());
-				writer.newLine();
-			}
+	/**
+	 * Registers a listener to be notified each time a diff is written.
+	 */
+	public static void addDiffListener(DiffListener listener) {
+		listeners.add(listener);
+	}
 
-			writer.newLine();
-			writer.newLine();
-			writer.write("Deleted Files: " + deletedFiles.size() + " files");
-			writer.newLine();
-			writer.write("====================");
-			writer.newLine();
-			for (File file : deletedFiles) {
-				writer.write(file.toString());
-				writer.newLine();
-			}
+	/**
+	 * Unregisters a listener added with {@link #addDiffListener}.
+	 */
+	public static void removeDiffListener(DiffListener listener) {
+		listeners.remove(listener);
+	}
 
-			writer.newLine();
-			writer.newLine();
-			writer.write("Copied Files: " + copiedFiles.size() + " files");
-			writer.newLine();
-			writer.write("====================");
-			writer.newLine();
-			for (File file : copiedFiles) {
-				writer.write(file.toString());
-				writer.newLine();
+	/**
+	 * @return False if any listener failed
+	 */
+	private static boolean notifyListeners(DiffEvent event) {
+		boolean notified = true;
+		for (DiffListener listener : listeners) {
+			try {
+				listener.diffWritten(event);
+			} catch (RuntimeException e) {
+				System.err.println("Error notifying diff listener for " + event.getVersion() + ": " + e.getMessage());
+				notified = false;
 			}
-
-			writer.newLine();
-			writer.newLine();
-			writer.write("=====END OF DIFF=====");
-		} catch (Exception e) {
-			// TODO: handle exception
 		}
+		return notified;
 	}
 
 	/**
@@ -255,4 +398,52 @@ public class DiffComputer {
 		return false;
 	}
 
+	/**
+	 * One section of a diff file (e.g. the new files). Files are spooled to a
+	 * temporary file as they are found, since the number of files must be
+	 * written before the files themselves.
+	 */
+	private static class DiffSection {
+		private final ChangeKind kind;
+		private final File spool;
+		private final BufferedWriter spoolWriter;
+		private int size = 0;
+
+		private DiffSection(ChangeKind kind) throws IOException {
+			this.kind = kind;
+			this.spool = File.createTempFile("libdiff-section", ".txt");
+			try {
+				this.spoolWriter = ExternalSorter.openWriter(spool);
+			} catch (IOException e) {
+				spool.delete();
+				throw e;
+			}
+		}
+
+		private void add(String path) throws IOException {
+			spoolWriter.write(path);
+			spoolWriter.newLine();
+			size++;
+		}
+
+		private void writeTo(BufferedWriter writer) throws IOException {
+			spoolWriter.close();
+			writer.write(kind.getSectionTitle() + ": " + size + " files");
+			writer.newLine();
+			writer.write("====================");
+			writer.newLine();
+			try (BufferedReader reader = ExternalSorter.openReader(spool)) {
+				String path;
+				while ((path = reader.readLine()) != null) {
+					writer.write(path);
+					writer.newLine();
+				}
+			}
+		}
+
+		private void delete() throws IOException {
+			spoolWriter.close();
+			spool.delete();
+		}
+	}
 }
@@ -0,0 +1,76 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.File;
+import java.nio.file.Path;
+
+/**
+ * Describes a diff.txt file that was just written by {@link DiffComputer}.
+ */
+public class DiffEvent {
+	private final Path library;
+	private final File version;
+	private final int versionAge;
+	private final File previousVersion;
+	private final int[] counts;
+	private final boolean replacement;
+
+	DiffEvent(File version, int versionAge, File previousVersion, int[] counts, boolean replacement) {
+		this.library = version.getParentFile().toPath();
+		this.version = version;
+		this.versionAge = versionAge;
+		this.previousVersion = previousVersion;
+		this.counts = counts;
+		this.replacement = replacement;
+	}
+
+	/**
+	 * @return The path of the library the version belongs to
+	 */
+	public Path getLibrary() {
+		return library;
+	}
+
+	/**
+	 * @return The folder the version was extracted to
+	 */
+	public File getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return The age of the version, where 0 is the most recent version
+	 */
+	public int getVersionAge() {
+		return versionAge;
+	}
+
+	/**
+	 * @return The folder of the previous version, or null if this is the
+	 *         oldest version of the library
+	 */
+	public File getPreviousVersion() {
+		return previousVersion;
+	}
+
+	/**
+	 * @return The diff.txt file that was written
+	 */
+	public File getDiffFile() {
+		return new File(version, "diff.txt");
+	}
+
+	/**
+	 * @return True if the diff replaced an existing diff.txt, e.g. because it
+	 *         was invalid or its version's age or previous version changed
+	 */
+	public boolean isReplacement() {
+		return replacement;
+	}
+
+	/**
+	 * @return The number of files of the given kind in the diff
+	 */
+	public int getCount(ChangeKind kind) {
+		return counts[kind.ordinal()];
+	}
+}
@@ -0,0 +1,312 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the columnar export written by {@link DiffExporter}. The rows blocks
+ * of the export are returned one at a time, in the order they were written,
+ * with their columns memory mapped straight from the file. Diffs without rows
+ * are returned as blocks with no rows.
+ */
+public class DiffExportReader implements Closeable {
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final boolean verifyChecksums;
+	private final ArrayList<String> dictionary = new ArrayList<String>();
+	private long position = 4;
+
+	/**
+	 * Opens an export file for reading.
+	 *
+	 * @param exportFile
+	 *            - the export file, usually found with
+	 *            {@link DiffExporter#getExportFile}
+	 * @throws IOException
+	 */
+	public DiffExportReader(File exportFile) throws IOException {
+		this.file = new RandomAccessFile(exportFile, "r");
+		this.channel = file.getChannel();
+		this.verifyChecksums = false;
+		checkMagic();
+	}
+
+	DiffExportReader(FileChannel channel, boolean verifyChecksums) throws IOException {
+		this.file = null;
+		this.channel = channel;
+		this.verifyChecksums = verifyChecksums;
+		checkMagic();
+	}
+
+	/**
+	 * @return The next rows block of the export, or null if the end of the
+	 *         export was reached
+	 * @throws IOException
+	 */
+	public RowBlock nextRowBlock() throws IOException {
+		long size = channel.size();
+		while (position + DiffExporter.BLOCK_HEADER_SIZE <= size) {
+			ByteBuffer header = ByteBuffer.allocate(DiffExporter.BLOCK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(header, position);
+			header.flip();
+			int type = header.getInt();
+			int length = header.getInt();
+			int checksum = header.getInt();
+			long payloadPosition = position + DiffExporter.BLOCK_HEADER_SIZE;
+			if (length < 0 || payloadPosition + length > size) {
+				// The last block was only partly written
+				return null;
+			}
+
+			MappedByteBuffer payload = channel.map(FileChannel.MapMode.READ_ONLY, payloadPosition, length);
+			payload.order(ByteOrder.LITTLE_ENDIAN);
+			if (verifyChecksums && !hasChecksum(payload, checksum)) {
+				return null;
+			}
+			position = payloadPosition + length;
+
+			if (type == DiffExporter.DICTIONARY_BLOCK) {
+				readDictionary(payload);
+			} else if (type == DiffExporter.ROWS_BLOCK) {
+				return new RowBlock(payload, dictionary);
+			} else if (type == DiffExporter.EMPTY_DIFF_BLOCK) {
+				return new RowBlock(dictionary, payload.getInt(0), payload.getInt(4), payload.getInt(8),
+						payload.getInt(12));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The strings of every dictionary block read so far, indexed by
+	 *         their id
+	 */
+	public ArrayList<String> getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * @return The string with the given dictionary id, or null for id -1
+	 */
+	public String getString(int id) {
+		return id < 0 ? null : dictionary.get(id);
+	}
+
+	long getEndOfValidData() {
+		return position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (file != null) {
+			file.close();
+		}
+	}
+
+	private void checkMagic() throws IOException {
+		ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(magic, 0);
+		magic.flip();
+		if (magic.remaining() < 4 || magic.getInt() != DiffExporter.MAGIC) {
+			throw new IOException("Not a LibDiff export file.");
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long at) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, at + buffer.position());
+			if (read < 0) {
+				break;
+			}
+		}
+	}
+
+	private static boolean hasChecksum(ByteBuffer payload, int checksum) {
+		byte[] bytes = new byte[payload.remaining()];
+		payload.duplicate().get(bytes);
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return (int) crc.getValue() == checksum;
+	}
+
+	private void readDictionary(ByteBuffer payload) throws IOException {
+		int firstId = payload.getInt();
+		int count = payload.getInt();
+		if (firstId != dictionary.size()) {
+			throw new IOException("Dictionary block out of order in export file.");
+		}
+		for (int i = 0; i < count; i++) {
+			byte[] bytes = new byte[payload.getInt()];
+			payload.get(bytes);
+			dictionary.add(new String(bytes, StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * The diff of one version of a library, stored column by column.
+	 */
+	public static class RowBlock {
+		private final int rowCount;
+		private final IntBuffer libraries;
+		private final IntBuffer versions;
+		private final IntBuffer versionAges;
+		private final IntBuffer previousVersions;
+		private final IntBuffer paths;
+		private final ByteBuffer digests;
+		private final ByteBuffer kinds;
+		private final ArrayList<String> dictionary;
+		// The ids shared by every row, or -1 for a block without rows that was
+		// written before empty diffs had a block of their own
+		private final int libraryId;
+		private final int versionId;
+		private final int previousVersionId;
+		private final int versionAge;
+
+		private RowBlock(ByteBuffer payload, ArrayList<String> dictionary) {
+			this.dictionary = dictionary;
+			this.rowCount = payload.getInt(0);
+			int offset = 4;
+			this.libraries = column(payload, offset, rowCount * 4).asIntBuffer();
+			offset += rowCount * 4;
+			this.versions = column(payload, offset, rowCount * 4).asIntBuffer();
+			offset += rowCount * 4;
+			this.versionAges = column(payload, offset, rowCount * 4).asIntBuffer();
+			offset += rowCount * 4;
+			this.previousVersions = column(payload, offset, rowCount * 4).asIntBuffer();
+			offset += rowCount * 4;
+			this.paths = column(payload, offset, rowCount * 4).asIntBuffer();
+			offset += rowCount * 4;
+			this.digests = column(payload, offset, rowCount * DiffExporter.DIGEST_SIZE);
+			offset += rowCount * DiffExporter.DIGEST_SIZE;
+			this.kinds = column(payload, offset, rowCount);
+			this.libraryId = rowCount > 0 ? libraries.get(0) : -1;
+			this.versionId = rowCount > 0 ? versions.get(0) : -1;
+			this.previousVersionId = rowCount > 0 ? previousVersions.get(0) : -1;
+			this.versionAge = rowCount > 0 ? versionAges.get(0) : -1;
+		}
+
+		/**
+		 * Creates the block of a diff without rows.
+		 */
+		private RowBlock(ArrayList<String> dictionary, int libraryId, int versionId, int previousVersionId,
+				int versionAge) {
+			this.dictionary = dictionary;
+			this.rowCount = 0;
+			ByteBuffer empty = ByteBuffer.allocate(0);
+			this.libraries = empty.asIntBuffer();
+			this.versions = empty.asIntBuffer();
+			this.versionAges = empty.asIntBuffer();
+			this.previousVersions = empty.asIntBuffer();
+			this.paths = empty.asIntBuffer();
+			this.digests = empty;
+			this.kinds = empty;
+			this.libraryId = libraryId;
+			this.versionId = versionId;
+			this.previousVersionId = previousVersionId;
+			this.versionAge = versionAge;
+		}
+
+		private static ByteBuffer column(ByteBuffer payload, int offset, int length) {
+			ByteBuffer column = payload.duplicate();
+			column.position(offset);
+			column.limit(offset + length);
+			return column.slice().order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		public int getRowCount() {
+			return rowCount;
+		}
+
+		public int getLibraryId(int row) {
+			return libraries.get(row);
+		}
+
+		public int getVersionId(int row) {
+			return versions.get(row);
+		}
+
+		public int getVersionAge(int row) {
+			return versionAges.get(row);
+		}
+
+		/**
+		 * @return The dictionary id of the previous version, or -1 if there
+		 *         is none
+		 */
+		public int getPreviousVersionId(int row) {
+			return previousVersions.get(row);
+		}
+
+		public int getPathId(int row) {
+			return paths.get(row);
+		}
+
+		public ChangeKind getChangeKind(int row) {
+			return ChangeKind.values()[kinds.get(row)];
+		}
+
+		/**
+		 * @return The MD5 hash of the file as a hexadecimal string
+		 */
+		public String getDigest(int row) {
+			byte[] digest = new byte[DiffExporter.DIGEST_SIZE];
+			for (int i = 0; i < digest.length; i++) {
+				digest[i] = digests.get(row * DiffExporter.DIGEST_SIZE + i);
+			}
+			return FileMapper.convertByteArrayToHexString(digest);
+		}
+
+		public String getLibrary(int row) {
+			return dictionary.get(getLibraryId(row));
+		}
+
+		public String getVersion(int row) {
+			return dictionary.get(getVersionId(row));
+		}
+
+		public String getPath(int row) {
+			return dictionary.get(getPathId(row));
+		}
+
+		/**
+		 * @return The library of the diff, or null if the block has no rows
+		 *         and was written by an older version of the tool
+		 */
+		public String getLibrary() {
+			return libraryId < 0 ? null : dictionary.get(libraryId);
+		}
+
+		/**
+		 * @return The version of the diff, or null if the block has no rows
+		 *         and was written by an older version of the tool
+		 */
+		public String getVersion() {
+			return versionId < 0 ? null : dictionary.get(versionId);
+		}
+
+		/**
+		 * @return The previous version of the diff, or null if there is none
+		 */
+		public String getPreviousVersion() {
+			return previousVersionId < 0 ? null : dictionary.get(previousVersionId);
+		}
+
+		/**
+		 * @return The age of the version of the diff, or -1 if the block has
+		 *         no rows and was written by an older version of the tool
+		 */
+		public int getVersionAge() {
+			return versionAge;
+		}
+	}
+}
@@ -0,0 +1,429 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Exports the diffs of every library in a whitelist into a single columnar
+ * file, so that analytics can scan all diffs without opening thousands of
+ * diff.txt files. The export is kept at ".libdiff/diffs.ldx" and can be read
+ * with {@link DiffExportReader}.
+ *
+ * The file starts with a 4 byte magic number, followed by a sequence of
+ * blocks. Every block starts with its type, the length of its payload and the
+ * CRC32 of its payload, all as little endian ints. Payloads are padded to a
+ * multiple of 4 bytes so that the int columns of a block can be memory mapped
+ * in place.
+ * <ul>
+ * <li>A dictionary block assigns ids to strings (library names, version names
+ * and file paths). It holds the id of its first string, the number of strings,
+ * and each string as a length followed by its UTF-8 bytes. Ids continue from
+ * one dictionary block to the next.</li>
+ * <li>A rows block holds the diff of one version of a library. It holds the
+ * number of rows n, followed by the columns library, version, version age,
+ * previous version (-1 if there is none) and path as n ints each, then the
+ * digest column as n 16 byte MD5 hashes, and finally the change kind column as
+ * n bytes holding the ordinal of a {@link ChangeKind}.</li>
+ * <li>An empty diff block takes the place of a rows block for a diff without
+ * rows, which could not tell which version it belongs to. It holds the ids of
+ * the library, version and previous version (-1 if there is none) and the
+ * version age.</li>
+ * </ul>
+ *
+ * Blocks are only ever appended, so the diff of a version may appear more than
+ * once if it was recomputed. The last rows or empty diff block for a version
+ * is the current one. A trailing block that was only partly written (e.g. because the tool
+ * was killed) is discarded the next time the file is opened for appending.
+ */
+public class DiffExporter implements DiffListener {
+	public static final String EXPORT_FILE_NAME = "diffs.ldx";
+
+	static final int MAGIC = 0x3158444c; // "LDX1"
+	static final int DICTIONARY_BLOCK = 1;
+	static final int ROWS_BLOCK = 2;
+	static final int EMPTY_DIFF_BLOCK = 3;
+	static final int BLOCK_HEADER_SIZE = 12;
+	static final int DIGEST_SIZE = 16;
+
+	private final File exportFile;
+	private final HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+	// The version age and previous version of the latest diff exported for
+	// each "library[TAB]version"
+	private final HashMap<String, String> exported = new HashMap<String, String>();
+	private long endOfFile;
+
+	/**
+	 * Opens the export file of a whitelist for appending, creating it if it
+	 * does not exist.
+	 *
+	 * @param whitelist
+	 *            - the path to the whitelist
+	 * @throws IOException
+	 */
+	public DiffExporter(Path whitelist) throws IOException {
+		this.exportFile = getExportFile(whitelist);
+		load();
+	}
+
+	/**
+	 * @return The file the diffs of a whitelist are exported to
+	 * @throws IOException
+	 */
+	public static File getExportFile(Path whitelist) throws IOException {
+		return WhitelistState.getStateFolder(whitelist).resolve(EXPORT_FILE_NAME).toFile();
+	}
+
+	/**
+	 * Rewrites the export of a whitelist from scratch with the current diffs
+	 * of all of its libraries. Superseded diffs are dropped in the process.
+	 *
+	 * @param whitelist
+	 *            - the path to the whitelist
+	 * @return An exporter that appends to the new export
+	 * @throws IOException
+	 */
+	public static DiffExporter exportAll(Path whitelist) throws IOException {
+		System.out.format("Exporting all diffs of %s...\n", whitelist);
+		File exportFile = getExportFile(whitelist);
+		exportFile.delete();
+		DiffExporter exporter = new DiffExporter(whitelist);
+
+		File[] libraries = whitelist.toFile().listFiles();
+		if (libraries != null) {
+			for (File library : libraries) {
+				if (library.isDirectory() && !WhitelistState.isStateFolder(library)) {
+					exporter.exportLibrary(library.toPath());
+				}
+			}
+		}
+		System.out.println("Export complete.");
+		return exporter;
+	}
+
+	/**
+	 * Appends the diffs that were written while the export was not being kept
+	 * up to date, i.e. the diffs whose DIFFED checkpoint does not match the
+	 * latest diff exported for their version.
+	 *
+	 * @param whitelist
+	 *            - the path to the whitelist
+	 * @throws IOException
+	 */
+	public void reconcile(Path whitelist) throws IOException {
+		int appended = 0;
+		File[] libraries = whitelist.toFile().listFiles();
+		if (libraries == null) {
+			return;
+		}
+		for (File library : libraries) {
+			if (!library.isDirectory() || WhitelistState.isStateFolder(library)) {
+				continue;
+			}
+			CheckpointJournal checkpoints = CheckpointJournal.forLibrary(library.toPath());
+			for (Map.Entry<String, String> diffed : checkpoints.getDetails(CheckpointJournal.Stage.DIFFED)
+					.entrySet()) {
+				String[] detail = diffed.getValue().split("\t");
+				if (detail.length < 2) {
+					continue;
+				}
+				String ageAndPrevious = detail[0] + "\t" + detail[1];
+				if (ageAndPrevious.equals(exported.get(library.getName() + "\t" + diffed.getKey()))) {
+					continue;
+				}
+				File version = new File(library, diffed.getKey());
+				if (!DiffComputer.isDiffValid(new File(version, "diff.txt"))) {
+					continue;
+				}
+				File previousVersion = detail[1].equals("N/A") ? null : new File(library, detail[1]);
+				exportVersion(version, Integer.parseInt(detail[0]), previousVersion);
+				appended++;
+			}
+		}
+		if (appended > 0) {
+			System.out.format("Exported %d diffs written since the export was last updated.\n", appended);
+		}
+	}
+
+	/**
+	 * Appends the diffs of every version of a library that has a valid
+	 * diff.txt file.
+	 *
+	 * @param libraryPath
+	 *            - the path to the library
+	 * @throws IOException
+	 */
+	public void exportLibrary(Path libraryPath) throws IOException {
+		LinkedList<File> versionOrder = JarComparator.getVersionOrder(libraryPath);
+		for (int versionAge = 0; versionAge < versionOrder.size(); versionAge++) {
+			File version = new File(versionOrder.get(versionAge).toString().replace(".jar", ""));
+			File previousVersion = null;
+			if (versionAge + 1 < versionOrder.size()) {
+				previousVersion = new File(versionOrder.get(versionAge + 1).toString().replace(".jar", ""));
+			}
+			if (DiffComputer.isDiffValid(new File(version, "diff.txt"))) {
+				exportVersion(version, versionAge, previousVersion);
+			}
+		}
+	}
+
+	/**
+	 * Appends the diff of one version of a library.
+	 *
+	 * @param version
+	 *            - the folder the version was extracted to
+	 * @param versionAge
+	 *            - the age of the version, where 0 is the most recent version
+	 * @param previousVersion
+	 *            - the folder of the previous version, or null if there is
+	 *            none
+	 * @throws IOException
+	 */
+	public synchronized void exportVersion(File version, int versionAge, File previousVersion) throws IOException {
+		File previousManifest = null;
+		if (previousVersion != null) {
+			previousManifest = FileManifest.getManifest(previousVersion.toPath());
+		}
+		File currentManifest = FileManifest.getManifest(version.toPath());
+
+		final ArrayList<String> newStrings = new ArrayList<String>();
+		try {
+			final int libraryId = idOf(version.getParentFile().getName(), newStrings);
+			final int versionId = idOf(version.getName(), newStrings);
+			final int previousVersionId = previousVersion == null ? -1 : idOf(previousVersion.getName(), newStrings);
+
+			final IntColumn paths = new IntColumn();
+			final ByteColumn kinds = new ByteColumn();
+			final ByteColumn digests = new ByteColumn();
+			DiffComputer.compareManifests(previousManifest, currentManifest, new DiffComputer.ChangeVisitor() {
+				@Override
+				public void visit(ChangeKind kind, FileManifest.Entry entry) {
+					paths.add(idOf(entry.getPath(), newStrings));
+					kinds.add((byte) kind.ordinal());
+					digests.add(parseDigest(entry.getDigest()));
+				}
+			});
+
+			int rowCount = paths.size;
+			ByteBuffer rows = ByteBuffer.allocate(padded(4 + rowCount * (5 * 4 + DIGEST_SIZE + 1)));
+			rows.order(ByteOrder.LITTLE_ENDIAN);
+			rows.putInt(rowCount);
+			fill(rows, libraryId, rowCount);
+			fill(rows, versionId, rowCount);
+			fill(rows, versionAge, rowCount);
+			fill(rows, previousVersionId, rowCount);
+			for (int i = 0; i < rowCount; i++) {
+				rows.putInt(paths.values[i]);
+			}
+			rows.put(digests.values, 0, digests.size);
+			rows.put(kinds.values, 0, kinds.size);
+
+			try (RandomAccessFile file = new RandomAccessFile(exportFile, "rw")) {
+				FileChannel channel = file.getChannel();
+				// Drop anything left behind by a previously failed append
+				channel.truncate(endOfFile);
+				channel.position(endOfFile);
+				if (!newStrings.isEmpty()) {
+					writeBlock(channel, DICTIONARY_BLOCK, encodeDictionary(dictionary.size() - newStrings.size(), newStrings));
+				}
+				if (rowCount > 0) {
+					writeBlock(channel, ROWS_BLOCK, rows.array());
+				} else {
+					ByteBuffer emptyDiff = ByteBuffer.allocate(4 * 4).order(ByteOrder.LITTLE_ENDIAN);
+					emptyDiff.putInt(libraryId);
+					emptyDiff.putInt(versionId);
+					emptyDiff.putInt(previousVersionId);
+					emptyDiff.putInt(versionAge);
+					writeBlock(channel, EMPTY_DIFF_BLOCK, emptyDiff.array());
+				}
+				endOfFile = channel.position();
+			}
+			exported.put(version.getParentFile().getName() + "\t" + version.getName(),
+					versionAge + "\t" + (previousVersion == null ? "N/A" : previousVersion.getName()));
+		} catch (IOException e) {
+			// Forget the strings that never made it to disk, so that the ids
+			// of the next dictionary block stay contiguous
+			for (String string : newStrings) {
+				dictionary.remove(string);
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public void diffWritten(DiffEvent event) {
+		try {
+			exportVersion(event.getVersion(), event.getVersionAge(), event.getPreviousVersion());
+		} catch (IOException e) {
+			// Keeps the diff from being checkpointed, so it is computed and
+			// exported again the next time its library is processed
+			throw new IllegalStateException("Failed to export the diff of " + event.getVersion() + ": " + e.getMessage(),
+					e);
+		}
+	}
+
+	/**
+	 * Reads the dictionary of an existing export, and truncates any partly
+	 * written block at its end.
+	 */
+	private void load() throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(exportFile, "rw")) {
+			FileChannel channel = file.getChannel();
+			if (channel.size() < 4) {
+				ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+				magic.putInt(MAGIC).flip();
+				channel.truncate(0);
+				channel.write(magic, 0);
+				endOfFile = 4;
+				return;
+			}
+
+			// Reading the rows blocks also loads the dictionary blocks between
+			// them
+			DiffExportReader reader = new DiffExportReader(channel, true);
+			DiffExportReader.RowBlock block;
+			while ((block = reader.nextRowBlock()) != null) {
+				if (block.getLibrary() != null) {
+					String previousVersion = block.getPreviousVersion();
+					exported.put(block.getLibrary() + "\t" + block.getVersion(), block.getVersionAge() + "\t"
+							+ (previousVersion == null ? "N/A" : previousVersion));
+				}
+			}
+			ArrayList<String> strings = reader.getDictionary();
+			for (int id = 0; id < strings.size(); id++) {
+				dictionary.put(strings.get(id), id);
+			}
+			endOfFile = reader.getEndOfValidData();
+			if (endOfFile < channel.size()) {
+				System.err.println("Warning: discarding a partly written block at the end of " + exportFile);
+				channel.truncate(endOfFile);
+			}
+		}
+	}
+
+	private int idOf(String string, ArrayList<String> newStrings) {
+		Integer id = dictionary.get(string);
+		if (id == null) {
+			id = dictionary.size();
+			dictionary.put(string, id);
+			newStrings.add(string);
+		}
+		return id;
+	}
+
+	private static byte[] encodeDictionary(int firstId, ArrayList<String> strings) {
+		ArrayList<byte[]> encoded = new ArrayList<byte[]>(strings.size());
+		int size = 8;
+		for (String string : strings) {
+			byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+			encoded.add(bytes);
+			size += 4 + bytes.length;
+		}
+
+		ByteBuffer payload = ByteBuffer.allocate(padded(size)).order(ByteOrder.LITTLE_ENDIAN);
+		payload.putInt(firstId);
+		payload.putInt(strings.size());
+		for (byte[] bytes : encoded) {
+			payload.putInt(bytes.length);
+			payload.put(bytes);
+		}
+		return payload.array();
+	}
+
+	private static void writeBlock(FileChannel channel, int type, byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(type);
+		header.putInt(payload.length);
+		header.putInt((int) crc.getValue());
+		header.flip();
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+		ByteBuffer body = ByteBuffer.wrap(payload);
+		while (body.hasRemaining()) {
+			channel.write(body);
+		}
+	}
+
+	private static void fill(ByteBuffer buffer, int value, int count) {
+		for (int i = 0; i < count; i++) {
+			buffer.putInt(value);
+		}
+	}
+
+	static int padded(int size) {
+		return (size + 3) & ~3;
+	}
+
+	/**
+	 * Converts a hexadecimal MD5 hash into its 16 bytes. Hashes that could
+	 * not be computed are stored as zeroes.
+	 */
+	static byte[] parseDigest(String digest) {
+		byte[] bytes = new byte[DIGEST_SIZE];
+		if (digest.length() == DIGEST_SIZE * 2) {
+			for (int i = 0; i < DIGEST_SIZE; i++) {
+				bytes[i] = (byte) Integer.parseInt(digest.substring(i * 2, i * 2 + 2), 16);
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * A growable array of ints.
+	 */
+	private static class IntColumn {
+		private int[] values = new int[256];
+		private int size = 0;
+
+		private void add(int value) {
+			if (size == values.length) {
+				int[] grown = new int[values.length * 2];
+				System.arraycopy(values, 0, grown, 0, size);
+				values = grown;
+			}
+			values[size++] = value;
+		}
+	}
+
+	/**
+	 * A growable array of bytes.
+	 */
+	private static class ByteColumn {
+		private byte[] values = new byte[256];
+		private int size = 0;
+
+		private void add(byte value) {
+			if (size == values.length) {
+				grow();
+			}
+			values[size++] = value;
+		}
+
+		private void add(byte[] bytes) {
+			while (size + bytes.length > values.length) {
+				grow();
+			}
+			System.arraycopy(bytes, 0, values, size, bytes.length);
+			size += bytes.length;
+		}
+
+		private void grow() {
+			byte[] grown = new byte[values.length * 2];
+			System.arraycopy(values, 0, grown, 0, size);
+			values = grown;
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package com.zchi88.android.libdiff.utilities;
+
+/**
+ * Receives a notification each time {@link DiffComputer} writes a diff.txt
+ * file. Listeners are called on the thread that computed the diff, so they
+ * must be thread safe.
+ *
+ * A listener that cannot take a diff may throw a RuntimeException. The diff
+ * is then not checkpointed, and is computed and delivered again the next time
+ * its library is processed.
+ */
+public interface DiffListener {
+	/**
+	 * Called after a diff.txt file has been completely written.
+	 *
+	 * @param event
+	 *            - describes the diff that was written
+	 */
+	void diffWritten(DiffEvent event);
+}
@@ -0,0 +1,218 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts an arbitrarily large set of text records using a bounded amount of
+ * memory. Records are buffered until the buffer is full, at which point they
+ * are sorted and spilled to a temporary "run" file on disk. Once all records
+ * have been added, the runs are merged into a single sorted output file.
+ *
+ * Records must not contain line breaks.
+ */
+public class ExternalSorter implements Closeable {
+	/**
+	 * The default number of records held in memory before a run is spilled to
+	 * disk.
+	 */
+	public static final int DEFAULT_RUN_SIZE = 100000;
+
+	/**
+	 * The maximum number of runs merged at once. Larger numbers of runs are
+	 * merged in several passes.
+	 */
+	private static final int MAX_MERGE_WIDTH = 64;
+
+	private final Comparator<String> comparator;
+	private final int runSize;
+	private final ArrayList<String> buffer;
+	private final ArrayList<File> runs = new ArrayList<File>();
+
+	public ExternalSorter(Comparator<String> comparator) {
+		this(comparator, DEFAULT_RUN_SIZE);
+	}
+
+	public ExternalSorter(Comparator<String> comparator, int runSize) {
+		this.comparator = comparator;
+		this.runSize = Math.max(1, runSize);
+		this.buffer = new ArrayList<String>(Math.min(this.runSize, 1024));
+	}
+
+	/**
+	 * Adds a record to be sorted, spilling the in-memory buffer to disk if it
+	 * is full.
+	 *
+	 * @param record
+	 *            - the record to add
+	 * @throws IOException
+	 */
+	public void add(String record) throws IOException {
+		buffer.add(record);
+		if (buffer.size() >= runSize) {
+			spill();
+		}
+	}
+
+	/**
+	 * Writes all records added so far to the output file in sorted order, one
+	 * record per line.
+	 *
+	 * @param output
+	 *            - the file to write the sorted records to
+	 * @throws IOException
+	 */
+	public void sortTo(File output) throws IOException {
+		if (runs.isEmpty()) {
+			// Everything fit in memory, so there is nothing to merge
+			Collections.sort(buffer, comparator);
+			try (BufferedWriter writer = openWriter(output)) {
+				for (String record : buffer) {
+					writer.write(record);
+					writer.newLine();
+				}
+			}
+			buffer.clear();
+			return;
+		}
+
+		if (!buffer.isEmpty()) {
+			spill();
+		}
+
+		// Merge in several passes if there are too many runs to keep open
+		while (runs.size() > MAX_MERGE_WIDTH) {
+			ArrayList<File> batch = new ArrayList<File>(runs.subList(0, MAX_MERGE_WIDTH));
+			runs.subList(0, MAX_MERGE_WIDTH).clear();
+			File mergedRun = createRunFile();
+			runs.add(mergedRun);
+			try {
+				merge(batch, mergedRun);
+			} finally {
+				deleteAll(batch);
+			}
+		}
+
+		merge(runs, output);
+		deleteAll(runs);
+		runs.clear();
+	}
+
+	/**
+	 * Deletes any run files that are still on disk.
+	 */
+	@Override
+	public void close() {
+		deleteAll(runs);
+		runs.clear();
+		buffer.clear();
+	}
+
+	private void spill() throws IOException {
+		Collections.sort(buffer, comparator);
+		File run = createRunFile();
+		// Track the run before writing it, so close() deletes it even if the
+		// write fails
+		runs.add(run);
+		try (BufferedWriter writer = openWriter(run)) {
+			for (String record : buffer) {
+				writer.write(record);
+				writer.newLine();
+			}
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Performs a k-way merge of sorted run files into the output file.
+	 */
+	private void merge(ArrayList<File> sortedRuns, File output) throws IOException {
+		ArrayList<BufferedReader> readers = new ArrayList<BufferedReader>();
+		PriorityQueue<RunHead> heads = new PriorityQueue<RunHead>(Math.max(1, sortedRuns.size()),
+				new Comparator<RunHead>() {
+					@Override
+					public int compare(RunHead first, RunHead second) {
+						return comparator.compare(first.record, second.record);
+					}
+				});
+
+		try (BufferedWriter writer = openWriter(output)) {
+			for (File run : sortedRuns) {
+				BufferedReader reader = openReader(run);
+				readers.add(reader);
+				String record = reader.readLine();
+				if (record != null) {
+					heads.add(new RunHead(record, reader));
+				}
+			}
+
+			while (!heads.isEmpty()) {
+				RunHead head = heads.poll();
+				writer.write(head.record);
+				writer.newLine();
+				String next = head.reader.readLine();
+				if (next != null) {
+					heads.add(new RunHead(next, head.reader));
+				}
+			}
+		} finally {
+			for (BufferedReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	private static File createRunFile() throws IOException {
+		return File.createTempFile("libdiff-run", ".txt");
+	}
+
+	private static void deleteAll(ArrayList<File> files) {
+		for (File file : files) {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Opens a UTF-8 text file for writing, subject to the {@link IoThrottle}.
+	 */
+	static BufferedWriter openWriter(File file) throws IOException {
+		IoThrottle.acquireOpen();
+		return new BufferedWriter(new OutputStreamWriter(IoThrottle.throttle(new FileOutputStream(file)),
+				StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Opens a UTF-8 text file for reading, subject to the {@link IoThrottle}.
+	 */
+	static BufferedReader openReader(File file) throws IOException {
+		IoThrottle.acquireOpen();
+		return new BufferedReader(new InputStreamReader(IoThrottle.throttle(new FileInputStream(file)),
+				StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * The smallest unmerged record of a run, along with the reader it came
+	 * from.
+	 */
+	private static class RunHead {
+		private final String record;
+		private final BufferedReader reader;
+
+		private RunHead(String record, BufferedReader reader) {
+			this.record = record;
+			this.reader = reader;
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+
+/**
+ * A manifest is a text file listing every file of an extracted library version
+ * alongside its MD5 hash, one "path[TAB]hash" entry per line, sorted by path.
+ * Because both sides of a diff can be read from their manifests in the same
+ * order, diffs can be computed by merging two manifests without holding either
+ * of them in memory.
+ *
+ * The manifest of a version is stored in its extracted folder as
+ * "manifest.txt", so it is computed only once and is ignored when the folder
+ * is hashed (like all txt files).
+ */
+public class FileManifest {
+	public static final String MANIFEST_FILE_NAME = "manifest.txt";
+
+	/**
+	 * Orders manifest entries by their relative path.
+	 */
+	public static final Comparator<String> ENTRY_ORDER = new Comparator<String>() {
+		@Override
+		public int compare(String first, String second) {
+			return pathOf(first).compareTo(pathOf(second));
+		}
+	};
+
+	/**
+	 * Returns the manifest of an extracted library version, computing it first
+	 * if it does not exist yet.
+	 *
+	 * @param versionFolder
+	 *            - the folder a JAR's bytecode was extracted to
+	 * @return The manifest file
+	 * @throws IOException
+	 */
+	public static File getManifest(Path versionFolder) throws IOException {
+		File manifestFile = versionFolder.resolve(MANIFEST_FILE_NAME).toFile();
+		if (!manifestFile.exists()) {
+			BytecodeCache.ensureExtracted(versionFolder.toFile());
+			try {
+				build(versionFolder, manifestFile);
+			} finally {
+				BytecodeCache.releaseExtracted(versionFolder.toFile());
+			}
+			CheckpointJournal.record(versionFolder.toFile(), CheckpointJournal.Stage.FINGERPRINTED, "");
+		}
+		return manifestFile;
+	}
+
+	/**
+	 * Returns the manifest of an extracted library version without computing
+	 * it, e.g. for queries that must not write to the whitelist.
+	 *
+	 * @param versionFolder
+	 *            - the folder a JAR's bytecode was extracted to
+	 * @return The manifest file, or null if it has not been computed yet
+	 */
+	public static File findManifest(Path versionFolder) {
+		File manifestFile = versionFolder.resolve(MANIFEST_FILE_NAME).toFile();
+		return manifestFile.exists() ? manifestFile : null;
+	}
+
+	/**
+	 * Hashes every file in a directory (and its sub-directories) and writes
+	 * the sorted results to a manifest file. Ignores txt files, and the tmp
+	 * files they are written to before being moved into place, including any
+	 * left behind by a crash. Entries are sorted with an external sort, so
+	 * memory use does not grow with the size of the directory.
+	 *
+	 * The manifest is written to a temporary file which is then renamed, so a
+	 * manifest is never observed half-written.
+	 *
+	 * @param directory
+	 *            - the directory to hash
+	 * @param manifestFile
+	 *            - where to write the manifest
+	 * @throws IOException
+	 */
+	public static void build(final Path directory, File manifestFile) throws IOException {
+		File partialManifest = File.createTempFile("manifest", ".tmp", manifestFile.getParentFile());
+		try (final ExternalSorter sorter = new ExternalSorter(ENTRY_ORDER)) {
+			Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					String name = file.getFileName().toString();
+					if (!Files.isDirectory(file) && !name.endsWith(".txt") && !name.endsWith(".tmp")) {
+						String checksum = FileMapper.hashFile(file.toFile(), "MD5");
+						sorter.add(directory.relativize(file).toString() + "\t" + checksum);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			sorter.sortTo(partialManifest);
+			SafeFiles.move(partialManifest.toPath(), manifestFile.toPath());
+		} finally {
+			partialManifest.delete();
+		}
+	}
+
+	private static String pathOf(String entry) {
+		int separator = entry.indexOf('\t');
+		return separator < 0 ? entry : entry.substring(0, separator);
+	}
+
+	/**
+	 * A single line of a manifest.
+	 */
+	public static class Entry {
+		private final String path;
+		private final String digest;
+
+		public Entry(String path, String digest) {
+			this.path = path;
+			this.digest = digest;
+		}
+
+		/**
+		 * @return The path of the file relative to its version folder
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * @return The MD5 hash of the file
+		 */
+		public String getDigest() {
+			return digest;
+		}
+	}
+
+	/**
+	 * Reads the entries of a manifest one at a time, in sorted order.
+	 */
+	public static class Reader implements Closeable {
+		private final BufferedReader reader;
+
+		/**
+		 * @param manifestFile
+		 *            - the manifest to read, or null to read an empty manifest
+		 * @throws IOException
+		 */
+		public Reader(File manifestFile) throws IOException {
+			this.reader = manifestFile == null ? null : ExternalSorter.openReader(manifestFile);
+		}
+
+		/**
+		 * @return The next entry of the manifest, or null if there are no more
+		 *         entries
+		 * @throws IOException
+		 */
+		public Entry next() throws IOException {
+			if (reader == null) {
+				return null;
+			}
+			String line = reader.readLine();
+			while (line != null && line.isEmpty()) {
+				line = reader.readLine();
+			}
+			if (line == null) {
+				return null;
+			}
+			int separator = line.indexOf('\t');
+			if (separator < 0) {
+				return new Entry(line, "");
+			}
+			return new Entry(line.substring(0, separator), line.substring(separator + 1));
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (reader != null) {
+				reader.close();
+			}
+		}
+	}
+}
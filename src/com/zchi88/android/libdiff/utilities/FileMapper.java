@@ -26,25 +26,35 @@ public class FileMapper {
 	 * @return The hash value of the file as a String
 	 */
 	public static String hashFile(File file, String algorithm) {
-		try (FileInputStream inputStream = new FileInputStream(file)) {
-			MessageDigest digest = MessageDigest.getInstance(algorithm);
+		try {
+			IoThrottle.acquireOpen();
+			try (FileInputStream inputStream = new FileInputStream(file)) {
+				MessageDigest digest = MessageDigest.getInstance(algorithm);
 
-			byte[] bytesBuffer = new byte[1024];
-			int bytesRead = -1;
+				byte[] bytesBuffer = new byte[8192];
+				int bytesRead = -1;
 
-			while ((bytesRead = inputStream.read(bytesBuffer)) != -1) {
-				digest.update(bytesBuffer, 0, bytesRead);
-			}
+				while ((bytesRead = inputStream.read(bytesBuffer)) != -1) {
+					digest.update(bytesBuffer, 0, bytesRead);
+					IoMetrics.addBytesRead(bytesRead);
+					IoThrottle.acquireRead(bytesRead);
+				}
+				IoMetrics.addClass();
 
-			byte[] hashedBytes = digest.digest();
+				byte[] hashedBytes = digest.digest();
 
-			return convertByteArrayToHexString(hashedBytes);
+				return convertByteArrayToHexString(hashedBytes);
+			}
 		} catch (Exception ex) {
 			return "";
 		}
 	}
 
-	private static String convertByteArrayToHexString(byte[] arrayBytes) {
+	/**
+	 * @return The bytes as a lowercase hexadecimal string, two digits per
+	 *         byte. Used for every digest the tool writes.
+	 */
+	static String convertByteArrayToHexString(byte[] arrayBytes) {
 		StringBuffer stringBuffer = new StringBuffer();
 		for (int i = 0; i < arrayBytes.length; i++) {
 			stringBuffer.append(Integer.toString((arrayBytes[i] & 0xff) + 0x100, 16).substring(1));
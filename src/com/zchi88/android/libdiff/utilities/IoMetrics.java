@@ -0,0 +1,62 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the work done by the tool since it started, so that throughput can
+ * be measured while it runs. All counters only ever increase; rates are found
+ * by comparing two readings.
+ */
+public class IoMetrics {
+	private static final AtomicLong bytesRead = new AtomicLong();
+	private static final AtomicLong bytesWritten = new AtomicLong();
+	private static final AtomicLong classesProcessed = new AtomicLong();
+	private static final AtomicLong librariesProcessed = new AtomicLong();
+	private static final AtomicLong libraryNanos = new AtomicLong();
+
+	public static void addBytesRead(long bytes) {
+		bytesRead.addAndGet(bytes);
+	}
+
+	public static void addBytesWritten(long bytes) {
+		bytesWritten.addAndGet(bytes);
+	}
+
+	/**
+	 * Counts a class file that was extracted or hashed.
+	 */
+	public static void addClass() {
+		classesProcessed.incrementAndGet();
+	}
+
+	/**
+	 * Counts a library that was processed, and how long it took.
+	 */
+	public static void addLibrary(long nanos) {
+		librariesProcessed.incrementAndGet();
+		libraryNanos.addAndGet(nanos);
+	}
+
+	public static long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	public static long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	public static long getClassesProcessed() {
+		return classesProcessed.get();
+	}
+
+	public static long getLibrariesProcessed() {
+		return librariesProcessed.get();
+	}
+
+	/**
+	 * @return The total time spent processing libraries, in nanoseconds
+	 */
+	public static long getLibraryNanos() {
+		return libraryNanos.get();
+	}
+}
@@ -0,0 +1,236 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Limits how fast the tool reads and writes bytes and opens files, so that it
+ * can run alongside latency sensitive services without saturating the disk.
+ * Every extraction, hashing and diff writing path asks the throttle before
+ * doing I/O.
+ *
+ * Each limit is a token bucket that holds up to one second's worth of
+ * tokens. Threads that ask for more than is available go into debt and sleep
+ * until the debt is paid off, so large reads are not starved by small ones.
+ * Limits can be changed at any time; a limit of zero or less means
+ * unlimited, which is the default.
+ */
+public class IoThrottle {
+	public enum Limit {
+		READ_BYTES("read"), WRITE_BYTES("write"), FILE_OPENS("opens");
+
+		private final String name;
+
+		private Limit(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return The short name of the limit, as used by the lookup server
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return The limit with the given short name, or null if there is
+		 *         none
+		 */
+		public static Limit forName(String name) {
+			for (Limit limit : values()) {
+				if (limit.name.equalsIgnoreCase(name)) {
+					return limit;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static final Bucket[] buckets = new Bucket[Limit.values().length];
+
+	static {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new Bucket();
+		}
+	}
+
+	private static class Bucket {
+		private long perSecond = 0;
+		private double tokens = 0;
+		private long refilledAt = System.nanoTime();
+		private long acquired = 0;
+		private long waitedNanos = 0;
+
+		/**
+		 * Takes tokens from the bucket.
+		 *
+		 * @return How long the caller must sleep to pay off its debt
+		 */
+		private synchronized long take(long amount) {
+			acquired += amount;
+			if (perSecond <= 0) {
+				return 0;
+			}
+			long now = System.nanoTime();
+			tokens = Math.min(perSecond, tokens + (now - refilledAt) / 1e9 * perSecond);
+			refilledAt = now;
+			tokens -= amount;
+			if (tokens >= 0) {
+				return 0;
+			}
+			long waitNanos = (long) (-tokens / perSecond * 1e9);
+			waitedNanos += waitNanos;
+			return waitNanos;
+		}
+
+		private synchronized void setPerSecond(long perSecond) {
+			this.perSecond = perSecond;
+			// Start with a full bucket, and forgive any debt owed under the
+			// old limit
+			tokens = Math.max(0, perSecond);
+			refilledAt = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Sets a limit.
+	 *
+	 * @param limit
+	 *            - the limit to set
+	 * @param perSecond
+	 *            - bytes or files per second, or zero for no limit
+	 */
+	public static void setLimit(Limit limit, long perSecond) {
+		buckets[limit.ordinal()].setPerSecond(perSecond);
+	}
+
+	/**
+	 * @return The limit in bytes or files per second, or zero if there is no
+	 *         limit
+	 */
+	public static long getLimit(Limit limit) {
+		Bucket bucket = buckets[limit.ordinal()];
+		synchronized (bucket) {
+			return Math.max(0, bucket.perSecond);
+		}
+	}
+
+	/**
+	 * @return The total number of bytes or files that went through the
+	 *         throttle, whether or not it was limited
+	 */
+	public static long getAcquired(Limit limit) {
+		Bucket bucket = buckets[limit.ordinal()];
+		synchronized (bucket) {
+			return bucket.acquired;
+		}
+	}
+
+	/**
+	 * @return The total time threads were made to wait by a limit, in
+	 *         nanoseconds
+	 */
+	public static long getWaitedNanos(Limit limit) {
+		Bucket bucket = buckets[limit.ordinal()];
+		synchronized (bucket) {
+			return bucket.waitedNanos;
+		}
+	}
+
+	/**
+	 * Parses a limit such as "20M" bytes or "500" files per second. "0" and
+	 * "unlimited" both mean no limit.
+	 *
+	 * @throws NumberFormatException
+	 *             if the limit is not valid
+	 */
+	public static long parseLimit(String limit) {
+		if (limit.equalsIgnoreCase("unlimited")) {
+			return 0;
+		}
+		return Sizes.parse(limit);
+	}
+
+	/**
+	 * Describes a limit and how much it has throttled the tool so far, e.g.
+	 * "read limit 10485760 total 52428800 waited-ms 4000".
+	 */
+	public static String describe(Limit limit) {
+		return String.format(Locale.ROOT, "%s limit %d total %d waited-ms %d", limit.getName(), getLimit(limit),
+				getAcquired(limit), getWaitedNanos(limit) / 1000000);
+	}
+
+	public static void acquireRead(long bytes) throws IOException {
+		acquire(Limit.READ_BYTES, bytes);
+	}
+
+	public static void acquireWrite(long bytes) throws IOException {
+		acquire(Limit.WRITE_BYTES, bytes);
+	}
+
+	public static void acquireOpen() throws IOException {
+		acquire(Limit.FILE_OPENS, 1);
+	}
+
+	private static void acquire(Limit limit, long amount) throws IOException {
+		long waitNanos = buckets[limit.ordinal()].take(amount);
+		if (waitNanos > 0) {
+			try {
+				Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while throttled", e);
+			}
+		}
+	}
+
+	/**
+	 * Wraps a stream so that everything read from it counts against the read
+	 * limit.
+	 */
+	public static InputStream throttle(InputStream in) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0) {
+					acquireRead(1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				int read = super.read(buffer, offset, length);
+				if (read > 0) {
+					acquireRead(read);
+				}
+				return read;
+			}
+		};
+	}
+
+	/**
+	 * Wraps a stream so that everything written to it counts against the
+	 * write limit.
+	 */
+	public static OutputStream throttle(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				acquireWrite(1);
+				out.write(b);
+			}
+
+			@Override
+			public void write(byte[] buffer, int offset, int length) throws IOException {
+				acquireWrite(length);
+				out.write(buffer, offset, length);
+			}
+		};
+	}
+}
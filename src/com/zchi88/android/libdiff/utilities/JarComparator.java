@@ -1,19 +1,32 @@
 package com.zchi88.android.libdiff.utilities;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
 public class JarComparator {
+	/**
+	 * The name of the optional file, in a library folder, that lists the
+	 * library's JARs from the oldest to the most recent version, one per line.
+	 */
+	public static final String ORDER_FILE_NAME = "version-order.txt";
+
 	/**
 	 * Given a library directory containing multiple versions of the library,
 	 * computes the release order of the versions by looking at the time of the
 	 * most recently updated file in the library.
 	 * 
+	 * If the library has a version order file, e.g. written from Maven
+	 * metadata by the {@link MavenIngester}, the JARs it lists are ordered as
+	 * it says instead. JARs it does not list are considered more recent than
+	 * those it does, and are ordered by release time among themselves.
+	 * 
 	 * @param library
 	 *            - the library file
 	 * 
@@ -27,6 +40,8 @@ public class JarComparator {
 	public static LinkedList<File> getVersionOrder(Path libraryPath) throws IOException {
 		File[] libraryVersions = libraryPath.toFile().listFiles();
 		LinkedList<File> sortedVersions = new LinkedList<File>();
+		HashMap<String, Integer> explicitOrder = readOrderFile(libraryPath);
+		HashMap<File, Long> releaseTimes = new HashMap<File, Long>();
 
 		// If the library is not empty
 		if (libraryVersions.length > 0) {
@@ -38,22 +53,67 @@ public class JarComparator {
 				if (libName.endsWith(".jar") && isDecompiled) {
 					// Insert the library into the linked list in its correct
 					// position
-					if (sortedVersions.size() == 0) {
-						sortedVersions.add(libFile);
-					} else {
-						int insertIndex = 0;
-						while (insertIndex < sortedVersions.size()
-								&& getReleaseTime(sortedVersions.get(insertIndex)) > getReleaseTime(libFile)) {
-							insertIndex++;
-						}
-						sortedVersions.add(insertIndex, libFile);
+					int insertIndex = 0;
+					while (insertIndex < sortedVersions.size()
+							&& isMoreRecent(sortedVersions.get(insertIndex), libFile, explicitOrder, releaseTimes)) {
+						insertIndex++;
 					}
+					sortedVersions.add(insertIndex, libFile);
 				}
 			}
 		}
 		return sortedVersions;
 	}
 
+	/**
+	 * @return True if the first JAR is a more recent version than the second
+	 */
+	private static boolean isMoreRecent(File a, File b, HashMap<String, Integer> explicitOrder,
+			HashMap<File, Long> releaseTimes) throws IOException {
+		Integer positionOfA = explicitOrder.get(a.getName());
+		Integer positionOfB = explicitOrder.get(b.getName());
+		if (positionOfA != null && positionOfB != null) {
+			return positionOfA > positionOfB;
+		}
+		if (positionOfA != null || positionOfB != null) {
+			return positionOfA == null;
+		}
+		return getCachedReleaseTime(a, releaseTimes) > getCachedReleaseTime(b, releaseTimes);
+	}
+
+	private static long getCachedReleaseTime(File jar, HashMap<File, Long> releaseTimes) throws IOException {
+		Long releaseTime = releaseTimes.get(jar);
+		if (releaseTime == null) {
+			releaseTime = getReleaseTime(jar);
+			releaseTimes.put(jar, releaseTime);
+		}
+		return releaseTime;
+	}
+
+	/**
+	 * Reads the version order file of a library, if it has one.
+	 *
+	 * @return The position of each JAR listed in the file, from 0 for the
+	 *         oldest version
+	 * @throws IOException
+	 */
+	public static HashMap<String, Integer> readOrderFile(Path libraryPath) throws IOException {
+		HashMap<String, Integer> positions = new HashMap<String, Integer>();
+		File orderFile = libraryPath.resolve(ORDER_FILE_NAME).toFile();
+		if (orderFile.exists()) {
+			try (BufferedReader reader = ExternalSorter.openReader(orderFile)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (!line.isEmpty() && !positions.containsKey(line)) {
+						positions.put(line, positions.size());
+					}
+				}
+			}
+		}
+		return positions;
+	}
+
 	/**
 	 * 
 	 * @param aar
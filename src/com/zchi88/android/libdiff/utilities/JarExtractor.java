@@ -4,6 +4,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Enumeration;
@@ -18,9 +20,19 @@ import java.util.jar.JarFile;
  */
 public class JarExtractor {
 
+	/**
+	 * The suffix of the temporary folder a JAR is extracted to before it is
+	 * renamed to its final name.
+	 */
+	static final String PARTIAL_SUFFIX = ".extracting";
+
 	/**
 	 * 
 	 * Extract the bytecode of a single Jar file.
+	 * 
+	 * The bytecode is extracted to a temporary folder, which is renamed once
+	 * extraction is complete, so a partly extracted JAR is never mistaken for
+	 * a complete one.
 	 *
 	 * @param jarPath
 	 *            - the path to the jar file
@@ -29,9 +41,35 @@ public class JarExtractor {
 	public static void extractByteCode(Path jarPath) throws IOException {
 		System.out.println("Extracting all .class files from " + jarPath.getFileName() + "...");
 
-		Path jarExtractionPath = Paths.get(jarPath.toFile().toString().replace(".jar", ""));
+		Path finalExtractionPath = Paths.get(jarPath.toFile().toString().replace(".jar", ""));
+		Path jarExtractionPath = Paths.get(finalExtractionPath + PARTIAL_SUFFIX);
+		long bytesExtracted = extractTo(jarPath, jarExtractionPath);
+
+		SafeFiles.move(jarExtractionPath, finalExtractionPath);
+		CheckpointJournal.record(finalExtractionPath.toFile(), CheckpointJournal.Stage.EXTRACTED,
+				String.valueOf(bytesExtracted));
+		BytecodeCache.recordExtracted(finalExtractionPath.toFile(), bytesExtracted);
+	}
+
+	/**
+	 * Extracts the .class files of a JAR to a folder, replacing anything that
+	 * was in the folder before.
+	 *
+	 * @param jarPath
+	 *            - the path to the jar file
+	 * @param extractionPath
+	 *            - the folder to extract to
+	 * @return The number of bytes extracted
+	 * @throws IOException
+	 */
+	static long extractTo(Path jarPath, Path extractionPath) throws IOException {
+		SafeFiles.deleteRecursively(extractionPath);
+		Files.createDirectories(extractionPath);
+		IoThrottle.acquireOpen();
 		JarFile jar = new JarFile(jarPath.toString());
 		Enumeration<JarEntry> filesInJar = jar.entries();
+		long bytesExtracted = 0;
+		byte[] buffer = new byte[8192];
 
 		while (filesInJar.hasMoreElements()) {
 			java.util.jar.JarEntry file = filesInJar.nextElement();
@@ -39,31 +77,47 @@ public class JarExtractor {
 			String nameOfFile = file.getName();
 
 			if (nameOfFile.endsWith(".class")) {
-				File outputFile = jarExtractionPath.resolve(nameOfFile).toFile();
+				File outputFile = extractionPath.resolve(nameOfFile).toFile();
 				File outputDirectory = outputFile.getParentFile();
 
 				if (!outputDirectory.exists()) {
 					outputDirectory.mkdirs();
 				}
 
+				// The JAR is read compressed, so count its compressed size
+				// against the read limit
+				IoThrottle.acquireRead(Math.max(0, file.getCompressedSize()));
+				IoThrottle.acquireOpen();
 				InputStream is = jar.getInputStream(file);
-				FileOutputStream os = new FileOutputStream(outputFile);
-				while (is.available() > 0) { // Write contents of InputStream to
-												// FileOutputStream
-					os.write(is.read());
+				OutputStream os = IoThrottle.throttle(new FileOutputStream(outputFile));
+				long bytesWritten = 0;
+				int read;
+				while ((read = is.read(buffer)) != -1) {
+					os.write(buffer, 0, read);
+					bytesWritten += read;
 				}
 				os.close();
 				is.close();
+				IoMetrics.addBytesWritten(bytesWritten);
+				IoMetrics.addClass();
+				bytesExtracted += bytesWritten;
 			}
 		}
 
 		jar.close();
+		return bytesExtracted;
 	}
 
 	/**
 	 * Checks to see if all JARs in a given library have been extracted. If not,
 	 * extract them.
 	 * 
+	 * A JAR only counts as extracted if its checkpoint says so. Folders
+	 * without one are left over from an interrupted run and are extracted
+	 * again, except for folders with a valid diff that were created before
+	 * checkpoints were kept. Folders whose bytecode was evicted by the
+	 * {@link BytecodeCache} still count as extracted.
+	 * 
 	 * @throws IOException
 	 * 
 	 * 
@@ -72,10 +126,15 @@ public class JarExtractor {
 		System.out.format("Checking if bytecode for all JAR's at %s has been extracted...\n", libraryPath);
 
 		File[] libraryVersions = libraryPath.toFile().listFiles();
+		CheckpointJournal checkpoints = CheckpointJournal.forLibrary(libraryPath);
 
 		if (libraryVersions.length > 0) {
 			for (File libFile : libraryVersions) {
 				String nameOfLib = libFile.toString();
+				if (libFile.isDirectory() && nameOfLib.endsWith(PARTIAL_SUFFIX)) {
+					// Left behind by an extraction that never finished
+					SafeFiles.deleteRecursively(libFile.toPath());
+				}
 				if (nameOfLib.endsWith(".jar")) {
 					// Get the name of the folder where a JAR's extracted files
 					// would go
@@ -83,13 +142,26 @@ public class JarExtractor {
 
 					// Construct the file path for the extracted files folder.
 					Path extractionPath = Paths.get(folderName);
-
-					// Check if that folder exists
-					if (!extractionPath.toFile().exists()) {
-						// Extract the JAR and create this directory if it
-						// does not exist
-						JarExtractor.extractByteCode(libFile.toPath());
+					String version = extractionPath.getFileName().toString();
+
+					// Check if that folder exists and was completely extracted
+					if (extractionPath.toFile().exists()) {
+						if (checkpoints.has(version, CheckpointJournal.Stage.EXTRACTED)) {
+							continue;
+						}
+						if (!checkpoints.hasAny(version)
+								&& DiffComputer.isDiffValid(extractionPath.resolve("diff.txt").toFile())) {
+							checkpoints.record(version, CheckpointJournal.Stage.EXTRACTED, "");
+							continue;
+						}
+						System.out.format("Extraction of %s is incomplete. Extracting it again...\n", libFile.getName());
+						SafeFiles.deleteRecursively(extractionPath);
 					}
+
+					// Extract the JAR and create this directory if it
+					// does not exist
+					checkpoints.clear(version, CheckpointJournal.Stage.EXTRACTED);
+					JarExtractor.extractByteCode(libFile.toPath());
 				}
 			}
 		}
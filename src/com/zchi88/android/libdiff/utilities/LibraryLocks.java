@@ -0,0 +1,35 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks that keep the files of a library from being written by two threads
+ * at once. {@link LibraryQueue} already never hands the same library to two
+ * workers, so these locks only matter for code that brings a library up to
+ * date without going through the queue.
+ *
+ * Each library has a lock of its own, so a worker never waits for another
+ * library while holding one of the {@link ConcurrencyController}'s permits.
+ * A lock is created the first time its library is processed, and is kept for
+ * as long as the process runs, like the library's entry in the journal.
+ */
+public class LibraryLocks {
+	private static final ConcurrentHashMap<File, ReentrantLock> locks = new ConcurrentHashMap<File, ReentrantLock>();
+
+	/**
+	 * @param library
+	 *            - the library folder
+	 * @return The lock that must be held while writing to the library's files
+	 */
+	public static ReentrantLock forLibrary(File library) {
+		File key = library.toPath().toAbsolutePath().normalize().toFile();
+		ReentrantLock lock = locks.get(key);
+		if (lock == null) {
+			locks.putIfAbsent(key, new ReentrantLock());
+			lock = locks.get(key);
+		}
+		return lock;
+	}
+}
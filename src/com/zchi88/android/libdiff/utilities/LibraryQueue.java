@@ -0,0 +1,253 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The libraries waiting to be processed, shared between the startup scan and
+ * the library watcher.
+ *
+ * Libraries submitted by the watcher (live arrivals) are always processed
+ * before libraries submitted by the startup scan, so new JARs and AARs do not
+ * wait behind the backlog of the scan. A library is only ever queued once: if
+ * it is submitted again while it is still waiting, the two requests are merged
+ * and it keeps the higher priority.
+ *
+ * Live arrivals only become ready once no further changes to the library have
+ * been seen for a settle delay, which gives files time to finish copying and
+ * merges bursts of events for the same library into one.
+ *
+ * A library is also never processed by two workers at once. If it is
+ * submitted while it is being processed, it is queued as usual but only
+ * handed out once the run in flight is done, so any number of changes seen
+ * during a run result in exactly one follow-up run.
+ */
+public class LibraryQueue {
+	public enum Priority {
+		SCAN, LIVE
+	}
+
+	/**
+	 * A library waiting to be processed.
+	 */
+	public static class Task {
+		private final File library;
+		private Priority priority;
+		private long readyAt;
+		private boolean partOfScan;
+
+		private Task(File library) {
+			this.library = library;
+		}
+
+		public File getLibrary() {
+			return library;
+		}
+
+		public Priority getPriority() {
+			return priority;
+		}
+	}
+
+	private final long settleMillis;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final HashMap<File, Task> queued = new HashMap<File, Task>();
+	private final ArrayDeque<Task> scanTasks = new ArrayDeque<Task>();
+	private final ArrayList<Task> liveTasks = new ArrayList<Task>();
+	private final HashSet<File> inFlight = new HashSet<File>();
+	private int pendingScanTasks = 0;
+	private long mergedSubmissions = 0;
+	private long followUps = 0;
+
+	/**
+	 * @param settleMillis
+	 *            - how long a live arrival must go without further changes
+	 *            before it is processed
+	 */
+	public LibraryQueue(long settleMillis) {
+		this.settleMillis = settleMillis;
+	}
+
+	/**
+	 * Queues a library to be processed, unless it is already queued.
+	 *
+	 * @param library
+	 *            - the library folder
+	 * @param priority
+	 *            - LIVE for changes seen by the watcher, SCAN for the startup
+	 *            scan
+	 */
+	public void submit(File library, Priority priority) {
+		lock.lock();
+		try {
+			Task task = queued.get(library);
+			if (task != null) {
+				mergedSubmissions++;
+			} else {
+				task = new Task(library);
+				queued.put(library, task);
+				if (inFlight.contains(library)) {
+					followUps++;
+				}
+			}
+
+			if (priority == Priority.LIVE) {
+				if (task.priority != Priority.LIVE) {
+					// A scan task that is promoted stays in the scan queue, and
+					// is skipped there once it has been taken as a live task
+					task.priority = Priority.LIVE;
+					liveTasks.add(task);
+				}
+				task.readyAt = System.currentTimeMillis() + settleMillis;
+			} else if (task.priority == null) {
+				task.priority = Priority.SCAN;
+				task.partOfScan = true;
+				pendingScanTasks++;
+				scanTasks.add(task);
+			}
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for the next library to process. Ready live arrivals are returned
+	 * first, in the order they became ready, followed by the startup scan's
+	 * libraries in the order they were submitted. Libraries that are still
+	 * being processed are held back until they are done. {@link #done} must be
+	 * called once the library has been processed.
+	 *
+	 * @return The next library to process
+	 * @throws InterruptedException
+	 */
+	public Task take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (true) {
+				long now = System.currentTimeMillis();
+				Task next = null;
+				long nextReadyAt = Long.MAX_VALUE;
+				for (Task task : liveTasks) {
+					if (inFlight.contains(task.library)) {
+						// Woken up by done() instead
+						continue;
+					}
+					if (task.readyAt <= now && (next == null || task.readyAt < next.readyAt)) {
+						next = task;
+					}
+					nextReadyAt = Math.min(nextReadyAt, task.readyAt);
+				}
+				if (next != null) {
+					liveTasks.remove(next);
+					return start(next);
+				}
+
+				Iterator<Task> scanned = scanTasks.iterator();
+				while (scanned.hasNext()) {
+					Task task = scanned.next();
+					if (task.priority != Priority.SCAN) {
+						scanned.remove();
+					} else if (!inFlight.contains(task.library)) {
+						scanned.remove();
+						return start(task);
+					}
+				}
+
+				if (nextReadyAt == Long.MAX_VALUE) {
+					changed.await();
+				} else {
+					changed.await(nextReadyAt - now, TimeUnit.MILLISECONDS);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Task start(Task task) {
+		queued.remove(task.library);
+		inFlight.add(task.library);
+		return task;
+	}
+
+	/**
+	 * Signals that a library returned by {@link #take} has been processed,
+	 * allowing a follow-up run of it to be taken.
+	 */
+	public void done(Task task) {
+		lock.lock();
+		try {
+			inFlight.remove(task.library);
+			if (task.partOfScan) {
+				pendingScanTasks--;
+			}
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until every library submitted by the startup scan has been
+	 * processed.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void awaitScan() throws InterruptedException {
+		lock.lock();
+		try {
+			while (pendingScanTasks > 0) {
+				changed.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of libraries waiting to be processed
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return queued.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return How many submissions were merged into a library that was
+	 *         already queued
+	 */
+	public long getMergedSubmissions() {
+		lock.lock();
+		try {
+			return mergedSubmissions;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return How many times a library was queued again while it was being
+	 *         processed, each of which results in one follow-up run
+	 */
+	public long getFollowUps() {
+		lock.lock();
+		try {
+			return followUps;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Takes libraries from a {@link LibraryQueue} and brings them up to date:
+ * converts their AARs to JARs, extracts the bytecode of their JARs, and
+ * computes any missing diffs. Libraries that have not changed since they were
+ * last recorded in the whitelist's journal are skipped. A library is processed
+ * while holding its {@link LibraryLocks} lock.
+ */
+public class LibraryWorker implements Runnable {
+	private static final AtomicInteger skippedLibraries = new AtomicInteger();
+
+	private final LibraryQueue queue;
+	private final ConcurrencyController controller;
+	private final WhitelistJournal journal;
+
+	private LibraryWorker(LibraryQueue queue, ConcurrencyController controller, WhitelistJournal journal) {
+		this.queue = queue;
+		this.controller = controller;
+		this.journal = journal;
+	}
+
+	/**
+	 * Starts one daemon worker thread for each library the controller may
+	 * ever allow to be processed at once, along with the controller itself.
+	 */
+	public static void startWorkers(LibraryQueue queue, ConcurrencyController controller, WhitelistJournal journal) {
+		for (int i = 0; i < controller.getMaxLimit(); i++) {
+			Thread thread = new Thread(new LibraryWorker(queue, controller, journal), "libdiff-worker-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		controller.start();
+	}
+
+	/**
+	 * @return The number of libraries skipped because they had not changed
+	 */
+	public static int getSkippedLibraries() {
+		return skippedLibraries.get();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			LibraryQueue.Task task;
+			try {
+				controller.acquire();
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				task = queue.take();
+			} catch (InterruptedException e) {
+				controller.release();
+				return;
+			}
+
+			try {
+				process(task.getLibrary());
+			} finally {
+				controller.release();
+				queue.done(task);
+			}
+		}
+	}
+
+	private void process(File library) {
+		long startTime = System.nanoTime();
+		try {
+			if (library.isDirectory() && !WhitelistState.isStateFolder(library)) {
+				if (journal.isUnchanged(library)) {
+					skippedLibraries.incrementAndGet();
+				} else {
+					Path pathToLibrary = library.toPath();
+					ReentrantLock libraryLock = LibraryLocks.forLibrary(library);
+					libraryLock.lock();
+					try {
+						BytecodeCache.retain(library);
+						try {
+							AarToJar.convertAarToJar(pathToLibrary);
+							JarExtractor.extractAllJars(pathToLibrary);
+							DiffComputer.syncDiffs(pathToLibrary);
+							journal.record(library);
+						} finally {
+							BytecodeCache.release(library);
+						}
+					} finally {
+						libraryLock.unlock();
+					}
+					IoMetrics.addLibrary(System.nanoTime() - startTime);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("IOException reading " + library.toString() + ": " + e.getMessage());
+		} catch (RuntimeException e) {
+			System.out.println("Error processing " + library.toString() + ": " + e);
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Populates a whitelist from a local Maven repository, such as a mirror of
+ * ~/.m2/repository, instead of copying JARs and AARs into it by hand.
+ *
+ * Every artifact of the repository becomes a library named
+ * "groupId_artifactId", and the main JAR or AAR of each of its versions is
+ * hard linked into the library folder under its Maven file name, or copied if
+ * the whitelist is on another file system. The order of the versions is taken
+ * from the artifact's maven-metadata files and written to the library's
+ * version order file, since the timestamps inside JARs are often unreliable.
+ *
+ * The repository is walked once, and artifacts are linked by a pool of
+ * threads while the walk goes on.
+ */
+public class MavenIngester {
+	private static final Pattern VERSION_PATTERN = Pattern.compile("<version>\\s*([^<\\s]+)\\s*</version>");
+	private static final Pattern VERSIONS_PATTERN = Pattern.compile("<versions>(.*?)</versions>", Pattern.DOTALL);
+
+	/**
+	 * Orders versions such as "1.10.0" after "1.9.2", by comparing their
+	 * numeric parts as numbers. Used for versions that are missing from the
+	 * Maven metadata.
+	 */
+	private static final Comparator<String> VERSION_ORDER = new Comparator<String>() {
+		@Override
+		public int compare(String a, String b) {
+			String[] partsOfA = a.split("[.\\-_]");
+			String[] partsOfB = b.split("[.\\-_]");
+			for (int i = 0; i < Math.min(partsOfA.length, partsOfB.length); i++) {
+				int compared;
+				if (partsOfA[i].matches("\\d{1,18}") && partsOfB[i].matches("\\d{1,18}")) {
+					compared = Long.compare(Long.parseLong(partsOfA[i]), Long.parseLong(partsOfB[i]));
+				} else {
+					compared = partsOfA[i].compareTo(partsOfB[i]);
+				}
+				if (compared != 0) {
+					return compared;
+				}
+			}
+			return Integer.compare(partsOfA.length, partsOfB.length);
+		}
+	};
+
+	private final Path repository;
+	private final Path whitelist;
+	private final ExecutorService pool;
+	private final AtomicBoolean linksSupported = new AtomicBoolean(true);
+	private final AtomicInteger linked = new AtomicInteger();
+	private final AtomicInteger copied = new AtomicInteger();
+	private final AtomicInteger present = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final ArrayList<File> libraries = new ArrayList<File>();
+
+	private MavenIngester(Path repository, Path whitelist, int numThreads) {
+		this.repository = repository;
+		this.whitelist = whitelist;
+		this.pool = Executors.newFixedThreadPool(numThreads);
+	}
+
+	/**
+	 * Links or copies the artifacts of a Maven repository into a whitelist.
+	 * Artifacts that are already in the whitelist are left alone.
+	 *
+	 * @param repository
+	 *            - the root of the Maven repository
+	 * @param whitelist
+	 *            - the path to the whitelist
+	 * @param numThreads
+	 *            - how many artifacts to link or copy at once
+	 * @return The library folders that artifacts were found for
+	 * @throws IOException
+	 */
+	public static ArrayList<File> ingest(Path repository, Path whitelist, int numThreads) throws IOException {
+		System.out.format("Ingesting the Maven repository at %s into %s...\n", repository, whitelist);
+		final MavenIngester ingester = new MavenIngester(repository, whitelist, numThreads);
+		try {
+			Files.walkFileTree(repository, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+					return ingester.visitDirectory(dir);
+				}
+			});
+		} finally {
+			ingester.pool.shutdown();
+		}
+		try {
+			ingester.pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		System.out.format("Ingested %d libraries: %d artifacts linked, %d copied, %d already present, %d failed.\n",
+				ingester.libraries.size(), ingester.linked.get(), ingester.copied.get(), ingester.present.get(),
+				ingester.failed.get());
+		return ingester.libraries;
+	}
+
+	/**
+	 * Ingests the directory if it is an artifact, i.e. if any of its
+	 * sub-directories is a version holding the artifact's JAR or AAR. The walk
+	 * goes on into artifacts, since an artifact folder can also hold the
+	 * artifacts of a longer groupId, e.g. "org/foo/bar/baz" next to the
+	 * versions of "org.foo:bar".
+	 */
+	private FileVisitResult visitDirectory(Path dir) throws IOException {
+		if (dir.equals(repository) || dir.getParent().equals(repository)) {
+			return FileVisitResult.CONTINUE;
+		}
+		String artifactId = dir.getFileName().toString();
+		File[] children = dir.toFile().listFiles();
+		if (children == null) {
+			return FileVisitResult.CONTINUE;
+		}
+
+		ArrayList<File> archives = new ArrayList<File>();
+		ArrayList<String> versions = new ArrayList<String>();
+		for (File child : children) {
+			if (!child.isDirectory()) {
+				continue;
+			}
+			String version = child.getName();
+			File archive = new File(child, artifactId + "-" + version + ".jar");
+			if (!archive.isFile()) {
+				archive = new File(child, artifactId + "-" + version + ".aar");
+			}
+			if (archive.isFile()) {
+				archives.add(archive);
+				versions.add(version);
+			}
+		}
+		if (archives.isEmpty()) {
+			return FileVisitResult.CONTINUE;
+		}
+
+		String groupId = repository.relativize(dir.getParent()).toString().replace(File.separatorChar, '.');
+		File library = whitelist.resolve(groupId + "_" + artifactId).toFile();
+		Files.createDirectories(library.toPath());
+		writeOrderFile(library, artifactId, orderVersions(dir, versions));
+		libraries.add(library);
+
+		for (final File archive : archives) {
+			final File target = new File(library, archive.getName());
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					place(archive, target);
+				}
+			});
+		}
+		return FileVisitResult.CONTINUE;
+	}
+
+	/**
+	 * Orders the versions of an artifact from the oldest to the most recent,
+	 * as listed by its Maven metadata. Versions the metadata does not list
+	 * come last.
+	 */
+	private static ArrayList<String> orderVersions(Path artifactFolder, ArrayList<String> versions)
+			throws IOException {
+		// Local repositories keep one metadata file per remote repository,
+		// so use the one that lists the most versions
+		ArrayList<String> listed = new ArrayList<String>();
+		File[] files = artifactFolder.toFile().listFiles();
+		for (File file : files) {
+			if (file.getName().startsWith("maven-metadata") && file.getName().endsWith(".xml")) {
+				ArrayList<String> fromFile = readMetadata(file);
+				if (fromFile.size() > listed.size()) {
+					listed = fromFile;
+				}
+			}
+		}
+
+		LinkedHashSet<String> ordered = new LinkedHashSet<String>();
+		for (String version : listed) {
+			if (versions.contains(version)) {
+				ordered.add(version);
+			}
+		}
+		ArrayList<String> unlisted = new ArrayList<String>();
+		for (String version : versions) {
+			if (!ordered.contains(version)) {
+				unlisted.add(version);
+			}
+		}
+		Collections.sort(unlisted, VERSION_ORDER);
+		ordered.addAll(unlisted);
+		return new ArrayList<String>(ordered);
+	}
+
+	/**
+	 * @return The versions listed by a maven-metadata file, in order
+	 */
+	private static ArrayList<String> readMetadata(File metadataFile) throws IOException {
+		ArrayList<String> versions = new ArrayList<String>();
+		String metadata = new String(Files.readAllBytes(metadataFile.toPath()), StandardCharsets.UTF_8);
+		Matcher versionsBlock = VERSIONS_PATTERN.matcher(metadata);
+		if (versionsBlock.find()) {
+			Matcher version = VERSION_PATTERN.matcher(versionsBlock.group(1));
+			while (version.find()) {
+				versions.add(version.group(1));
+			}
+		}
+		return versions;
+	}
+
+	/**
+	 * Writes the version order file of a library, listing the JAR each
+	 * version has or will have once its AAR is converted.
+	 */
+	private static void writeOrderFile(File library, String artifactId, ArrayList<String> versions)
+			throws IOException {
+		File orderFile = new File(library, JarComparator.ORDER_FILE_NAME);
+		StringBuilder order = new StringBuilder();
+		for (String version : versions) {
+			order.append(artifactId).append('-').append(version).append(".jar\n");
+		}
+		if (orderFile.exists() && order.toString().equals(
+				new String(Files.readAllBytes(orderFile.toPath()), StandardCharsets.UTF_8))) {
+			return;
+		}
+		File partialOrder = File.createTempFile("order", ".tmp", library);
+		try {
+			try (BufferedWriter writer = ExternalSorter.openWriter(partialOrder)) {
+				writer.write(order.toString());
+			}
+			SafeFiles.move(partialOrder.toPath(), orderFile.toPath());
+		} finally {
+			partialOrder.delete();
+		}
+	}
+
+	/**
+	 * Hard links an archive into its library, or copies it if it cannot be
+	 * linked. A copy is written under a temporary name first, so the watcher
+	 * never sees a partly copied archive.
+	 */
+	private void place(File archive, File target) {
+		File convertedJar = new File(target.toString().replace(".aar", ".jar"));
+		if (target.exists() || convertedJar.exists()) {
+			present.incrementAndGet();
+			return;
+		}
+		try {
+			if (linksSupported.get()) {
+				try {
+					Files.createLink(target.toPath(), archive.toPath());
+					linked.incrementAndGet();
+					return;
+				} catch (UnsupportedOperationException | FileSystemException e) {
+					if (target.exists()) {
+						present.incrementAndGet();
+						return;
+					}
+					// Most likely on another file system, so stop trying
+					linksSupported.set(false);
+				}
+			}
+			Path partialCopy = new File(target + ".part").toPath();
+			Files.copy(archive.toPath(), partialCopy, StandardCopyOption.REPLACE_EXISTING);
+			SafeFiles.move(partialCopy, target.toPath());
+			copied.incrementAndGet();
+		} catch (IOException e) {
+			failed.incrementAndGet();
+			System.out.println("IOException ingesting " + archive + ": " + e.getMessage());
+		}
+	}
+}
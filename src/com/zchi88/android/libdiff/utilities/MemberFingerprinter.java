@@ -0,0 +1,564 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Computes fingerprints of the individual fields and methods of a class, so
+ * that a modified class can be broken down into the members that changed.
+ *
+ * Fingerprints ignore debug information (line numbers, local variable names
+ * and the source file name), and describe constants by value rather than by
+ * their index in the constant pool, since adding or removing debug
+ * information can shift the indexes of unrelated constants. A class whose
+ * fingerprints are all unchanged was only recompiled with different debug
+ * information, and is treated as copied rather than modified when member
+ * fingerprinting is enabled.
+ *
+ * Only the classes whose hash changed between two versions are ever parsed.
+ * Fingerprints are cached by the MD5 hash of the class in the whitelist's
+ * state folder, at ".libdiff/members/xx/hash.txt", so a class is parsed at
+ * most once no matter how many versions or libraries contain it.
+ *
+ * When member fingerprinting is enabled, each diff is followed by a
+ * "members.txt" file listing the members that were added, removed or
+ * modified in each modified class, one "path[TAB]change[TAB]member" line per
+ * member.
+ */
+public class MemberFingerprinter {
+	public static final String MEMBER_REPORT_FILE_NAME = "members.txt";
+	public static final String CACHE_FOLDER_NAME = "members";
+
+	/**
+	 * The fingerprint key of everything about a class that is not one of its
+	 * members, e.g. its super class and interfaces.
+	 */
+	public static final String CLASS_KEY = "class";
+
+	/**
+	 * The attributes that only hold debug information.
+	 */
+	public static final Set<String> DEBUG_ATTRIBUTES = new HashSet<String>(Arrays.asList("LineNumberTable",
+			"LocalVariableTable", "LocalVariableTypeTable", "SourceFile", "SourceDebugExtension"));
+
+	private static final String UNPARSED = "!unparsed";
+
+	private static volatile boolean enabled = false;
+
+	/**
+	 * Turns member fingerprinting on or off. When it is on, modified classes
+	 * that only differ in debug information are reported as copied, and a
+	 * member report is written along with each diff.
+	 */
+	public static void setEnabled(boolean isEnabled) {
+		enabled = isEnabled;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Computes the fingerprints of a class.
+	 *
+	 * @param classBytes
+	 *            - the contents of the class file
+	 * @return A map from each member ("field name descriptor" or "method name
+	 *         descriptor"), and from {@link #CLASS_KEY}, to its fingerprint
+	 * @throws IOException
+	 *             if the bytes are not a valid class file
+	 */
+	public static Map<String, String> fingerprint(byte[] classBytes) throws IOException {
+		ClassFileReader.ClassFile classFile = ClassFileReader.read(classBytes);
+		TreeMap<String, String> fingerprints = new TreeMap<String, String>();
+
+		Canonical header = new Canonical(classFile);
+		header.out.writeShort(classFile.getAccessFlags());
+		header.writeString(classFile.getSuperName());
+		for (String name : classFile.getInterfaces()) {
+			header.writeString(name);
+		}
+		header.writeAttributes(classFile.getAttributes());
+		fingerprints.put(CLASS_KEY, header.digest());
+
+		for (ClassFileReader.Member field : classFile.getFields()) {
+			fingerprints.put("field " + field.getName() + " " + field.getDescriptor(), fingerprintOf(classFile, field));
+		}
+		for (ClassFileReader.Member method : classFile.getMethods()) {
+			fingerprints.put("method " + method.getName() + " " + method.getDescriptor(),
+					fingerprintOf(classFile, method));
+		}
+		return fingerprints;
+	}
+
+	private static String fingerprintOf(ClassFileReader.ClassFile classFile, ClassFileReader.Member member)
+			throws IOException {
+		Canonical canonical = new Canonical(classFile);
+		canonical.out.writeShort(member.getAccessFlags());
+		canonical.writeAttributes(member.getAttributes());
+		return canonical.digest();
+	}
+
+	/**
+	 * Returns the fingerprints of a class file, computing and caching them
+	 * first if they are not cached yet.
+	 *
+	 * @param versionFolder
+	 *            - the folder of the library version the class is in
+	 * @param entry
+	 *            - the manifest entry of the class
+	 * @return The fingerprints of the class, or null if it is not a valid
+	 *         class file
+	 * @throws IOException
+	 */
+	public static Map<String, String> getFingerprints(File versionFolder, FileManifest.Entry entry)
+			throws IOException {
+		String digest = entry.getDigest();
+		Path whitelist = versionFolder.toPath().toAbsolutePath().getParent().getParent();
+		Path cacheFolder = WhitelistState.getStateFolder(whitelist).resolve(CACHE_FOLDER_NAME)
+				.resolve(digest.length() > 2 ? digest.substring(0, 2) : "00");
+		File cacheFile = cacheFolder.resolve(digest + ".txt").toFile();
+
+		TreeMap<String, String> fingerprints = new TreeMap<String, String>();
+		if (cacheFile.exists()) {
+			try (BufferedReader reader = ExternalSorter.openReader(cacheFile)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.equals(UNPARSED)) {
+						return null;
+					}
+					int separator = line.lastIndexOf('\t');
+					if (separator > 0) {
+						fingerprints.put(line.substring(0, separator), line.substring(separator + 1));
+					}
+				}
+			}
+			return fingerprints;
+		}
+
+		BytecodeCache.ensureExtracted(versionFolder);
+		byte[] bytes;
+		try {
+			IoThrottle.acquireOpen();
+			bytes = Files.readAllBytes(new File(versionFolder, entry.getPath()).toPath());
+		} finally {
+			BytecodeCache.releaseExtracted(versionFolder);
+		}
+		IoMetrics.addBytesRead(bytes.length);
+		IoThrottle.acquireRead(bytes.length);
+		Map<String, String> computed;
+		try {
+			computed = fingerprint(bytes);
+		} catch (IOException | RuntimeException e) {
+			// Not a class file we understand
+			computed = null;
+		}
+
+		Files.createDirectories(cacheFolder);
+		File partialCacheFile = File.createTempFile(digest, ".tmp", cacheFolder.toFile());
+		try {
+			try (BufferedWriter writer = ExternalSorter.openWriter(partialCacheFile)) {
+				if (computed == null) {
+					writer.write(UNPARSED);
+					writer.newLine();
+				} else {
+					for (Map.Entry<String, String> fingerprint : computed.entrySet()) {
+						writer.write(fingerprint.getKey() + "\t" + fingerprint.getValue());
+						writer.newLine();
+					}
+				}
+			}
+			SafeFiles.move(partialCacheFile.toPath(), cacheFile.toPath());
+		} finally {
+			partialCacheFile.delete();
+		}
+		return computed;
+	}
+
+	/**
+	 * Checks whether a class whose hash changed between two versions only
+	 * differs in its debug information.
+	 *
+	 * @param previousVersion
+	 *            - the folder of the previous version
+	 * @param previousEntry
+	 *            - the manifest entry of the class in the previous version
+	 * @param currentVersion
+	 *            - the folder of the current version
+	 * @param currentEntry
+	 *            - the manifest entry of the class in the current version
+	 * @return True if every fingerprint of the class is unchanged
+	 * @throws IOException
+	 */
+	public static boolean isDebugOnlyChange(File previousVersion, FileManifest.Entry previousEntry,
+			File currentVersion, FileManifest.Entry currentEntry) throws IOException {
+		if (!currentEntry.getPath().endsWith(".class")) {
+			return false;
+		}
+		Map<String, String> previous = getFingerprints(previousVersion, previousEntry);
+		if (previous == null) {
+			return false;
+		}
+		return previous.equals(getFingerprints(currentVersion, currentEntry));
+	}
+
+	/**
+	 * Writes the member report of a version, listing the members that
+	 * changed in each of its modified classes. Files that are not class files
+	 * are listed as "unparsed".
+	 *
+	 * @param previousVersion
+	 *            - the folder of the previous version, or null if this is the
+	 *            oldest version
+	 * @param currentVersion
+	 *            - the folder of the version to write the report for
+	 * @return The member report
+	 * @throws IOException
+	 */
+	public static File writeMemberReport(File previousVersion, File currentVersion) throws IOException {
+		File reportFile = new File(currentVersion, MEMBER_REPORT_FILE_NAME);
+		File previousManifest = previousVersion == null ? null : FileManifest.getManifest(previousVersion.toPath());
+		File currentManifest = FileManifest.getManifest(currentVersion.toPath());
+
+		File partialReport = File.createTempFile("members", ".tmp", currentVersion);
+		try {
+			try (FileManifest.Reader previous = new FileManifest.Reader(previousManifest);
+					FileManifest.Reader current = new FileManifest.Reader(currentManifest);
+					BufferedWriter writer = ExternalSorter.openWriter(partialReport)) {
+				FileManifest.Entry previousEntry = previous.next();
+				FileManifest.Entry currentEntry = current.next();
+				while (previousEntry != null && currentEntry != null) {
+					int order = previousEntry.getPath().compareTo(currentEntry.getPath());
+					if (order < 0) {
+						previousEntry = previous.next();
+					} else if (order > 0) {
+						currentEntry = current.next();
+					} else {
+						if (!previousEntry.getDigest().equals(currentEntry.getDigest())) {
+							writeChanges(writer, currentEntry.getPath(),
+									getFingerprints(previousVersion, previousEntry),
+									getFingerprints(currentVersion, currentEntry));
+						}
+						previousEntry = previous.next();
+						currentEntry = current.next();
+					}
+				}
+			}
+			SafeFiles.move(partialReport.toPath(), reportFile.toPath());
+		} finally {
+			partialReport.delete();
+		}
+		return reportFile;
+	}
+
+	private static void writeChanges(BufferedWriter writer, String path, Map<String, String> previous,
+			Map<String, String> current) throws IOException {
+		if (previous == null || current == null) {
+			writer.write(path + "\tunparsed");
+			writer.newLine();
+			return;
+		}
+
+		TreeSet<String> members = new TreeSet<String>(previous.keySet());
+		members.addAll(current.keySet());
+		for (String member : members) {
+			String previousFingerprint = previous.get(member);
+			String currentFingerprint = current.get(member);
+			String change;
+			if (previousFingerprint == null) {
+				change = "added";
+			} else if (currentFingerprint == null) {
+				change = "removed";
+			} else if (!previousFingerprint.equals(currentFingerprint)) {
+				change = "modified";
+			} else {
+				continue;
+			}
+			writer.write(path + "\t" + change + "\t" + member);
+			writer.newLine();
+		}
+	}
+
+	/**
+	 * Writes the parts of a class that matter to its behaviour in a form that
+	 * does not depend on the layout of its constant pool, and hashes them.
+	 */
+	private static class Canonical {
+		private final ClassFileReader.ClassFile classFile;
+		private final ByteArrayOutputStream bytes;
+		private final DataOutputStream out;
+
+		private Canonical(ClassFileReader.ClassFile classFile) {
+			this.classFile = classFile;
+			this.bytes = new ByteArrayOutputStream();
+			this.out = new DataOutputStream(bytes);
+		}
+
+		/**
+		 * Writes to another stream, which is never hashed directly.
+		 */
+		private Canonical(ClassFileReader.ClassFile classFile, DataOutputStream out) {
+			this.classFile = classFile;
+			this.bytes = null;
+			this.out = out;
+		}
+
+		private String digest() throws IOException {
+			out.flush();
+			try {
+				return FileMapper
+						.convertByteArrayToHexString(MessageDigest.getInstance("MD5").digest(bytes.toByteArray()));
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private void writeString(String value) throws IOException {
+			if (value == null) {
+				out.writeInt(-1);
+				return;
+			}
+			byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(encoded.length);
+			out.write(encoded);
+		}
+
+		private void writeConstant(int index) throws IOException {
+			writeString(classFile.getConstant(index));
+		}
+
+		private void writeAttributes(Iterable<ClassFileReader.Attribute> attributes) throws IOException {
+			for (ClassFileReader.Attribute attribute : attributes) {
+				if (!DEBUG_ATTRIBUTES.contains(attribute.getName())) {
+					writeString(attribute.getName());
+					writeAttribute(attribute);
+				}
+			}
+		}
+
+		private void writeAttribute(ClassFileReader.Attribute attribute) throws IOException {
+			if (attribute.getName().equals("Code")) {
+				writeCode(ClassFileReader.readCode(classFile, attribute));
+				return;
+			}
+
+			// Attributes that are not understood, or that turn out to be
+			// malformed, are compared byte for byte
+			ByteArrayOutputStream canonical = new ByteArrayOutputStream();
+			DataOutputStream attributeOut = new DataOutputStream(canonical);
+			try {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(attribute.getInfo()));
+				if (!writeKnownAttribute(attribute.getName(), in, new Canonical(classFile, attributeOut))) {
+					canonical.reset();
+					attributeOut.write(attribute.getInfo());
+				}
+			} catch (IOException | RuntimeException e) {
+				canonical.reset();
+				attributeOut.write(attribute.getInfo());
+			}
+			attributeOut.flush();
+			out.writeInt(canonical.size());
+			canonical.writeTo(out);
+		}
+
+		private void writeCode(ClassFileReader.Code code) throws IOException {
+			out.writeShort(code.getMaxStack());
+			out.writeShort(code.getMaxLocals());
+			final byte[] bytecode = code.getBytecode();
+			ClassFileReader.forEachInstruction(bytecode, new ClassFileReader.InstructionVisitor() {
+				@Override
+				public void visit(int opcode, int offset, int length, int constantIndex) throws IOException {
+					if (constantIndex < 0) {
+						out.write(bytecode, offset, length);
+						return;
+					}
+					// Replace the constant's index with its value
+					int indexSize = opcode == 0x12 ? 1 : 2;
+					out.writeByte(opcode);
+					writeConstant(constantIndex);
+					out.write(bytecode, offset + 1 + indexSize, length - 1 - indexSize);
+				}
+			});
+
+			DataInputStream exceptions = new DataInputStream(new ByteArrayInputStream(code.getExceptionTable()));
+			for (int i = 0; i < code.getExceptionTable().length / 8; i++) {
+				out.writeShort(exceptions.readUnsignedShort()); // start
+				out.writeShort(exceptions.readUnsignedShort()); // end
+				out.writeShort(exceptions.readUnsignedShort()); // handler
+				writeConstant(exceptions.readUnsignedShort()); // catch type
+			}
+			writeAttributes(code.getAttributes());
+		}
+
+		/**
+		 * Writes an attribute whose format is known, with its constant pool
+		 * indexes replaced by their values.
+		 *
+		 * @return False if the format of the attribute is not known
+		 */
+		private static boolean writeKnownAttribute(String name, DataInputStream in, Canonical canonical)
+				throws IOException {
+			switch (name) {
+			case "ConstantValue":
+			case "Signature":
+			case "NestHost":
+				canonical.writeConstant(in.readUnsignedShort());
+				return true;
+			case "Exceptions":
+			case "NestMembers":
+			case "PermittedSubclasses":
+				canonical.writeConstants(in, in.readUnsignedShort());
+				return true;
+			case "EnclosingMethod":
+				canonical.writeConstants(in, 2);
+				return true;
+			case "InnerClasses":
+				for (int count = in.readUnsignedShort(); count > 0; count--) {
+					canonical.writeConstants(in, 3);
+					canonical.out.writeShort(in.readUnsignedShort());
+				}
+				return true;
+			case "BootstrapMethods":
+				for (int count = in.readUnsignedShort(); count > 0; count--) {
+					canonical.writeConstant(in.readUnsignedShort());
+					canonical.writeConstants(in, in.readUnsignedShort());
+				}
+				return true;
+			case "MethodParameters":
+				for (int count = in.readUnsignedByte(); count > 0; count--) {
+					canonical.writeConstant(in.readUnsignedShort());
+					canonical.out.writeShort(in.readUnsignedShort());
+				}
+				return true;
+			case "RuntimeVisibleAnnotations":
+			case "RuntimeInvisibleAnnotations":
+				canonical.writeAnnotations(in);
+				return true;
+			case "RuntimeVisibleParameterAnnotations":
+			case "RuntimeInvisibleParameterAnnotations":
+				for (int count = in.readUnsignedByte(); count > 0; count--) {
+					canonical.writeAnnotations(in);
+				}
+				return true;
+			case "AnnotationDefault":
+				canonical.writeElementValue(in);
+				return true;
+			case "StackMapTable":
+				canonical.writeStackMapTable(in);
+				return true;
+			default:
+				return false;
+			}
+		}
+
+		private void writeConstants(DataInputStream in, int count) throws IOException {
+			out.writeShort(count);
+			for (int i = 0; i < count; i++) {
+				writeConstant(in.readUnsignedShort());
+			}
+		}
+
+		private void writeAnnotations(DataInputStream in) throws IOException {
+			int count = in.readUnsignedShort();
+			out.writeShort(count);
+			for (int i = 0; i < count; i++) {
+				writeAnnotation(in);
+			}
+		}
+
+		private void writeAnnotation(DataInputStream in) throws IOException {
+			writeConstant(in.readUnsignedShort()); // type
+			int pairs = in.readUnsignedShort();
+			out.writeShort(pairs);
+			for (int i = 0; i < pairs; i++) {
+				writeConstant(in.readUnsignedShort()); // element name
+				writeElementValue(in);
+			}
+		}
+
+		private void writeElementValue(DataInputStream in) throws IOException {
+			int tag = in.readUnsignedByte();
+			out.writeByte(tag);
+			switch (tag) {
+			case 'e':
+				writeConstants(in, 2);
+				break;
+			case '@':
+				writeAnnotation(in);
+				break;
+			case '[':
+				int count = in.readUnsignedShort();
+				out.writeShort(count);
+				for (int i = 0; i < count; i++) {
+					writeElementValue(in);
+				}
+				break;
+			default:
+				// Constants, strings and classes
+				writeConstant(in.readUnsignedShort());
+				break;
+			}
+		}
+
+		private void writeStackMapTable(DataInputStream in) throws IOException {
+			int frames = in.readUnsignedShort();
+			out.writeShort(frames);
+			for (int i = 0; i < frames; i++) {
+				int type = in.readUnsignedByte();
+				out.writeByte(type);
+				if (type < 64) {
+					// same_frame
+				} else if (type < 128) {
+					writeVerificationTypes(in, 1);
+				} else if (type == 247) {
+					out.writeShort(in.readUnsignedShort());
+					writeVerificationTypes(in, 1);
+				} else if (type >= 248 && type <= 251) {
+					out.writeShort(in.readUnsignedShort());
+				} else if (type >= 252 && type <= 254) {
+					out.writeShort(in.readUnsignedShort());
+					writeVerificationTypes(in, type - 251);
+				} else if (type == 255) {
+					out.writeShort(in.readUnsignedShort());
+					int locals = in.readUnsignedShort();
+					out.writeShort(locals);
+					writeVerificationTypes(in, locals);
+					int stack = in.readUnsignedShort();
+					out.writeShort(stack);
+					writeVerificationTypes(in, stack);
+				} else {
+					throw new IOException("Unknown stack map frame type " + type + ".");
+				}
+			}
+		}
+
+		private void writeVerificationTypes(DataInputStream in, int count) throws IOException {
+			for (int i = 0; i < count; i++) {
+				int tag = in.readUnsignedByte();
+				out.writeByte(tag);
+				if (tag == 7) {
+					writeConstant(in.readUnsignedShort()); // Object
+				} else if (tag == 8) {
+					out.writeShort(in.readUnsignedShort()); // Uninitialized
+				}
+			}
+		}
+	}
+}
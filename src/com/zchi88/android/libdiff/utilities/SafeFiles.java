@@ -0,0 +1,65 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * File operations that leave the whitelist in a consistent state even if the
+ * tool is killed part way through.
+ */
+public class SafeFiles {
+	/**
+	 * Moves a fully written temporary file or folder into place, replacing
+	 * any existing file. The move is atomic where the file system supports
+	 * it, so the target is never observed half-written.
+	 *
+	 * @param source
+	 *            - the temporary file or folder
+	 * @param target
+	 *            - where it should end up
+	 * @throws IOException
+	 */
+	public static void move(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Deletes a file, or a folder along with everything in it. Does nothing if
+	 * the path does not exist.
+	 *
+	 * @param path
+	 *            - the file or folder to delete
+	 * @throws IOException
+	 */
+	public static void deleteRecursively(Path path) throws IOException {
+		if (!Files.exists(path)) {
+			return;
+		}
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				if (e != null) {
+					throw e;
+				}
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
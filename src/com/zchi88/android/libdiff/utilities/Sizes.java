@@ -0,0 +1,36 @@
+package com.zchi88.android.libdiff.utilities;
+
+/**
+ * Parses sizes given on the command line or to the lookup server, such as the
+ * bytecode cache's budget and the I/O limits.
+ */
+public class Sizes {
+	/**
+	 * Parses a size such as "500", "500M" or "20G". Units are powers of 1024.
+	 *
+	 * @return The size in bytes
+	 * @throws NumberFormatException
+	 *             if the size is not valid
+	 */
+	public static long parse(String size) {
+		String number = size.trim().toUpperCase();
+		long unit = 1;
+		if (number.endsWith("K")) {
+			unit = 1L << 10;
+		} else if (number.endsWith("M")) {
+			unit = 1L << 20;
+		} else if (number.endsWith("G")) {
+			unit = 1L << 30;
+		} else if (number.endsWith("T")) {
+			unit = 1L << 40;
+		}
+		if (unit > 1) {
+			number = number.substring(0, number.length() - 1);
+		}
+		double value = Double.parseDouble(number);
+		if (value < 0 || Double.isNaN(value) || Double.isInfinite(value)) {
+			throw new NumberFormatException("Invalid size: " + size);
+		}
+		return (long) (value * unit);
+	}
+}
@@ -1,56 +1,44 @@
 package com.zchi88.android.libdiff.utilities;
 
 import java.io.File;
-import java.io.IOException;
-import java.nio.file.Path;
-import java.util.Arrays;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
-
-public class StartupScanner implements Runnable {
-
-	// Synchronized libraries pool shared among all scanner instances
-	private ConcurrentLinkedQueue<File> whiteListedLibrariesQueue = null;
-	private ExecutorService threadPool = null;
+public class StartupScanner {
 
 	/**
 	 * Scans the whitelist of libraries to see if there are any diffs that need
 	 * to re-computed. This makes sure that the libraries and their diffs are
 	 * always in sync even if the tool crashes and must be restarted.
 	 * 
-	 * @throws IOException
+	 * Every library is submitted to the queue with scan priority, and this
+	 * method waits until the workers have processed all of them. Changes seen
+	 * by the library watcher in the meantime are processed first.
 	 */
-	public static void scan(File[] whitelistedLibraries, int numThreads) throws IOException {
+	public static void scan(File[] whitelistedLibraries, LibraryQueue queue) {
 		System.out.println();
 		System.out.println("==================================================");
 		System.out.println("Scanning for new libraries since last run...");
 
-		// Create a synchronized queue
-		ConcurrentLinkedQueue<File> whiteListedLibrariesQueue = new ConcurrentLinkedQueue<File>(Arrays.asList(whitelistedLibraries));
-
-		// Start a threadpool service to increase processing power
-		ExecutorService libDiffThreads = Executors.newFixedThreadPool(numThreads);
-
 		if (whitelistedLibraries.length > 0) {
-
-			for (int i = 0; i < numThreads; i++) {
-				StartupScanner scanner = new StartupScanner();
-				scanner.whiteListedLibrariesQueue = whiteListedLibrariesQueue;
-				scanner.threadPool = libDiffThreads;
-				libDiffThreads.execute(scanner);
+			int skippedBefore = LibraryWorker.getSkippedLibraries();
+			for (File library : whitelistedLibraries) {
+				if (library.isDirectory() && !WhitelistState.isStateFolder(library)) {
+					queue.submit(library, LibraryQueue.Priority.SCAN);
+				}
 			}
 
-			// Wait for all threads to finish executing before displaying completion
-			// message
+			// Wait for all libraries to be processed before displaying
+			// completion message
 			try {
-				libDiffThreads.awaitTermination(Integer.MAX_VALUE, TimeUnit.SECONDS);
+				queue.awaitScan();
 			} catch (InterruptedException e) {
 				System.out.println("Libdiff threads execution interrupted.");
 			}
 
+			int skippedLibraries = LibraryWorker.getSkippedLibraries() - skippedBefore;
+			if (skippedLibraries > 0) {
+				System.out.format("Skipped %d libraries that did not change since the last run.\n",
+						skippedLibraries);
+			}
 			System.out.println("Startup scan complete.");
 		} else {
 			System.out.println("There were no libraries found at this directory.");
@@ -58,32 +46,4 @@ public class StartupScanner implements Runnable {
 		System.out.println("==================================================\n");
 	}
 
-
-	@Override
-	public void run() {
-
-		File library = this.whiteListedLibrariesQueue.poll();
-
-		while (library != null) {
-
-			try {
-				if (library != null && library.isDirectory()) {
-					Path pathToLibrary = library.toPath();
-					AarToJar.convertAarToJar(pathToLibrary);
-					JarExtractor.extractAllJars(pathToLibrary);
-					DiffComputer.syncDiffs(pathToLibrary);
-				}
-			}
-			catch (IOException e) {
-				System.out.println("IOException reading " + library.toString() + ": " + e.getMessage());
-			}
-			
-			library = this.whiteListedLibrariesQueue.poll();
-		}
-		
-		// Signal threadPool that the queue is empty.
-		// The threadPool should wait until all threads are done.
-		threadPool.shutdown();
-	}
-
 }
@@ -0,0 +1,216 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the state of each library the last time its diffs were brought up
+ * to date, so that the startup scan can skip libraries that have not changed
+ * since then without reading any of their files.
+ *
+ * The state of a library is the name, size and modification time of each of
+ * its JAR and AAR files and of its version order file, along with a digest of
+ * the size and modification time of each of its diff.txt files and of which
+ * optional reports are enabled. Both can be compared using only directory
+ * listings and file attributes.
+ *
+ * The journal is kept at ".libdiff/journal.txt". Each update is appended as a
+ * single line, and the latest line for a library wins. The journal is
+ * compacted to one line per library each time it is loaded.
+ */
+public class WhitelistJournal {
+	public static final String JOURNAL_FILE_NAME = "journal.txt";
+
+	private final File journalFile;
+	private final ConcurrentHashMap<String, String> states = new ConcurrentHashMap<String, String>();
+	private BufferedWriter appender;
+
+	private WhitelistJournal(File journalFile) {
+		this.journalFile = journalFile;
+	}
+
+	/**
+	 * Loads the journal of a whitelist, creating an empty one if it does not
+	 * exist yet.
+	 *
+	 * @param whitelist
+	 *            - the path to the whitelist
+	 * @throws IOException
+	 */
+	public static WhitelistJournal load(Path whitelist) throws IOException {
+		File journalFile = WhitelistState.getStateFolder(whitelist).resolve(JOURNAL_FILE_NAME).toFile();
+		WhitelistJournal journal = new WhitelistJournal(journalFile);
+
+		if (journalFile.exists()) {
+			try (BufferedReader reader = ExternalSorter.openReader(journalFile)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					int separator = line.indexOf('\t');
+					if (separator > 0) {
+						journal.states.put(line.substring(0, separator), line.substring(separator + 1));
+					}
+				}
+			}
+		}
+		journal.compact();
+		return journal;
+	}
+
+	/**
+	 * Checks whether a library is in the same state as when it was last
+	 * recorded.
+	 *
+	 * @param library
+	 *            - the library folder
+	 * @return True if the library has not changed since it was recorded
+	 */
+	public boolean isUnchanged(File library) {
+		String recorded = states.get(library.getName());
+		return recorded != null && recorded.equals(describe(library));
+	}
+
+	/**
+	 * Records the current state of a library. This should be called after
+	 * the diffs of the library were brought up to date.
+	 *
+	 * @param library
+	 *            - the library folder
+	 * @throws IOException
+	 */
+	public synchronized void record(File library) throws IOException {
+		if (!isComplete(library)) {
+			// An archive arrived after the library was processed, and must
+			// not be skipped when the library is processed again
+			states.remove(library.getName());
+			return;
+		}
+		String state = describe(library);
+		if (state.equals(states.put(library.getName(), state))) {
+			return;
+		}
+		if (appender == null) {
+			appender = new BufferedWriter(
+					new OutputStreamWriter(new FileOutputStream(journalFile, true), StandardCharsets.UTF_8));
+		}
+		appender.write(library.getName() + "\t" + state);
+		appender.newLine();
+		appender.flush();
+	}
+
+	/**
+	 * Forgets the state of a library, so it is fully processed on the next
+	 * startup scan.
+	 *
+	 * @param library
+	 *            - the library folder
+	 * @throws IOException
+	 */
+	public synchronized void forget(File library) throws IOException {
+		if (states.remove(library.getName()) != null) {
+			compact();
+		}
+	}
+
+	/**
+	 * Rewrites the journal with one line per library.
+	 */
+	private synchronized void compact() throws IOException {
+		if (appender != null) {
+			appender.close();
+			appender = null;
+		}
+		File partialJournal = File.createTempFile("journal", ".tmp", journalFile.getParentFile());
+		try {
+			try (BufferedWriter writer = ExternalSorter.openWriter(partialJournal)) {
+				for (Map.Entry<String, String> entry : states.entrySet()) {
+					writer.write(entry.getKey() + "\t" + entry.getValue());
+					writer.newLine();
+				}
+			}
+			SafeFiles.move(partialJournal.toPath(), journalFile.toPath());
+		} finally {
+			partialJournal.delete();
+		}
+	}
+
+	/**
+	 * @return True if the library has no AARs left to convert and every JAR
+	 *         has a diff
+	 */
+	private static boolean isComplete(File library) {
+		File[] files = library.listFiles();
+		if (files == null) {
+			return false;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(".aar")) {
+				return false;
+			}
+			if (name.endsWith(".jar") && !new File(file.toString().replace(".jar", ""), "diff.txt").exists()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Describes the current state of a library as a single line of text,
+	 * using only the directory listing and file attributes.
+	 */
+	static String describe(File library) {
+		File[] files = library.listFiles();
+		if (files == null) {
+			return "";
+		}
+		Arrays.sort(files);
+
+		StringBuilder archives = new StringBuilder();
+		ArrayList<String> diffs = new ArrayList<String>();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(".jar") || name.endsWith(".aar") || name.equals(JarComparator.ORDER_FILE_NAME)) {
+				archives.append('\t').append(name).append('\t').append(file.length()).append('\t')
+						.append(file.lastModified());
+			}
+			if (name.endsWith(".jar")) {
+				File diffFile = new File(file.toString().replace(".jar", ""), "diff.txt");
+				diffs.add(name + " " + diffFile.length() + " " + diffFile.lastModified());
+			}
+		}
+		// Libraries processed without the optional reports that are now
+		// enabled must be processed again to write them
+		if (ClassSketcher.isEnabled()) {
+			diffs.add("report sketches");
+		}
+		if (MemberFingerprinter.isEnabled()) {
+			diffs.add("report members");
+		}
+		return digestOf(diffs) + archives;
+	}
+
+	private static String digestOf(ArrayList<String> lines) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			for (String line : lines) {
+				digest.update(line.getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) '\n');
+			}
+			return FileMapper.convertByteArrayToHexString(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
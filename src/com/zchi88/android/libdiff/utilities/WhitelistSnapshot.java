@@ -0,0 +1,559 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Packages the state computed for a whitelist into a single compressed
+ * archive, so that a new host can import it instead of extracting and hashing
+ * every JAR again.
+ *
+ * A snapshot holds, for every library, the order of its versions along with
+ * the size and MD5 hash of each JAR, and the txt files of each version
+ * (manifest, diff, sketches and reports). It also holds the member
+ * fingerprint cache. Every entry is listed with its MD5 hash in a
+ * "checksums.txt" entry, and the whole snapshot is verified before anything
+ * is imported.
+ *
+ * Snapshots only ever hold txt files, never bytecode. An imported version is
+ * marked as extracted and evicted, so its bytecode is only extracted from its
+ * JAR if the {@link BytecodeCache} is asked for it. Versions are only
+ * imported if the JAR on the importing host is identical to the one in the
+ * snapshot, and diffs are only imported for libraries with exactly the same
+ * JARs as in the snapshot. Everything else is left to the startup scan, which
+ * then only needs to process the JARs that differ.
+ */
+public class WhitelistSnapshot {
+	public static final String FORMAT = "LibDiff snapshot\t1";
+
+	private static final String HEADER_ENTRY = "snapshot.txt";
+	private static final String CHECKSUMS_ENTRY = "checksums.txt";
+	private static final String LIBRARIES_PREFIX = "libraries/";
+	private static final String MEMBERS_PREFIX = "members/";
+	private static final String VERSIONS_FILE_NAME = "versions.txt";
+
+	/**
+	 * The txt files of a version that do not depend on its previous version,
+	 * and can be imported even if the library's diffs have to be recomputed.
+	 */
+	private static final HashSet<String> LOCAL_FILES = new HashSet<String>(Arrays.asList(
+			FileManifest.MANIFEST_FILE_NAME, ClassSketcher.SKETCH_FILE_NAME));
+
+	/**
+	 * Writes a snapshot of a whitelist. Each library is locked while it is
+	 * being written, so the snapshot can be taken while the tool is running.
+	 *
+	 * @param whitelist
+	 *            - the path to the whitelist
+	 * @param snapshotFile
+	 *            - where to write the snapshot
+	 * @throws IOException
+	 */
+	public static void save(Path whitelist, File snapshotFile) throws IOException {
+		System.out.format("Saving a snapshot of %s to %s...\n", whitelist, snapshotFile);
+		File parent = snapshotFile.getAbsoluteFile().getParentFile();
+		File partialSnapshot = File.createTempFile("snapshot", ".zip", parent);
+		int libraryCount = 0;
+		int versionCount = 0;
+		try {
+			final LinkedHashMap<String, String> checksums = new LinkedHashMap<String, String>();
+			try (final ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(partialSnapshot))) {
+				writeEntry(zip, HEADER_ENTRY, (FORMAT + "\n" + System.currentTimeMillis() + "\n")
+						.getBytes(StandardCharsets.UTF_8), checksums);
+
+				File[] libraries = whitelist.toFile().listFiles();
+				if (libraries != null) {
+					Arrays.sort(libraries);
+					for (File library : libraries) {
+						if (!library.isDirectory() || WhitelistState.isStateFolder(library)) {
+							continue;
+						}
+						int saved = saveLibrary(zip, library, checksums);
+						if (saved > 0) {
+							libraryCount++;
+							versionCount += saved;
+						}
+					}
+				}
+
+				final Path membersFolder = WhitelistState.getStateFolder(whitelist)
+						.resolve(MemberFingerprinter.CACHE_FOLDER_NAME);
+				if (Files.isDirectory(membersFolder)) {
+					Files.walkFileTree(membersFolder, new SimpleFileVisitor<Path>() {
+						@Override
+						public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+							if (file.getFileName().toString().endsWith(".txt")) {
+								writeEntry(zip, MEMBERS_PREFIX + entryName(membersFolder.relativize(file)),
+										file.toFile(), checksums);
+							}
+							return FileVisitResult.CONTINUE;
+						}
+					});
+				}
+
+				StringBuilder checksumList = new StringBuilder();
+				for (Map.Entry<String, String> checksum : checksums.entrySet()) {
+					checksumList.append(checksum.getValue()).append('\t').append(checksum.getKey()).append('\n');
+				}
+				zip.putNextEntry(new ZipEntry(CHECKSUMS_ENTRY));
+				zip.write(checksumList.toString().getBytes(StandardCharsets.UTF_8));
+				zip.closeEntry();
+			}
+			SafeFiles.move(partialSnapshot.toPath(), snapshotFile.toPath());
+		} finally {
+			partialSnapshot.delete();
+		}
+		System.out.format("Saved %d versions of %d libraries (%.1f MB).\n", versionCount, libraryCount,
+				snapshotFile.length() / 1e6);
+	}
+
+	/**
+	 * Writes the versions of a library whose manifest and diff are complete.
+	 *
+	 * @return The number of versions written
+	 */
+	private static int saveLibrary(ZipOutputStream zip, File library, LinkedHashMap<String, String> checksums)
+			throws IOException {
+		final CheckpointJournal checkpoints = CheckpointJournal.forLibrary(library.toPath());
+		String prefix = LIBRARIES_PREFIX + library.getName() + "/";
+		ReentrantLock libraryLock = LibraryLocks.forLibrary(library);
+		libraryLock.lock();
+		try {
+			File[] files = library.listFiles();
+			if (files == null) {
+				return 0;
+			}
+			ArrayList<File> versions = new ArrayList<File>();
+			for (File file : files) {
+				File versionFolder = new File(file.toString().replace(".jar", ""));
+				String version = versionFolder.getName();
+				if (file.getName().endsWith(".jar") && versionFolder.isDirectory()
+						&& checkpoints.has(version, CheckpointJournal.Stage.EXTRACTED)
+						&& checkpoints.has(version, CheckpointJournal.Stage.DIFFED)
+						&& new File(versionFolder, FileManifest.MANIFEST_FILE_NAME).exists()
+						&& DiffComputer.isDiffValid(new File(versionFolder, "diff.txt"))) {
+					versions.add(versionFolder);
+				}
+			}
+			if (versions.isEmpty()) {
+				return 0;
+			}
+
+			// Newest version first, as recorded by the diffs
+			Collections.sort(versions, new Comparator<File>() {
+				@Override
+				public int compare(File a, File b) {
+					return Integer.compare(ageOf(checkpoints, a), ageOf(checkpoints, b));
+				}
+			});
+
+			StringBuilder versionList = new StringBuilder();
+			for (File versionFolder : versions) {
+				String version = versionFolder.getName();
+				File jarFile = new File(versionFolder + ".jar");
+				versionList.append(jarFile.getName()).append('\t').append(jarFile.length()).append('\t')
+						.append(hashOf(jarFile)).append('\t')
+						.append(checkpoints.getDetail(version, CheckpointJournal.Stage.EXTRACTED)).append('\t')
+						.append(checkpoints.getDetail(version, CheckpointJournal.Stage.DIFFED)).append('\n');
+
+				File[] reports = versionFolder.listFiles();
+				Arrays.sort(reports);
+				for (File report : reports) {
+					if (report.isFile() && report.getName().endsWith(".txt")) {
+						writeEntry(zip, prefix + version + "/" + report.getName(), report, checksums);
+					}
+				}
+			}
+			writeEntry(zip, prefix + VERSIONS_FILE_NAME, versionList.toString().getBytes(StandardCharsets.UTF_8),
+					checksums);
+			return versions.size();
+		} finally {
+			libraryLock.unlock();
+		}
+	}
+
+	/**
+	 * Verifies a snapshot and imports it into a whitelist. The JARs of the
+	 * whitelist must already be in place; the snapshot only replaces the work
+	 * of extracting and diffing them. Versions that already have a folder in
+	 * the whitelist are left alone.
+	 *
+	 * @param snapshotFile
+	 *            - the snapshot to import
+	 * @param whitelist
+	 *            - the path to the whitelist
+	 * @param journal
+	 *            - the whitelist's journal, in which libraries whose diffs
+	 *            were fully imported are recorded so the startup scan skips
+	 *            them
+	 * @throws IOException
+	 *             if the snapshot is not valid, in which case nothing was
+	 *             imported
+	 */
+	public static void load(File snapshotFile, Path whitelist, WhitelistJournal journal) throws IOException {
+		System.out.format("Verifying snapshot %s...\n", snapshotFile);
+		try (ZipFile zip = new ZipFile(snapshotFile)) {
+			verify(zip);
+
+			// Group the entries of each library
+			HashMap<String, ArrayList<ZipEntry>> entriesByLibrary = new HashMap<String, ArrayList<ZipEntry>>();
+			ArrayList<ZipEntry> memberEntries = new ArrayList<ZipEntry>();
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				String name = entry.getName();
+				// Entry names are resolved against the whitelist, so a
+				// crafted snapshot must not be able to point outside of it
+				checkEntryName(name);
+				if (name.startsWith(MEMBERS_PREFIX)) {
+					memberEntries.add(entry);
+				} else if (name.startsWith(LIBRARIES_PREFIX)) {
+					int separator = name.indexOf('/', LIBRARIES_PREFIX.length());
+					if (separator < 0) {
+						throw new IOException("The snapshot entry " + name + " is not in a library folder.");
+					}
+					String library = name.substring(LIBRARIES_PREFIX.length(), separator);
+					if (library.startsWith(".")) {
+						throw new IOException("The snapshot entry " + name + " has an invalid library name.");
+					}
+					ArrayList<ZipEntry> libraryEntries = entriesByLibrary.get(library);
+					if (libraryEntries == null) {
+						libraryEntries = new ArrayList<ZipEntry>();
+						entriesByLibrary.put(library, libraryEntries);
+					}
+					libraryEntries.add(entry);
+				}
+			}
+
+			System.out.format("Importing %d libraries from the snapshot...\n", entriesByLibrary.size());
+			int[] counts = new int[3];
+			for (Map.Entry<String, ArrayList<ZipEntry>> library : entriesByLibrary.entrySet()) {
+				loadLibrary(zip, whitelist.resolve(library.getKey()).toFile(), library.getValue(), journal,
+						counts);
+			}
+
+			Path membersFolder = WhitelistState.getStateFolder(whitelist)
+					.resolve(MemberFingerprinter.CACHE_FOLDER_NAME);
+			for (ZipEntry entry : memberEntries) {
+				Path cached = membersFolder.resolve(entry.getName().substring(MEMBERS_PREFIX.length()));
+				if (!Files.exists(cached)) {
+					Files.createDirectories(cached.getParent());
+					copyEntry(zip, entry, cached);
+				}
+			}
+
+			System.out.format("Imported %d versions, and %d libraries with all of their diffs. "
+					+ "%d JARs differ from the snapshot and will be processed by the scan.\n", counts[0], counts[1],
+					counts[2]);
+		}
+	}
+
+	/**
+	 * Imports the versions of a library whose JAR is identical to the one in
+	 * the snapshot.
+	 *
+	 * @param counts
+	 *            - incremented with the number of versions imported, whether
+	 *            the library's diffs were imported, and the number of JARs
+	 *            that differ
+	 */
+	private static void loadLibrary(ZipFile zip, File library, ArrayList<ZipEntry> entries,
+			WhitelistJournal journal, int[] counts) throws IOException {
+		if (!library.isDirectory()) {
+			return;
+		}
+		String prefix = LIBRARIES_PREFIX + library.getName() + "/";
+		ZipEntry versionsEntry = zip.getEntry(prefix + VERSIONS_FILE_NAME);
+		if (versionsEntry == null) {
+			return;
+		}
+
+		ReentrantLock libraryLock = LibraryLocks.forLibrary(library);
+		libraryLock.lock();
+		try {
+			// Find the JARs that are identical to the snapshot's
+			ArrayList<String[]> versions = new ArrayList<String[]>();
+			HashSet<String> matched = new HashSet<String>();
+			try (BufferedReader reader = new BufferedReader(
+					new InputStreamReader(zip.getInputStream(versionsEntry), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.split("\t", 5);
+					if (fields.length < 5) {
+						throw new IOException("Malformed version list for " + library.getName() + ": " + line);
+					}
+					if (!fields[0].endsWith(".jar") || fields[0].startsWith(".") || fields[0].indexOf('/') >= 0
+							|| fields[0].indexOf('\\') >= 0 || fields[0].indexOf(File.separatorChar) >= 0) {
+						throw new IOException("Invalid JAR name in the version list for " + library.getName() + ": "
+								+ fields[0]);
+					}
+					versions.add(fields);
+					File jarFile = new File(library, fields[0]);
+					if (jarFile.isFile() && jarFile.length() == Long.parseLong(fields[1])
+							&& hashOf(jarFile).equals(fields[2])) {
+						matched.add(fields[0]);
+					}
+				}
+			}
+
+			// The diffs only hold if the library has exactly the same
+			// versions, since adding or removing one changes the previous
+			// version and age of the others
+			boolean sameVersions = matched.size() == versions.size();
+			File[] files = library.listFiles();
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(".aar") || (name.endsWith(".jar") && !matched.contains(name))) {
+					sameVersions = false;
+					if (name.endsWith(".jar")) {
+						counts[2]++;
+					}
+				}
+			}
+
+			// A version folder left by an earlier run is kept as it is, so the
+			// library is only up to date if its diff matches the snapshot's
+			boolean upToDate = sameVersions;
+			CheckpointJournal checkpoints = CheckpointJournal.forLibrary(library.toPath());
+			for (String[] fields : versions) {
+				if (!matched.contains(fields[0])) {
+					continue;
+				}
+				File versionFolder = new File(library, fields[0].replace(".jar", ""));
+				String version = versionFolder.getName();
+				if (versionFolder.exists()) {
+					if (!fields[4].equals(checkpoints.getDetail(version, CheckpointJournal.Stage.DIFFED))) {
+						upToDate = false;
+					}
+					continue;
+				}
+
+				// Write the version's files next to its folder, and move them
+				// into place once the checkpoints say the bytecode is evicted.
+				// An interrupted import leaves either a partial folder, which
+				// the extractor deletes, or checkpoints without a folder,
+				// which the extractor clears.
+				Path staged = Paths.get(versionFolder + JarExtractor.PARTIAL_SUFFIX);
+				SafeFiles.deleteRecursively(staged);
+				Files.createDirectories(staged);
+				String versionPrefix = prefix + version + "/";
+				for (ZipEntry entry : entries) {
+					String fileName = entry.getName().substring(Math.min(versionPrefix.length(),
+							entry.getName().length()));
+					if (entry.getName().startsWith(versionPrefix)
+							&& (sameVersions || LOCAL_FILES.contains(fileName))) {
+						copyEntry(zip, entry, staged.resolve(fileName));
+					}
+				}
+				checkpoints.clear(version, CheckpointJournal.Stage.CONVERTED);
+				checkpoints.record(version, CheckpointJournal.Stage.EXTRACTED, fields[3]);
+				checkpoints.record(version, CheckpointJournal.Stage.FINGERPRINTED, "");
+				if (sameVersions) {
+					checkpoints.record(version, CheckpointJournal.Stage.DIFFED, fields[4]);
+				}
+				checkpoints.record(version, CheckpointJournal.Stage.EVICTED, "");
+				SafeFiles.move(staged, versionFolder.toPath());
+				counts[0]++;
+			}
+
+			if (upToDate) {
+				journal.record(library);
+				counts[1]++;
+			}
+		} finally {
+			libraryLock.unlock();
+		}
+	}
+
+	/**
+	 * Checks that a snapshot has the expected format, and that every entry
+	 * matches its checksum.
+	 *
+	 * @throws IOException
+	 *             if the snapshot is not valid
+	 */
+	private static void verify(ZipFile zip) throws IOException {
+		ZipEntry header = zip.getEntry(HEADER_ENTRY);
+		ZipEntry checksumsEntry = zip.getEntry(CHECKSUMS_ENTRY);
+		if (header == null || checksumsEntry == null) {
+			throw new IOException(zip.getName() + " is not a LibDiff snapshot.");
+		}
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(zip.getInputStream(header), StandardCharsets.UTF_8))) {
+			String format = reader.readLine() + "\t" + reader.readLine();
+			if (!format.startsWith(FORMAT + "\t")) {
+				throw new IOException(zip.getName() + " is a snapshot of an unsupported format.");
+			}
+		}
+
+		HashMap<String, String> checksums = new HashMap<String, String>();
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(zip.getInputStream(checksumsEntry), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int separator = line.indexOf('\t');
+				if (separator < 0) {
+					throw new IOException("Malformed checksum line in the snapshot: " + line);
+				}
+				checksums.put(line.substring(separator + 1), line.substring(0, separator));
+			}
+		}
+
+		int verified = 0;
+		Enumeration<? extends ZipEntry> entries = zip.entries();
+		while (entries.hasMoreElements()) {
+			ZipEntry entry = entries.nextElement();
+			if (entry.getName().equals(CHECKSUMS_ENTRY)) {
+				continue;
+			}
+			String expected = checksums.get(entry.getName());
+			if (expected == null) {
+				throw new IOException("The snapshot entry " + entry.getName() + " has no checksum.");
+			}
+			MessageDigest digest = newDigest();
+			try (InputStream in = zip.getInputStream(entry)) {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					digest.update(buffer, 0, read);
+				}
+			}
+			if (!FileMapper.convertByteArrayToHexString(digest.digest()).equals(expected)) {
+				throw new IOException("The snapshot entry " + entry.getName() + " does not match its checksum.");
+			}
+			verified++;
+		}
+		if (verified != checksums.size()) {
+			throw new IOException("The snapshot is missing " + (checksums.size() - verified) + " entries.");
+		}
+	}
+
+	private static int ageOf(CheckpointJournal checkpoints, File versionFolder) {
+		String detail = checkpoints.getDetail(versionFolder.getName(), CheckpointJournal.Stage.DIFFED);
+		try {
+			return Integer.parseInt(detail.substring(0, detail.indexOf('\t')));
+		} catch (RuntimeException e) {
+			return Integer.MAX_VALUE;
+		}
+	}
+
+	private static String entryName(Path relativePath) {
+		return relativePath.toString().replace(File.separatorChar, '/');
+	}
+
+	private static void writeEntry(ZipOutputStream zip, String name, byte[] bytes,
+			Map<String, String> checksums) throws IOException {
+		zip.putNextEntry(new ZipEntry(name));
+		zip.write(bytes);
+		zip.closeEntry();
+		checksums.put(name, FileMapper.convertByteArrayToHexString(newDigest().digest(bytes)));
+	}
+
+	private static void writeEntry(ZipOutputStream zip, String name, File file, Map<String, String> checksums)
+			throws IOException {
+		zip.putNextEntry(new ZipEntry(name));
+		MessageDigest digest = newDigest();
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				zip.write(buffer, 0, read);
+				digest.update(buffer, 0, read);
+			}
+		}
+		zip.closeEntry();
+		checksums.put(name, FileMapper.convertByteArrayToHexString(digest.digest()));
+	}
+
+	/**
+	 * Checks that the name of a snapshot entry is a relative path without
+	 * "." or ".." segments.
+	 *
+	 * @throws IOException
+	 *             if the name is not valid
+	 */
+	private static void checkEntryName(String name) throws IOException {
+		if (name.indexOf('\\') >= 0 || name.indexOf('\0') >= 0) {
+			throw new IOException("Invalid snapshot entry name: " + name);
+		}
+		for (String segment : name.split("/", -1)) {
+			if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+				throw new IOException("Invalid snapshot entry name: " + name);
+			}
+		}
+	}
+
+	/**
+	 * Copies an entry of the snapshot to a file, through a temporary file so
+	 * the file is never observed half-written.
+	 */
+	private static void copyEntry(ZipFile zip, ZipEntry entry, Path target) throws IOException {
+		File partial = File.createTempFile("snapshot", ".tmp", target.getParent().toFile());
+		try {
+			try (InputStream in = zip.getInputStream(entry); OutputStream out = new FileOutputStream(partial)) {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+			}
+			SafeFiles.move(partial.toPath(), target);
+		} finally {
+			partial.delete();
+		}
+	}
+
+	/**
+	 * @return The MD5 hash of a file, as a hex string
+	 */
+	private static String hashOf(File file) throws IOException {
+		MessageDigest digest = newDigest();
+		IoThrottle.acquireOpen();
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] buffer = new byte[65536];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+				IoMetrics.addBytesRead(read);
+				IoThrottle.acquireRead(read);
+			}
+		}
+		return FileMapper.convertByteArrayToHexString(digest.digest());
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package com.zchi88.android.libdiff.utilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Locates the folder where the tool keeps its own state for a whitelist. The
+ * folder lives at the root of the whitelist but is hidden, and is never
+ * treated as a library.
+ */
+public class WhitelistState {
+	public static final String STATE_FOLDER_NAME = ".libdiff";
+
+	/**
+	 * Returns the state folder of a whitelist, creating it if necessary.
+	 *
+	 * @param whitelist
+	 *            - the path to the whitelist
+	 * @throws IOException
+	 */
+	public static Path getStateFolder(Path whitelist) throws IOException {
+		Path stateFolder = whitelist.resolve(STATE_FOLDER_NAME);
+		Files.createDirectories(stateFolder);
+		return stateFolder;
+	}
+
+	/**
+	 * @return True if the given file is the state folder of a whitelist, and
+	 *         therefore not a library
+	 */
+	public static boolean isStateFolder(File file) {
+		return file.getName().equals(STATE_FOLDER_NAME);
+	}
+}
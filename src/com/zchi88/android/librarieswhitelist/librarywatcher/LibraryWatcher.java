@@ -37,6 +37,7 @@ import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
@@ -49,10 +50,10 @@ import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.zchi88.android.libdiff.utilities.AarToJar;
-import com.zchi88.android.libdiff.utilities.DiffComputer;
-import com.zchi88.android.libdiff.utilities.JarExtractor;
+import com.zchi88.android.libdiff.utilities.LibraryQueue;
+import com.zchi88.android.libdiff.utilities.WhitelistState;
 
 /**
  * Watches a directory and all sub-directories for changes to files.
@@ -60,6 +61,9 @@ import com.zchi88.android.libdiff.utilities.JarExtractor;
 public class LibraryWatcher {
 	private final WatchService watcher;
 	private final Map<WatchKey, Path> keys;
+	private final Path root;
+	private final LibraryQueue queue;
+	private final AtomicLong overflows = new AtomicLong();
 	private boolean trace = false;
 
 	@SuppressWarnings("unchecked")
@@ -69,11 +73,14 @@ public class LibraryWatcher {
 
 	/**
 	 * Creates a WatchService and registers the given directory to monitor for
-	 * changes.
+	 * changes. Libraries that change are submitted to the queue as live
+	 * arrivals.
 	 */
-	public LibraryWatcher(Path dir) throws IOException {
+	public LibraryWatcher(Path dir, LibraryQueue queue) throws IOException {
 		this.watcher = FileSystems.getDefault().newWatchService();
 		this.keys = new HashMap<WatchKey, Path>();
+		this.root = dir;
+		this.queue = queue;
 
 		System.out.format("Starting watch service for %s...\n", dir);
 		registerAll(dir);
@@ -104,24 +111,41 @@ public class LibraryWatcher {
 	}
 
 	/**
-	 * Register the given directory, and all its sub-directories, with the
-	 * WatchService.
+	 * Register the given directory, and all its sub-directories that can hold
+	 * libraries or their versions, with the WatchService. Only the whitelist
+	 * itself and the library folders directly inside it need to be watched;
+	 * the folders bytecode is extracted to are skipped, so that large
+	 * whitelists do not exhaust the operating system's watch limit.
 	 */
 	private void registerAll(final Path start) throws IOException {
 		// register directory and sub-directories
 		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
 			@Override
 			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				if (WhitelistState.isStateFolder(dir.toFile())) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
 				// Recursively register for watch service only if the file is a
 				// directory
 				if (Files.isDirectory(dir)) {
 					register(dir);
 				}
+				if (isLibrary(dir)) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
 				return FileVisitResult.CONTINUE;
 			}
 		});
 	}
 
+	/**
+	 * @return True if the path is a library folder directly inside the
+	 *         whitelist
+	 */
+	private boolean isLibrary(Path path) {
+		return root.equals(path.getParent()) && !WhitelistState.isStateFolder(path.toFile());
+	}
+
 	/**
 	 * Process all events for keys queued to the watcher
 	 * 
@@ -150,10 +174,31 @@ public class LibraryWatcher {
 			for (WatchEvent<?> event : key.pollEvents()) {
 				WatchEvent.Kind<?> kind = event.kind();
 
-				// TBD - provide example of how OVERFLOW event is handled
+				// Events were lost, so requeue every library they could have
+				// been about. Libraries that did not change are skipped by the
+				// workers.
 				if (kind == OVERFLOW) {
+					overflows.incrementAndGet();
 					System.err.println(
 							"Warning: overflow detected. The system may have failed to register some changes to the directory.");
+					if (isLibrary(dir)) {
+						queue.submit(dir.toFile(), LibraryQueue.Priority.LIVE);
+					} else if (dir.equals(root)) {
+						// New libraries may not have been registered either
+						try {
+							registerAll(root);
+						} catch (IOException x) {
+							// ignore to keep sample readable
+						}
+						File[] libraries = root.toFile().listFiles();
+						if (libraries != null) {
+							for (File library : libraries) {
+								if (library.isDirectory() && isLibrary(library.toPath())) {
+									queue.submit(library, LibraryQueue.Priority.LIVE);
+								}
+							}
+						}
+					}
 					continue;
 				}
 
@@ -171,8 +216,14 @@ public class LibraryWatcher {
 				// register it and its sub-directories
 				if (kind == ENTRY_CREATE) {
 					try {
-						if (Files.isDirectory(child, NOFOLLOW_LINKS)) {
+						if (Files.isDirectory(child, NOFOLLOW_LINKS) && (child.equals(root) || isLibrary(child))) {
 							registerAll(child);
+							// Archives copied in along with a new library were
+							// never seen by the watcher, so process it as a
+							// whole
+							if (isLibrary(child)) {
+								queue.submit(child.toFile(), LibraryQueue.Priority.LIVE);
+							}
 						}
 					} catch (IOException x) {
 						// ignore to keep sample readable
@@ -189,6 +240,19 @@ public class LibraryWatcher {
 					}
 				}
 
+				// An archive that is still being copied in is written to after
+				// it is created. Queueing its library again on every write
+				// restarts the settle delay, so it is only processed once the
+				// copy has finished.
+				if (kind == ENTRY_MODIFY) {
+					if (child.toString().endsWith(".aar")) {
+						processNewAar(child);
+					}
+					if (child.toString().endsWith(".jar")) {
+						processNewJar(child);
+					}
+				}
+
 				// Handle the deletion of JAR's
 				if (kind == ENTRY_DELETE) {
 					if (child.toString().endsWith(".jar")) {
@@ -210,37 +274,33 @@ public class LibraryWatcher {
 		}
 	}
 
-	private static void processNewAar(Path filePath) {
-		try {
-			// Wait one second before trying to convert AAR
-			// since the file may still be locked
-			Thread.sleep(1000);
-			AarToJar.extractJar(filePath.toString());
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			System.err.println("Error: failed to convert the AAR file.");
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+	/**
+	 * @return How many times the operating system reported that events were
+	 *         lost because too many happened at once
+	 */
+	public long getOverflowCount() {
+		return overflows.get();
 	}
 
-	private static void processNewJar(Path filePath) throws IOException {
-		try {
-			// Give the machine some time to finish extracting the jar before
-			// attempting to decompile it
-			Thread.sleep(1000);
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	/**
+	 * Queues the library of a new or growing AAR. The worker that processes it converts
+	 * the AAR once the library has settled, since the file may still be
+	 * locked.
+	 */
+	private void processNewAar(Path filePath) {
+		if (isLibrary(filePath.getParent())) {
+			queue.submit(filePath.getParent().toFile(), LibraryQueue.Priority.LIVE);
 		}
+	}
 
-		JarExtractor.extractByteCode(filePath);
-		try {
-			DiffComputer.syncDiffs(filePath.getParent());
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	/**
+	 * Queues the library of a new or growing JAR. The worker that processes it extracts
+	 * the JAR and recomputes the library's diffs once the library has
+	 * settled, giving the machine time to finish copying the JAR.
+	 */
+	private void processNewJar(Path filePath) {
+		if (isLibrary(filePath.getParent())) {
+			queue.submit(filePath.getParent().toFile(), LibraryQueue.Priority.LIVE);
 		}
 	}
 
@@ -0,0 +1,382 @@
+package com.zchi88.android.librarieswhitelist.librarywatcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.zchi88.android.libdiff.utilities.ConcurrencyController;
+import com.zchi88.android.libdiff.utilities.DiffComputer;
+import com.zchi88.android.libdiff.utilities.DiffEvent;
+import com.zchi88.android.libdiff.utilities.DiffListener;
+import com.zchi88.android.libdiff.utilities.IoMetrics;
+import com.zchi88.android.libdiff.utilities.LibraryQueue;
+import com.zchi88.android.libdiff.utilities.LibraryWorker;
+import com.zchi88.android.libdiff.utilities.SafeFiles;
+import com.zchi88.android.libdiff.utilities.WhitelistJournal;
+
+/**
+ * Measures how long it takes from a JAR or AAR landing in a whitelist to its
+ * diff.txt being written, by running the real {@link LibraryWatcher} and
+ * workers against a temporary whitelist and dropping synthetic archives into
+ * it.
+ *
+ * <pre>
+ * java -cp LibDiff.jar com.zchi88.android.librarieswhitelist.librarywatcher.WatcherSoakHarness [options]
+ * </pre>
+ *
+ * Archives are dropped in bursts, spread over a fixed number of libraries.
+ * Each archive is written outside the whitelist and then moved in, so it
+ * lands all at once like a finished copy. With --copy-rate, archives are
+ * instead streamed into the whitelist at the given rate, like a slow copy
+ * over the network, and diffs written before the copy of their archive
+ * finished are counted as premature. The latency of an archive is measured
+ * from the moment it has fully landed to the moment the diff of its version
+ * is written. Progress is printed at a regular interval, and a final
+ * report is printed once every archive has been diffed or the drain timeout
+ * has passed. Archives that never get a diff are reported as lost.
+ */
+public class WatcherSoakHarness {
+	private int durationSeconds = 60;
+	private double archivesPerSecond = 5;
+	private int burstSize = 1;
+	private int numLibraries = 10;
+	private int classesPerArchive = 50;
+	private double aarRatio = 0.2;
+	private long settleMillis = 1000;
+	private int numThreads = 4;
+	private int reportSeconds = 10;
+	private int drainSeconds = 60;
+	private long copyBytesPerSecond = 0;
+	private boolean quiet = true;
+
+	// Maps "library/version" to the time its archive landed
+	private final ConcurrentHashMap<String, Long> pending = new ConcurrentHashMap<String, Long>();
+	private final ArrayList<Long> latencies = new ArrayList<Long>();
+	// The diffs written so far, to count diffs written more than once
+	private final Set<String> diffed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final AtomicLong duplicateDiffs = new AtomicLong();
+	// The archives still being streamed in, by "library/version"
+	private final Set<String> copying = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final AtomicLong prematureDiffs = new AtomicLong();
+	private final ExecutorService copiers = Executors.newCachedThreadPool();
+	private final Random random = new Random(42);
+	private int archivesDropped = 0;
+
+	private static void showHowToUse() {
+		System.err.println("Usage: WatcherSoakHarness [options]");
+		System.err.println("Options:");
+		System.err.println("  --duration=SECONDS   how long to keep dropping archives (default 60)");
+		System.err.println("  --rate=N             archives dropped per second (default 5)");
+		System.err.println("  --burst=N            archives dropped at once (default 1)");
+		System.err.println("  --libraries=N        libraries the archives are spread over (default 10)");
+		System.err.println("  --classes=N          classes per archive (default 50)");
+		System.err.println("  --aar-ratio=R        fraction of archives that are AARs (default 0.2)");
+		System.err.println("  --settle=MILLIS      the queue's settle delay for live arrivals (default 1000)");
+		System.err.println("  --threads=N          worker threads (default 4)");
+		System.err.println("  --report=SECONDS     interval between progress reports (default 10)");
+		System.err.println("  --drain=SECONDS      how long to wait for the last diffs (default 60)");
+		System.err.println("  --copy-rate=KB       stream archives in at KB per second instead of moving");
+		System.err.println("                       them in whole (default 0, move)");
+		System.err.println("  --verbose            keep the tool's own output");
+		System.exit(-1);
+	}
+
+	public static void main(String[] args) throws Exception {
+		WatcherSoakHarness harness = new WatcherSoakHarness();
+		for (String arg : args) {
+			try {
+				if (arg.startsWith("--duration=")) {
+					harness.durationSeconds = Integer.parseInt(valueOf(arg));
+				} else if (arg.startsWith("--rate=")) {
+					harness.archivesPerSecond = Double.parseDouble(valueOf(arg));
+				} else if (arg.startsWith("--burst=")) {
+					harness.burstSize = Integer.parseInt(valueOf(arg));
+				} else if (arg.startsWith("--libraries=")) {
+					harness.numLibraries = Integer.parseInt(valueOf(arg));
+				} else if (arg.startsWith("--classes=")) {
+					harness.classesPerArchive = Integer.parseInt(valueOf(arg));
+				} else if (arg.startsWith("--aar-ratio=")) {
+					harness.aarRatio = Double.parseDouble(valueOf(arg));
+				} else if (arg.startsWith("--settle=")) {
+					harness.settleMillis = Long.parseLong(valueOf(arg));
+				} else if (arg.startsWith("--threads=")) {
+					harness.numThreads = Integer.parseInt(valueOf(arg));
+				} else if (arg.startsWith("--report=")) {
+					harness.reportSeconds = Integer.parseInt(valueOf(arg));
+				} else if (arg.startsWith("--drain=")) {
+					harness.drainSeconds = Integer.parseInt(valueOf(arg));
+				} else if (arg.startsWith("--copy-rate=")) {
+					harness.copyBytesPerSecond = Long.parseLong(valueOf(arg)) * 1024;
+				} else if (arg.equals("--verbose")) {
+					harness.quiet = false;
+				} else {
+					showHowToUse();
+				}
+			} catch (NumberFormatException e) {
+				showHowToUse();
+			}
+		}
+		if (harness.archivesPerSecond <= 0 || harness.burstSize <= 0 || harness.numLibraries <= 0
+				|| harness.numThreads <= 0 || harness.reportSeconds <= 0 || harness.copyBytesPerSecond < 0) {
+			showHowToUse();
+		}
+		harness.run();
+		System.exit(0);
+	}
+
+	private static String valueOf(String arg) {
+		return arg.substring(arg.indexOf('=') + 1);
+	}
+
+	private void run() throws Exception {
+		PrintStream out = System.out;
+		if (quiet) {
+			// The tool reports every library it processes, which would drown
+			// out the harness's reports
+			System.setOut(new PrintStream(new OutputStream() {
+				@Override
+				public void write(int b) {
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) {
+				}
+			}));
+		}
+
+		Path whitelist = Files.createTempDirectory("libdiff-soak");
+		Path staging = Files.createTempDirectory("libdiff-soak-staging");
+		for (int i = 0; i < numLibraries; i++) {
+			Files.createDirectories(whitelist.resolve("lib" + i));
+		}
+
+		DiffComputer.addDiffListener(new DiffListener() {
+			@Override
+			public void diffWritten(DiffEvent event) {
+				String key = event.getLibrary().getFileName() + "/" + event.getVersion().getName();
+				// A diff written again with the same age and previous version
+				// is wasted work
+				String diff = key + "\t" + event.getVersionAge() + "\t"
+						+ (event.getPreviousVersion() == null ? "" : event.getPreviousVersion().getName());
+				if (!diffed.add(diff)) {
+					duplicateDiffs.incrementAndGet();
+				}
+				if (copying.contains(key)) {
+					// The diff is of a half-written archive, so keep waiting
+					// for the diff of the whole one
+					prematureDiffs.incrementAndGet();
+					return;
+				}
+				Long landedAt = pending.remove(key);
+				if (landedAt != null) {
+					synchronized (latencies) {
+						latencies.add(System.nanoTime() - landedAt);
+					}
+				}
+			}
+		});
+
+		LibraryQueue queue = new LibraryQueue(settleMillis);
+		LibraryWorker.startWorkers(queue, ConcurrencyController.fixed(numThreads), WhitelistJournal.load(whitelist));
+		final LibraryWatcher watcher = new LibraryWatcher(whitelist, queue);
+		Thread watcherThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					watcher.processEvents();
+				} catch (IOException e) {
+					System.err.println("The watcher stopped: " + e.getMessage());
+				}
+			}
+		}, "libdiff-soak-watcher");
+		watcherThread.setDaemon(true);
+		watcherThread.start();
+
+		out.format("Soak test of %s: %.1f archives/s in bursts of %d over %d libraries for %d s, %d threads, "
+				+ "%d ms settle delay, %s\n", whitelist, archivesPerSecond, burstSize, numLibraries, durationSeconds,
+				numThreads, settleMillis,
+				copyBytesPerSecond > 0 ? "streamed in at " + copyBytesPerSecond / 1024 + " KB/s" : "moved in");
+
+		long start = System.nanoTime();
+		long end = start + durationSeconds * 1000000000L;
+		long burstInterval = (long) (burstSize / archivesPerSecond * 1e9);
+		long nextBurst = start;
+		long nextReport = start + reportSeconds * 1000000000L;
+		int completedAtLastReport = 0;
+		while (System.nanoTime() < end) {
+			long now = System.nanoTime();
+			if (now >= nextBurst) {
+				for (int i = 0; i < burstSize; i++) {
+					dropArchive(whitelist, staging);
+				}
+				nextBurst += burstInterval;
+			}
+			if (now >= nextReport) {
+				completedAtLastReport = report(out, "progress", start, completedAtLastReport, watcher, queue);
+				nextReport += reportSeconds * 1000000000L;
+			}
+			long sleepNanos = Math.min(nextBurst, Math.min(nextReport, end)) - System.nanoTime();
+			if (sleepNanos > 0) {
+				Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+			}
+		}
+		long dropEnd = System.nanoTime();
+
+		// Let the last arrivals settle and be processed
+		long drainEnd = dropEnd + drainSeconds * 1000000000L;
+		while ((!pending.isEmpty() || !copying.isEmpty()) && System.nanoTime() < drainEnd) {
+			Thread.sleep(50);
+		}
+		report(out, "final", start, completedAtLastReport, watcher, queue);
+		out.format("Archives: %d dropped, %d diffed, %d lost (no diff within %d s of the last drop)\n",
+				archivesDropped, latencies.size(), pending.size(), drainSeconds);
+		out.format("Watcher overflows: %d, merged submissions: %d, follow-up runs: %d, duplicate diffs: %d, "
+				+ "premature diffs: %d\n", watcher.getOverflowCount(), queue.getMergedSubmissions(),
+				queue.getFollowUps(), duplicateDiffs.get(), prematureDiffs.get());
+		for (String lost : pending.keySet()) {
+			out.format("Lost: %s\n", lost);
+		}
+
+		copiers.shutdownNow();
+		SafeFiles.deleteRecursively(staging);
+		SafeFiles.deleteRecursively(whitelist);
+	}
+
+	/**
+	 * Prints the latency percentiles and throughput so far.
+	 *
+	 * @return The number of archives diffed so far
+	 */
+	private int report(PrintStream out, String label, long start, int completedAtLastReport, LibraryWatcher watcher,
+			LibraryQueue queue) {
+		ArrayList<Long> sorted;
+		synchronized (latencies) {
+			sorted = new ArrayList<Long>(latencies);
+		}
+		Collections.sort(sorted);
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		int completed = sorted.size();
+
+		if (sorted.isEmpty()) {
+			out.format("[%s %.0f s] no diffs yet, %d pending, %d queued, %d overflows\n", label, elapsed,
+					pending.size(), queue.size(), watcher.getOverflowCount());
+		} else {
+			out.format("[%s %.0f s] latency p50 %.0f ms, p99 %.0f ms, max %.0f ms; %d diffed (%.1f/s overall, "
+					+ "%d since last report), %d pending, %d queued, %d overflows, %.1f MB read\n", label, elapsed,
+					percentile(sorted, 0.5), percentile(sorted, 0.99), sorted.get(completed - 1) / 1e6, completed,
+					completed / elapsed, completed - completedAtLastReport, pending.size(), queue.size(),
+					watcher.getOverflowCount(), IoMetrics.getBytesRead() / 1e6);
+		}
+		return completed;
+	}
+
+	private static double percentile(ArrayList<Long> sorted, double fraction) {
+		int index = Math.min(sorted.size() - 1, (int) (sorted.size() * fraction));
+		return sorted.get(index) / 1e6;
+	}
+
+	/**
+	 * Writes a synthetic archive to the staging folder, then moves or streams
+	 * it into a random library of the whitelist. Each archive is a newer release of its
+	 * library than all archives dropped before it, and shares most of its
+	 * classes with them.
+	 */
+	private void dropArchive(Path whitelist, Path staging) throws IOException {
+		int archive = archivesDropped++;
+		String library = "lib" + random.nextInt(numLibraries);
+		String version = library + "-" + archive;
+		boolean isAar = random.nextDouble() < aarRatio;
+		String fileName = version + (isAar ? ".aar" : ".jar");
+
+		// Entry times decide the version order, so keep them increasing
+		long releaseTime = 1000000000000L + archive * 60000L;
+		File stagedFile = staging.resolve(fileName).toFile();
+		if (isAar) {
+			File classesJar = staging.resolve(version + "-classes.jar").toFile();
+			writeJar(classesJar, archive, releaseTime);
+			try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(stagedFile))) {
+				ZipEntry entry = new ZipEntry("classes.jar");
+				entry.setTime(releaseTime);
+				zip.putNextEntry(entry);
+				Files.copy(classesJar.toPath(), zip);
+				zip.closeEntry();
+			}
+			classesJar.delete();
+		} else {
+			writeJar(stagedFile, archive, releaseTime);
+		}
+
+		// AARs are converted to JARs with the same name, so both are awaited
+		// by the name of their version folder
+		String key = library + "/" + version;
+		File target = whitelist.resolve(library).resolve(fileName).toFile();
+		if (copyBytesPerSecond > 0) {
+			streamArchive(key, stagedFile, target);
+		} else {
+			pending.put(key, System.nanoTime());
+			Files.move(stagedFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	/**
+	 * Copies an archive into the whitelist in the background, a chunk every
+	 * 50 ms, so the watcher sees it being created and then written to until
+	 * the copy is done.
+	 */
+	private void streamArchive(final String key, final File stagedFile, final File target) {
+		copying.add(key);
+		pending.put(key, System.nanoTime());
+		copiers.execute(new Runnable() {
+			@Override
+			public void run() {
+				byte[] chunk = new byte[(int) Math.max(1, copyBytesPerSecond / 20)];
+				try (InputStream in = new FileInputStream(stagedFile);
+						OutputStream copy = new FileOutputStream(target)) {
+					int read;
+					while ((read = in.read(chunk)) > 0) {
+						copy.write(chunk, 0, read);
+						Thread.sleep(50);
+					}
+				} catch (IOException | InterruptedException e) {
+					System.err.println("Failed to copy " + key + ": " + e);
+				} finally {
+					stagedFile.delete();
+				}
+				pending.put(key, System.nanoTime());
+				copying.remove(key);
+			}
+		});
+	}
+
+	private void writeJar(File jarFile, int archive, long releaseTime) throws IOException {
+		try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jarFile))) {
+			for (int i = 0; i < classesPerArchive; i++) {
+				ZipEntry entry = new ZipEntry("com/example/soak/Class" + i + ".class");
+				entry.setTime(releaseTime);
+				zip.putNextEntry(entry);
+				byte[] contents = new byte[256];
+				// About one class in ten changes between releases
+				new Random(i * 31L + (random.nextInt(10) == 0 ? archive : 0)).nextBytes(contents);
+				zip.write(contents);
+				zip.closeEntry();
+			}
+		}
+	}
+}